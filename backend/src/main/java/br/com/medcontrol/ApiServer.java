@@ -11,8 +11,28 @@ import br.com.medcontrol.controlador.RetiradaController; // <-- ADICIONADO RF6.3
 import br.com.medcontrol.controlador.FarmaceuticoController; // <-- ADICIONADO RF5
 import br.com.medcontrol.controlador.ReceitaController; // <-- ADICIONADO RF5
 import br.com.medcontrol.controlador.ReservaController; // <-- ADICIONADO RF07
+import br.com.medcontrol.controlador.ControleAcesso;
+import br.com.medcontrol.controlador.ControleAdmissao;
+import br.com.medcontrol.controlador.MetricasController;
+import br.com.medcontrol.controlador.ExportacaoController;
+import br.com.medcontrol.servicos.ArmazemCodigosVerificacao;
+import br.com.medcontrol.servicos.AuditoriaServico;
+import br.com.medcontrol.servicos.BaseCepLocal;
 import br.com.medcontrol.servicos.CepServico;
 import br.com.medcontrol.servicos.EmailServico;
+import br.com.medcontrol.servicos.EstatisticasBuscaServico;
+import br.com.medcontrol.servicos.ExpiracaoReservasServico;
+import br.com.medcontrol.servicos.FilaEmailServico;
+import br.com.medcontrol.servicos.DemandaDiariaServico;
+import br.com.medcontrol.servicos.DemandaNaoAtendidaServico;
+import br.com.medcontrol.servicos.DisponibilidadeServico;
+import br.com.medcontrol.servicos.IndiceBuscaMedicamentos;
+import br.com.medcontrol.servicos.IndiceGeoUbs;
+import br.com.medcontrol.servicos.LogBuscaServico;
+import br.com.medcontrol.servicos.PainelIndicadoresServico;
+import br.com.medcontrol.servicos.ParticionamentoServico;
+import br.com.medcontrol.servicos.TokenServico;
+import br.com.medcontrol.db.DB;
 import io.javalin.Javalin;
 // Removido (será movido para MedicamentoController): import java.util.ArrayList;
 // Removido (será movido para MedicamentoController): import java.util.List;
@@ -23,19 +43,86 @@ public class ApiServer {
     public static void main(String[] args) {
         Javalin app = Javalin.create(config -> {
             config.plugins.enableCors(cors -> {
-                cors.add(it -> it.anyHost());
+                cors.add(it -> {
+                    it.anyHost();
+                    // Cursor da próxima página da auditoria (RF08.4)
+                    it.exposeHeader("X-Proximo-Cursor");
+                });
             });
         }).start(7071);
 
+        // --- CONTROLE DE ADMISSÃO: limite de taxa por IP e de requisições simultâneas (429/503) ---
+        // Antes do controle de acesso, para que rajadas de requisições recusadas com 401/403 também sejam limitadas
+        ControleAdmissao controleAdmissao = new ControleAdmissao();
+        app.before("/api/*", controleAdmissao::admitir);
+        app.after("/api/*", controleAdmissao::liberar);
+
+        // --- CONTROLE DE ACESSO: token de sessão (Authorization: Bearer) e perfil exigido por rota ---
+        ControleAcesso controleAcesso = new ControleAcesso();
+        app.before("/api/*", controleAcesso::verificar);
+        app.exception(ControleAcesso.AcessoNegadoException.class, ControleAcesso::responder);
+
+        // Limite de taxa por usuário: depende da sessão validada pelo controle de acesso
+        app.before("/api/*", controleAdmissao::limitarUsuario);
+
         System.out.println("Servidor MedControl iniciado na porta 7071.");
 
+        // --- DESLIGAMENTO: drena as filas em memória antes de fechar o pool de conexões ---
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            app.stop();
+            LogBuscaServico.encerrar(5_000);
+            AuditoriaServico.encerrar(5_000);
+            DemandaNaoAtendidaServico.encerrar(5_000);
+            CepServico.salvar();
+            DB.encerrar();
+        }, "medcontrol-desligamento"));
+
         // --- INSTÂNCIA DE SERVIÇOS ---
         EmailServico emailServico = new EmailServico();
+        FilaEmailServico.iniciar(emailServico); // Envia os e-mails enfileirados em segundo plano
         CepServico cepServico = new CepServico();
+        BaseCepLocal.carregarEmSegundoPlano(); // Só se -Dmedcontrol.cep.arquivoBase estiver definido
+
+        // Pré-carrega o índice de busca de medicamentos (se falhar, é carregado na primeira busca)
+        try {
+            IndiceBuscaMedicamentos.carregar();
+        } catch (Exception e) {
+            System.err.println("Aviso: índice de medicamentos não pôde ser carregado na inicialização. " + e.getMessage());
+        }
+        try {
+            IndiceGeoUbs.carregar();
+        } catch (Exception e) {
+            System.err.println("Aviso: índice geográfico de UBS não pôde ser carregado na inicialização. " + e.getMessage());
+        }
+
+        // Reconcilia a disponibilidade materializada agora e, depois, todo dia após a meia-noite
+        DisponibilidadeServico.agendarReconciliacao();
+
+        // Expira reservas ATIVA não retiradas dentro da tolerância (RF07.5)
+        ExpiracaoReservasServico.iniciar();
+
+        // Preenche a demanda diária a partir do histórico na primeira execução (RF09.2)
+        DemandaDiariaServico.preencherSeVazia();
+
+        // Indicadores do dashboard recalculados em segundo plano (RF09.3)
+        PainelIndicadoresServico.iniciar();
+
+        // Contagens por termo buscado a partir do log existente, na primeira execução (RF6.3)
+        EstatisticasBuscaServico.preencherSeVazia();
+
+        // Demanda não atendida nas buscas, acumulada em memória e gravada periodicamente
+        DemandaNaoAtendidaServico.iniciar();
+
+        // Partições mensais de auditoria/log_buscas: cria as próximas e arquiva as antigas (diário)
+        ParticionamentoServico.agendar();
+
+        // Revogações de tokens de sessão (usuários desativados/excluídos), relidas periodicamente
+        TokenServico.iniciar();
 
         // --- INSTÂNCIA DE CONTROLADORES ---
         // CORREÇÃO: Removida injeção de CepServico
-        AutenticacaoController autenticacaoController = new AutenticacaoController(emailServico);
+        ArmazemCodigosVerificacao codigosVerificacao = ArmazemCodigosVerificacao.criar(); // memória ou JDBC (-Dmedcontrol.codigos.armazem)
+        AutenticacaoController autenticacaoController = new AutenticacaoController(emailServico, codigosVerificacao);
         UsuarioController usuarioController = new UsuarioController(); // CORREÇÃO
         UBSController ubsController = new UBSController();
         MedicamentoController medicamentoController = new MedicamentoController();
@@ -49,6 +136,8 @@ public class ApiServer {
         // 2. Instancia o novo controlador de Reservas.
         ReservaController reservaController = new ReservaController();
         // --- FIM DA ADIÇÃO (RF07) ---
+        ExportacaoController exportacaoController = new ExportacaoController();
+        MetricasController metricasController = new MetricasController(codigosVerificacao);
         // --- ROTAS DE AUTENTICAÇÃO E REGISTRO ---
         app.post("/api/login", autenticacaoController::login);
         app.post("/api/register", autenticacaoController::registrar);
@@ -66,6 +155,7 @@ public class ApiServer {
 
         // --- ROTAS PARA GERENCIAMENTO DE USUÁRIOS (ADMIN) ---
         app.get("/api/users", usuarioController::listarTodos);
+        app.get("/api/users/pacientes", usuarioController::listarPacientes); // Tela de validação e retirada (equipe)
         app.post("/api/users", autenticacaoController::registrarAdmin);
         app.put("/api/users/{id}", usuarioController::atualizar); // Atualização sem verificação
         app.put("/api/users/{id}/update-verified", autenticacaoController::atualizarComVerificacao); // Atualização COM
@@ -126,7 +216,19 @@ public class ApiServer {
         // --- RF09: ROTAS DE RELATÓRIOS E DASHBOARD ---
         app.get("/api/relatorios/estoque", relatorioController::getRelatorioEstoque);
         app.get("/api/relatorios/demanda", relatorioController::getRelatorioDemanda);
+        app.post("/api/relatorios/demanda/reconstruir", relatorioController::reconstruirDemanda);
+        app.get("/api/relatorios/demanda-nao-atendida", relatorioController::getDemandaNaoAtendida);
         app.get("/api/dashboard/indicadores", relatorioController::getIndicadoresDashboard);
+        app.get("/api/dashboard/mais-pesquisados", relatorioController::getMaisPesquisadosAgora);
+
+        // --- RF09: EXPORTAÇÃO EM MASSA (CSV / arquivo colunar) ---
+        app.get("/api/exportacoes/estoque.csv", exportacaoController::exportarEstoqueCsv);
+        app.get("/api/exportacoes/retiradas.csv", exportacaoController::exportarRetiradasCsv);
+        app.get("/api/exportacoes/arquivos", exportacaoController::listarArquivos);
+        app.post("/api/exportacoes/arquivos/{tipo}", exportacaoController::gerarArquivo);
+
+        // --- MÉTRICAS INTERNAS (pool de conexões etc.) ---
+        app.get("/api/metricas", metricasController::obterMetricas);
        
         // --- INÍCIO DA ADIÇÃO (RF07) ---
         // 3. Define os novos endpoints para o RF07 [cite: 874-895], apontando para o novo controlador.
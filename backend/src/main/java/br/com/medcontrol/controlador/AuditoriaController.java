@@ -1,44 +1,144 @@
 package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.CacheNomesEntidades;
 import io.javalin.http.Context;
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * RF08.4 - Controlador para buscar logs de auditoria.
  */
 public class AuditoriaController {
 
+    private static final int LIMITE_PADRAO = 200;
+    private static final int LIMITE_MAXIMO = 500;
+
+    /**
+     * Lista os logs do mais recente para o mais antigo, uma página por vez (paginação por chave
+     * em (data_log, id_auditoria), com custo constante por página mesmo no histórico antigo).
+     * Filtros opcionais: id_usuario, acao, tabela, inicio e fim (AAAA-MM-DD), limite.
+     * A próxima página é pedida com ?cursor= igual ao header X-Proximo-Cursor da resposta
+     * (ausente quando não há mais registros).
+     * GET /api/auditoria
+     */
     public void listarLogs(Context ctx) {
         List<Map<String, Object>> logs = new ArrayList<>();
-        
-        // Junta com a tabela de usuários para obter o nome, se disponível
-        String sql = "SELECT a.*, IFNULL(u.nome, 'Sistema/Não Identificado') as nome_usuario " +
-                     "FROM auditoria a " +
-                     "LEFT JOIN usuarios u ON a.id_usuario = u.id " +
-                     "ORDER BY a.data_log DESC LIMIT 200"; // Limita a 200 logs
+
+        StringBuilder sql = new StringBuilder(
+            "SELECT a.id_auditoria, a.id_usuario, a.acao, a.tabela_afetada, a.registro_id, a.detalhes, a.data_log " +
+            "FROM auditoria a WHERE 1 = 1 ");
+        List<Object> params = new ArrayList<>();
+        int limite;
+
+        try {
+            String idUsuario = ctx.queryParam("id_usuario");
+            if (idUsuario != null && !idUsuario.isEmpty()) {
+                sql.append("AND a.id_usuario = ? ");
+                params.add(Integer.parseInt(idUsuario));
+            }
+            String acao = ctx.queryParam("acao");
+            if (acao != null && !acao.isEmpty()) {
+                sql.append("AND a.acao = ? ");
+                params.add(acao);
+            }
+            String tabela = ctx.queryParam("tabela");
+            if (tabela != null && !tabela.isEmpty()) {
+                sql.append("AND a.tabela_afetada = ? ");
+                params.add(tabela);
+            }
+            String inicio = ctx.queryParam("inicio");
+            if (inicio != null && !inicio.isEmpty()) {
+                sql.append("AND a.data_log >= ? ");
+                params.add(Timestamp.valueOf(LocalDate.parse(inicio).atStartOfDay()));
+            }
+            String fim = ctx.queryParam("fim");
+            if (fim != null && !fim.isEmpty()) {
+                sql.append("AND a.data_log < ? ");
+                params.add(Timestamp.valueOf(LocalDate.parse(fim).plusDays(1).atStartOfDay()));
+            }
+
+            String cursor = ctx.queryParam("cursor");
+            if (cursor != null && !cursor.isEmpty()) {
+                // Cursor = posição do último registro da página anterior
+                String[] partes = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+                Timestamp dataCursor = Timestamp.valueOf(LocalDateTime.parse(partes[0]));
+                sql.append("AND (a.data_log < ? OR (a.data_log = ? AND a.id_auditoria < ?)) ");
+                params.add(dataCursor);
+                params.add(dataCursor);
+                params.add(Integer.parseInt(partes[1]));
+            }
+
+            String limiteParam = ctx.queryParam("limite");
+            limite = (limiteParam != null && !limiteParam.isEmpty())
+                    ? Math.max(1, Math.min(Integer.parseInt(limiteParam), LIMITE_MAXIMO))
+                    : LIMITE_PADRAO;
+        } catch (Exception e) {
+            ctx.status(400).json(Map.of("erro", "Parâmetros de filtro ou cursor inválidos."));
+            return;
+        }
+
+        // Busca uma linha a mais só para saber se existe próxima página
+        sql.append("ORDER BY a.data_log DESC, a.id_auditoria DESC LIMIT ?");
+        params.add(limite + 1);
 
         try (Connection conn = DB.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql);
-             ResultSet rs = ps.executeQuery()) {
-
-            while (rs.next()) {
-                Map<String, Object> log = new HashMap<>();
-                log.put("id_auditoria", rs.getInt("id_auditoria"));
-                log.put("id_usuario", rs.getObject("id_usuario")); // Pode ser nulo
-                log.put("nome_usuario", rs.getString("nome_usuario"));
-                log.put("acao", rs.getString("acao"));
-                log.put("tabela_afetada", rs.getString("tabela_afetada"));
-                log.put("registro_id", rs.getInt("registro_id"));
-                log.put("detalhes", rs.getString("detalhes"));
-                log.put("data_log", rs.getTimestamp("data_log"));
-                logs.add(log);
+             PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+
+            for (int i = 0; i < params.size(); i++) {
+                ps.setObject(i + 1, params.get(i));
+            }
+
+            boolean temProxima = false;
+            Set<Integer> idsUsuarios = new HashSet<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    if (logs.size() == limite) {
+                        temProxima = true;
+                        break;
+                    }
+                    Map<String, Object> log = new HashMap<>();
+                    log.put("id_auditoria", rs.getInt("id_auditoria"));
+                    log.put("id_usuario", rs.getObject("id_usuario")); // Pode ser nulo
+                    log.put("acao", rs.getString("acao"));
+                    log.put("tabela_afetada", rs.getString("tabela_afetada"));
+                    log.put("registro_id", rs.getInt("registro_id"));
+                    log.put("detalhes", rs.getString("detalhes"));
+                    log.put("data_log", rs.getTimestamp("data_log"));
+                    logs.add(log);
+
+                    if (log.get("id_usuario") != null) {
+                        idsUsuarios.add(rs.getInt("id_usuario"));
+                    }
+                }
+            }
+
+            // Nomes dos usuários vindos do cache, em vez de um LEFT JOIN por linha
+            Map<Integer, String> nomes = CacheNomesEntidades.buscarNomes(conn, "usuarios", idsUsuarios);
+            for (Map<String, Object> log : logs) {
+                String nome = null;
+                if (log.get("id_usuario") != null) {
+                    nome = nomes.get(((Number) log.get("id_usuario")).intValue());
+                }
+                log.put("nome_usuario", nome != null ? nome : "Sistema/Não Identificado");
+            }
+
+            if (temProxima) {
+                Map<String, Object> ultimo = logs.get(logs.size() - 1);
+                String posicao = ((Timestamp) ultimo.get("data_log")).toLocalDateTime() + "|" + ultimo.get("id_auditoria");
+                ctx.header("X-Proximo-Cursor", Base64.getUrlEncoder().withoutPadding().encodeToString(posicao.getBytes(StandardCharsets.UTF_8)));
             }
             ctx.json(logs);
         } catch (Exception e) {
@@ -46,4 +146,4 @@ public class AuditoriaController {
             ctx.status(500).json(Map.of("erro", "Erro ao buscar logs de auditoria"));
         }
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,17 @@
 package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.ArmazemCodigosVerificacao;
 import br.com.medcontrol.servicos.EmailServico;
 import br.com.medcontrol.servicos.HunterServico;
+import br.com.medcontrol.servicos.SenhaServico;
+import br.com.medcontrol.servicos.TokenServico;
 import br.com.medcontrol.servicos.AuditoriaServico; //RF08
 import java.sql.Statement; //RF08.3
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.core.type.TypeReference; 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
 import java.sql.Connection;
 import java.sql.Date;
@@ -17,41 +19,24 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLIntegrityConstraintViolationException;
 import java.sql.Types;
-import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap; 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class AutenticacaoController {
 
-    // Classe interna para armazenar o código de verificação e sua data de expiração.
-    private static class CodigoInfo {
-        String codigo;
-        LocalDateTime expiracao;
-
-        CodigoInfo(String codigo) {
-            this.codigo = codigo;
-            // Define o tempo de expiração para 2 minutos a partir do momento da criação.
-            this.expiracao = LocalDateTime.now().plusMinutes(2); 
-        }
-
-        // Verifica se o código informado é igual ao armazenado E se ainda não expirou.
-        boolean isValido(String codigo) {
-            return this.codigo.equals(codigo) && expiracao.isAfter(LocalDateTime.now());
-        }
-    }
-
     private final ObjectMapper mapper = new ObjectMapper();
-    private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
     // Injeção de dependência dos serviços de E-mail e Hunter.
     private final EmailServico emailServico;
     private final HunterServico hunterServico;
-    // Mapa para armazenar os códigos de verificação em memória.
-    private final Map<String, CodigoInfo> codigosVerificacao = new ConcurrentHashMap<>();
+    // Códigos de verificação emitidos (expiração, limite de tentativas e capacidade ficam no armazém).
+    private final ArmazemCodigosVerificacao codigosVerificacao;
 
-    // O construtor recebe o serviço de e-mail
-    public AutenticacaoController(EmailServico emailServico) {
+    // O construtor recebe o serviço de e-mail e o armazém de códigos de verificação
+    public AutenticacaoController(EmailServico emailServico, ArmazemCodigosVerificacao codigosVerificacao) {
         this.emailServico = emailServico;
+        this.codigosVerificacao = codigosVerificacao;
         this.hunterServico = new HunterServico(); 
     }
 
@@ -123,11 +108,12 @@ public class AutenticacaoController {
             String motivo = req.getOrDefault("motivo", "cadastro");
             // Gera um código de 6 dígitos seguro.
             String codigo = emailServico.gerarCodigoVerificacao();
-            // Utiliza o serviço para enviar o e-mail através da API do Gmail.
-            emailServico.enviarCodigoVerificacao(email, codigo, motivo);
+            // Armazena o código gerado com a data de expiração.
+            codigosVerificacao.guardar(email, codigo);
 
-            // Armazena o código gerado em memória com a data de expiração.
-            codigosVerificacao.put(email, new CodigoInfo(codigo));
+            // Coloca o e-mail na fila de envio (FilaEmailServico); a entrega pela API do Gmail
+            // acontece em segundo plano, com novas tentativas em caso de falha.
+            emailServico.enviarCodigoVerificacao(email, codigo, motivo);
 
             // --- ETAPA 6 (Fluxo) ---
             // Retorna sucesso para o frontend, que irá exibir a tela de inserção de código.
@@ -148,11 +134,8 @@ public class AutenticacaoController {
             String codigo = req.get("codigo");
             
             // --- ETAPA 9 (Fluxo) ---
-            // Recupera o código armazenado para este e-mail.
-            CodigoInfo codigoInfo = codigosVerificacao.get(email);
-
-            // Valida se o código existe, se é o mesmo informado e se não expirou.
-            if (codigoInfo != null && codigoInfo.isValido(codigo)) {
+            // Valida se existe código para este e-mail, se é o mesmo informado e se não expirou.
+            if (codigosVerificacao.verificar(email, codigo)) {
                 ctx.status(200).json(Map.of("success", true, "message", "Código verificado com sucesso."));
             } else {
                 ctx.status(400).json(Map.of("success", false, "message", "Código inválido ou expirado."));
@@ -172,39 +155,65 @@ public class AutenticacaoController {
             Map<String, String> loginRequest = mapper.readValue(body, new TypeReference<Map<String, String>>() {});
             String emailOuCpf = loginRequest.get("emailOuCpf");
             String senha = loginRequest.get("senha");
+            if (emailOuCpf == null || senha == null) {
+                ctx.status(401).json(Map.of("success", false, "message", "Credenciais inválidas ou usuário inativo."));
+                return;
+            }
 
-            String sql = "SELECT * FROM usuarios WHERE (email = ? OR cpf_cns = ?) AND ativo = TRUE";
+            // Uma consulta por coluna (ambas UNIQUE), em vez de "email = ? OR cpf_cns = ?", para usar um único índice.
+            String coluna = emailOuCpf.contains("@") ? "email" : "cpf_cns";
+            String sql = "SELECT id, nome, email, perfil, cpf_cns, cep, data_nascimento, ativo, logradouro, bairro, cidade, uf, senha " +
+                         "FROM usuarios WHERE " + coluna + " = ? AND ativo = TRUE";
+            Map<String, Object> user = new HashMap<>();
+            String senhaHash;
             try (Connection conn = DB.getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setString(1, emailOuCpf);
-                ps.setString(2, emailOuCpf);
                 try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        String senhaHash = rs.getString("senha");
-                        
-                        if (passwordEncoder.matches(senha, senhaHash)) {
-                            Map<String, Object> user = new HashMap<>();
-                            user.put("id", rs.getInt("id"));
-                            user.put("nome", rs.getString("nome"));
-                            user.put("email", rs.getString("email"));
-                            user.put("perfil", rs.getString("perfil"));
-                            user.put("cpf_cns", rs.getString("cpf_cns"));
-                            user.put("cep", rs.getString("cep"));
-                            user.put("data_nascimento", rs.getString("data_nascimento"));
-                            user.put("ativo", rs.getBoolean("ativo"));
-                            user.put("logradouro", rs.getString("logradouro"));
-                            user.put("bairro", rs.getString("bairro"));
-                            user.put("cidade", rs.getString("cidade"));
-                            user.put("uf", rs.getString("uf"));
-                            ctx.json(Map.of("success", true, "user", user));
-                        } else {
-                            ctx.status(401).json(Map.of("success", false, "message", "Credenciais inválidas ou usuário inativo."));
-                        }
-                    } else {
+                    if (!rs.next()) {
                         ctx.status(401).json(Map.of("success", false, "message", "Credenciais inválidas ou usuário inativo."));
+                        return;
                     }
+                    senhaHash = rs.getString("senha");
+                    user.put("id", rs.getInt("id"));
+                    user.put("nome", rs.getString("nome"));
+                    user.put("email", rs.getString("email"));
+                    user.put("perfil", rs.getString("perfil"));
+                    user.put("cpf_cns", rs.getString("cpf_cns"));
+                    user.put("cep", rs.getString("cep"));
+                    user.put("data_nascimento", rs.getString("data_nascimento"));
+                    user.put("ativo", rs.getBoolean("ativo"));
+                    user.put("logradouro", rs.getString("logradouro"));
+                    user.put("bairro", rs.getString("bairro"));
+                    user.put("cidade", rs.getString("cidade"));
+                    user.put("uf", rs.getString("uf"));
                 }
             }
+
+            // O BCrypt roda no pool do SenhaServico; a thread da requisição fica livre enquanto isso.
+            ctx.future(() -> {
+                try {
+                    return SenhaServico.conferirNoPool((Integer) user.get("id"), senha, senhaHash)
+                        .thenAccept(confere -> {
+                            if (confere) {
+                                // Token assinado com id e perfil; o frontend o envia em "Authorization: Bearer"
+                                String token = TokenServico.emitir((Integer) user.get("id"), (String) user.get("perfil"));
+                                ctx.json(Map.of("success", true, "user", user, "token", token));
+                            } else {
+                                ctx.status(401).json(Map.of("success", false, "message", "Credenciais inválidas ou usuário inativo."));
+                            }
+                        })
+                        .exceptionally(e -> {
+                            System.err.println("Erro no endpoint /api/login: " + e.getMessage());
+                            e.printStackTrace();
+                            ctx.status(500).json(Map.of("success", false, "message", "Erro interno no servidor."));
+                            return null;
+                        });
+                } catch (RejectedExecutionException e) {
+                    ctx.status(503).json(Map.of("success", false, "message", "Muitos acessos no momento. Tente novamente em instantes."));
+                    return CompletableFuture.completedFuture(null);
+                }
+            });
         } catch (JsonProcessingException e) {
              ctx.status(400).json(Map.of("success", false, "message", "Formato de requisição inválido (JSON malformado)."));
         } catch (Exception e) {
@@ -226,9 +235,7 @@ public class AutenticacaoController {
             
             // --- ETAPA 9 (Fluxo) ---
             // Recupera e valida o código da mesma forma que o endpoint de verificação.
-            CodigoInfo codigoInfo = codigosVerificacao.get(email);
-
-            if (codigoInfo == null || !codigoInfo.isValido(codigoRecebido)) {
+            if (!codigosVerificacao.verificar(email, codigoRecebido)) {
                 ctx.status(400).json(Map.of("success", false, "message", "Código de verificação inválido ou expirado."));
                 return;
             }
@@ -236,7 +243,7 @@ public class AutenticacaoController {
             // --- ETAPA 10 (Fluxo - Sucesso) ---
             // Se o código for válido, o processo continua.
             String senhaPlana = (String) user.get("senha");
-            String senhaHash = passwordEncoder.encode(senhaPlana);
+            String senhaHash = SenhaServico.gerarHash(senhaPlana);
 
             String cep = (String) user.get("cep");
             
@@ -279,7 +286,7 @@ public class AutenticacaoController {
                 
                 ps.executeUpdate();
                 
-                codigosVerificacao.remove(email);
+                codigosVerificacao.remover(email);
                 
                 ctx.status(201).json(Map.of("success", true, "message", "Cadastro realizado com sucesso!"));
             }
@@ -306,15 +313,13 @@ public class AutenticacaoController {
             String email = (String) user.get("email");
             String codigoRecebido = (String) user.get("codigoVerificacao");
 
-            CodigoInfo codigoInfo = codigosVerificacao.get(email);
-
-            if (codigoInfo == null || !codigoInfo.isValido(codigoRecebido)) {
+            if (!codigosVerificacao.verificar(email, codigoRecebido)) {
                 ctx.status(400).json(Map.of("success", false, "message", "Código de verificação inválido ou expirado."));
                 return;
             }
             
             String senhaPlana = (String) user.get("senha");
-            String senhaHash = passwordEncoder.encode(senhaPlana);
+            String senhaHash = SenhaServico.gerarHash(senhaPlana);
 
             String cep = (String) user.get("cep");
 
@@ -373,7 +378,7 @@ public class AutenticacaoController {
                 AuditoriaServico.registrarAcao(adminId, "CRIAR", "usuarios", novoId, user); // MODIFICADO
                 // --- FIM DA AUDITORIA ---
                 
-                codigosVerificacao.remove(email);
+                codigosVerificacao.remover(email);
 
                 ctx.status(201).json(Map.of("success", true));
             }
@@ -401,15 +406,14 @@ public class AutenticacaoController {
             String email = (String) userObj.get("email");
             String codigoRecebido = (String) userObj.get("codigoVerificacao");
 
-            CodigoInfo codigoInfo = codigosVerificacao.get(email);
-
-            if (codigoInfo == null || !codigoInfo.isValido(codigoRecebido)) {
+            if (!codigosVerificacao.verificar(email, codigoRecebido)) {
                 ctx.status(400).json(Map.of("success", false, "message", "Código de verificação inválido ou expirado."));
                 return;
             }
             
+            ControleAcesso.removerCamposDeAdmin(ctx, userObj);
             UsuarioController.internalUpdate(id, userObj); 
-            codigosVerificacao.remove(email); 
+            codigosVerificacao.remover(email); 
             ctx.json(Map.of("success", true));
 
         } catch (SQLIntegrityConstraintViolationException e) {
@@ -447,7 +451,7 @@ public class AutenticacaoController {
             String email = req.get("email");
             String newPassword = req.get("newPassword");
             
-            String hashedNewPassword = passwordEncoder.encode(newPassword);
+            String hashedNewPassword = SenhaServico.gerarHash(newPassword);
 
             String sql = "UPDATE usuarios SET senha = ? WHERE email = ?";
             try (PreparedStatement ps = conn.prepareStatement(sql)) {
@@ -455,7 +459,7 @@ public class AutenticacaoController {
                 ps.setString(2, email);
                 int updatedRows = ps.executeUpdate();
                 if (updatedRows > 0) {
-                    codigosVerificacao.remove(email);
+                    codigosVerificacao.remover(email);
                     ctx.json(Map.of("success", true));
                 } else {
                     ctx.status(404).json(Map.of("success", false, "message", "Email não encontrado."));
@@ -0,0 +1,156 @@
+package br.com.medcontrol.controlador;
+
+import br.com.medcontrol.servicos.TokenServico;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Filtro (before-handler de /api/*) que confere o token de sessão e o perfil exigido pela rota.
+ *
+ * O token vem em "Authorization: Bearer ..." e é validado pelo TokenServico, sem consultar o banco.
+ * Os controladores continuam lendo o usuário de X-User-ID; aqui se garante que esse cabeçalho é o
+ * mesmo usuário do token. Rotas públicas (login, cadastro, busca, CEP...) seguem sem token.
+ */
+public class ControleAcesso {
+
+    /**
+     * Recusa a requisição; tratada em ApiServer com a resposta JSON no formato dos controladores.
+     */
+    public static class AcessoNegadoException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        public AcessoNegadoException(int status, String mensagem) {
+            super(mensagem);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+
+    public static final String ATRIBUTO_SESSAO = "sessao";
+
+    private static final Set<String> ADMIN = Set.of("admin");
+    private static final Set<String> GESTAO = Set.of("admin", "gestor_ubs");
+    private static final Set<String> ESTOQUE = Set.of("admin", "gestor_ubs", "gestor_estoque");
+    private static final Set<String> VALIDACAO = Set.of("admin", "farmaceutico", "gestor_ubs");
+    private static final Set<String> EQUIPE = Set.of("admin", "farmaceutico", "gestor_ubs", "gestor_estoque");
+    // Qualquer usuário logado
+    private static final Set<String> LOGADO = Set.of();
+
+    // /api/users/{id} (inclusive DELETE), /update-verified, /redefine-password e /status: o próprio usuário ou um admin
+    private static final Pattern PROPRIO_USUARIO = Pattern.compile("^/api/users/(\\d+)(/update-verified|/redefine-password|/status)?$");
+
+    public void verificar(Context ctx) {
+        if (ctx.method() == HandlerType.OPTIONS) return; // pré-verificação do CORS
+
+        TokenServico.Sessao sessao = null;
+        String autorizacao = ctx.header("Authorization");
+        if (autorizacao != null && autorizacao.startsWith("Bearer ")) {
+            sessao = TokenServico.validar(autorizacao.substring(7).trim());
+            if (sessao == null) {
+                throw new AcessoNegadoException(401, "Sessão inválida ou expirada. Faça o login novamente.");
+            }
+            ctx.attribute(ATRIBUTO_SESSAO, sessao);
+        }
+
+        // X-User-ID só é aceito junto com um token do mesmo usuário
+        String idCabecalho = ctx.header("X-User-ID");
+        if (idCabecalho != null && (sessao == null || !idCabecalho.trim().equals(String.valueOf(sessao.idUsuario())))) {
+            throw new AcessoNegadoException(401, "Sessão inválida ou expirada. Faça o login novamente.");
+        }
+
+        String caminho = ctx.path();
+        HandlerType metodo = ctx.method();
+
+        Matcher proprio = PROPRIO_USUARIO.matcher(caminho);
+        if (proprio.matches()) {
+            exigir(sessao, LOGADO);
+            if (!sessao.perfil().equals("admin") && sessao.idUsuario() != Integer.parseInt(proprio.group(1))) {
+                throw new AcessoNegadoException(403, "Acesso negado.");
+            }
+            return;
+        }
+
+        Set<String> perfis = perfisExigidos(metodo, caminho);
+        if (perfis != null) {
+            exigir(sessao, perfis);
+        }
+    }
+
+    /**
+     * Perfis aceitos pela rota; null = rota pública.
+     */
+    private static Set<String> perfisExigidos(HandlerType metodo, String caminho) {
+        boolean leitura = metodo == HandlerType.GET;
+
+        // Lista de pacientes da tela de validação e retirada
+        if (caminho.equals("/api/users/pacientes")) return VALIDACAO;
+        // Confirmação de senha antes de desativar ou excluir a própria conta
+        if (caminho.equals("/api/admin/verify-password")) return LOGADO;
+        if (caminho.startsWith("/api/users") || caminho.startsWith("/api/auditoria") || caminho.startsWith("/api/metricas")) return ADMIN;
+        if (caminho.startsWith("/api/relatorios") || caminho.startsWith("/api/dashboard") || caminho.startsWith("/api/exportacoes")) return GESTAO;
+        // O farmacêutico consulta o estoque na retirada; alterar continua com a gestão de estoque
+        if (caminho.startsWith("/api/estoque")) return leitura ? EQUIPE : ESTOQUE;
+        if (caminho.startsWith("/api/farmaceuticos")) return leitura ? EQUIPE : ADMIN;
+        if (caminho.startsWith("/api/receitas") || caminho.startsWith("/api/retiradas")) return VALIDACAO;
+        if (caminho.startsWith("/api/admin")) return EQUIPE;
+        if (caminho.startsWith("/api/reservas") || caminho.startsWith("/api/usuarios/me")) return LOGADO;
+        // Cadastros: leitura pública (busca, reservas), escrita pela equipe
+        if (caminho.startsWith("/api/ubs") && !leitura) return GESTAO;
+        if (caminho.startsWith("/api/medicamentos") && !leitura) return ESTOQUE;
+        return null;
+    }
+
+    private static void exigir(TokenServico.Sessao sessao, Set<String> perfis) {
+        if (sessao == null) {
+            throw new AcessoNegadoException(401, "Faça o login para continuar.");
+        }
+        if (!perfis.isEmpty() && !perfis.contains(sessao.perfil())) {
+            throw new AcessoNegadoException(403, "Acesso negado para o perfil " + sessao.perfil() + ".");
+        }
+    }
+
+    /**
+     * true se a requisição tem sessão de admin.
+     */
+    public static boolean ehAdmin(Context ctx) {
+        TokenServico.Sessao sessao = ctx.attribute(ATRIBUTO_SESSAO);
+        return sessao != null && sessao.perfil().equals("admin");
+    }
+
+    /**
+     * Nas rotas do próprio usuário (PROPRIO_USUARIO), quem não é admin não pode mudar o próprio perfil
+     * nem o status: esses campos são retirados do corpo antes da atualização.
+     * (A própria conta só pode ser desativada pela rota /status, conferida em UsuarioController.alterarStatus.)
+     */
+    public static void removerCamposDeAdmin(Context ctx, Map<String, Object> dados) {
+        if (!ehAdmin(ctx)) {
+            dados.remove("perfil");
+            dados.remove("ativo");
+        }
+    }
+
+    /**
+     * Id do usuário da sessão, ou null se a requisição não tem token.
+     */
+    public static Integer idUsuario(Context ctx) {
+        TokenServico.Sessao sessao = ctx.attribute(ATRIBUTO_SESSAO);
+        return sessao != null ? sessao.idUsuario() : null;
+    }
+
+    /**
+     * Resposta de AcessoNegadoException.
+     */
+    public static void responder(AcessoNegadoException e, Context ctx) {
+        ctx.status(e.getStatus()).json(Map.of("success", false, "message", e.getMessage()));
+    }
+}
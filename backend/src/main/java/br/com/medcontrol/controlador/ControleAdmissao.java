@@ -0,0 +1,240 @@
+package br.com.medcontrol.controlador;
+
+import br.com.medcontrol.servicos.TokenServico;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controle de admissão das requisições de /api/*.
+ *
+ * admitir() é registrado antes do ControleAcesso, para limitar também as requisições que ele recusaria
+ * (401/403); limitarUsuario() vem depois dele, pois precisa da sessão já validada.
+ *
+ * 1. Limite de taxa por balde de fichas, por IP e, com sessão, também por usuário. Cada regra tem sua
+ *    capacidade (rajada) e reposição por minuto, configuráveis em medcontrol.limite.<regra>.capacidade e
+ *    .porMinuto. Excedeu: 429 com Retry-After.
+ *    No login, o limite apertado é por conta (identificador + IP), contra tentativa de senhas; o limite só
+ *    por IP é largo, porque uma UBS inteira costuma sair por um único IP (NAT) e todos entram no início do turno.
+ * 2. Limite global de requisições simultâneas (medcontrol.admissao.maxConcorrentes). Sem vaga dentro de
+ *    medcontrol.admissao.esperaMs: 503. Assim o excesso é descartado antes de chegar ao pool de conexões.
+ */
+public class ControleAdmissao {
+
+    /**
+     * Regra de limite de taxa.
+     * @param capacidade Fichas do balde (tamanho máximo da rajada).
+     * @param porMinuto Fichas repostas por minuto (taxa sustentada).
+     */
+    private record Regra(String nome, String prefixo, int capacidade, int porMinuto) {
+        static Regra de(String nome, String prefixo, int capacidade, int porMinuto) {
+            return new Regra(nome, prefixo,
+                             Integer.getInteger("medcontrol.limite." + nome + ".capacidade", capacidade),
+                             Integer.getInteger("medcontrol.limite." + nome + ".porMinuto", porMinuto));
+        }
+    }
+
+    // Em ordem: vale a primeira regra cujo prefixo casa com o caminho
+    private static final List<Regra> REGRAS = List.of(
+        Regra.de("codigo_verificacao", "/api/usuarios/enviar-codigo-verificacao", 3, 5),
+        // Por IP: comporta a equipe de uma UBS atrás de NAT entrando junta; o limite por conta fica em LOGIN_POR_CONTA
+        Regra.de("login", "/api/login", 100, 300),
+        Regra.de("busca", "/api/medicamentos/search", 20, 60),
+        Regra.de("cep", "/api/cep", 10, 30),
+        Regra.de("exportacao", "/api/exportacoes", 3, 10)
+    );
+    private static final Regra PADRAO = Regra.de("padrao", "/api", 100, 300);
+    // Por usuário logado, somando todas as rotas (vários usuários podem dividir o mesmo IP)
+    private static final Regra POR_USUARIO = Regra.de("usuario", "/api", 200, 600);
+    // Por identificador informado (e-mail ou CPF/CNS) + IP
+    private static final Regra LOGIN_POR_CONTA = Regra.de("login_conta", "/api/login", 5, 10);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final int MAX_CONCORRENTES = Integer.getInteger("medcontrol.admissao.maxConcorrentes", 64);
+    private static final long ESPERA_MS = Long.getLong("medcontrol.admissao.esperaMs", 100L);
+    // Atrás de um proxy reverso, o IP do cliente vem em X-Forwarded-For
+    private static final boolean CONFIAR_PROXY = Boolean.getBoolean("medcontrol.admissao.confiarProxy");
+
+    private static final String ATRIBUTO_VAGA = "admissao.vaga";
+
+    /**
+     * Balde de fichas; repõe proporcionalmente ao tempo desde o último uso.
+     */
+    private static final class Balde {
+        private final Regra regra;
+        private double fichas;
+        private long atualizadoEm = System.nanoTime();
+        private long usadoEm = atualizadoEm;
+
+        Balde(Regra regra) {
+            this.regra = regra;
+            this.fichas = regra.capacidade();
+        }
+
+        /**
+         * @return 0 se consumiu uma ficha; senão, quantos segundos até haver uma.
+         */
+        synchronized long consumir() {
+            repor();
+            usadoEm = atualizadoEm;
+            if (fichas >= 1) {
+                fichas -= 1;
+                return 0;
+            }
+            return (long) Math.ceil((1 - fichas) * 60.0 / regra.porMinuto());
+        }
+
+        synchronized boolean ociosoECheio(long limiteNanos) {
+            repor();
+            return usadoEm - limiteNanos < 0 && fichas >= regra.capacidade();
+        }
+
+        private void repor() {
+            long agora = System.nanoTime();
+            fichas = Math.min(regra.capacidade(), fichas + (agora - atualizadoEm) * regra.porMinuto() / 60e9);
+            atualizadoEm = agora;
+        }
+    }
+
+    private static final Map<String, Balde> baldes = new ConcurrentHashMap<>();
+    private static final Semaphore vagas = new Semaphore(MAX_CONCORRENTES);
+
+    private static final AtomicLong admitidas = new AtomicLong();
+    private static final AtomicLong recusadasConcorrencia = new AtomicLong();
+    private static final Map<String, AtomicLong> recusadasTaxa = new ConcurrentHashMap<>();
+    private static final AtomicInteger emAndamento = new AtomicInteger();
+    private static final AtomicInteger picoEmAndamento = new AtomicInteger();
+
+    private static final ScheduledExecutorService limpeza = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "admissao-limpeza");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        // Balde cheio e sem uso há mais de 5 minutos equivale a não ter balde
+        limpeza.scheduleWithFixedDelay(() -> {
+            long limite = System.nanoTime() - TimeUnit.MINUTES.toNanos(5);
+            baldes.values().removeIf(balde -> balde.ociosoECheio(limite));
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public void admitir(Context ctx) throws InterruptedException {
+        if (ctx.method() == HandlerType.OPTIONS) return;
+
+        String caminho = ctx.path();
+        Regra regra = PADRAO;
+        for (Regra r : REGRAS) {
+            if (caminho.startsWith(r.prefixo())) {
+                regra = r;
+                break;
+            }
+        }
+
+        String ip = ipCliente(ctx);
+        consumir(ctx, regra, "ip:" + ip);
+        if (regra.prefixo().equals(LOGIN_POR_CONTA.prefixo())) {
+            consumir(ctx, LOGIN_POR_CONTA, "conta:" + identificadorLogin(ctx) + "|ip:" + ip);
+        }
+
+        // As métricas ficam fora do limite de concorrência, para observar o servidor justamente quando ele está cheio
+        if (caminho.startsWith("/api/metricas")) return;
+
+        if (!vagas.tryAcquire(ESPERA_MS, TimeUnit.MILLISECONDS)) {
+            recusadasConcorrencia.incrementAndGet();
+            ctx.header("Retry-After", "1");
+            throw new ControleAcesso.AcessoNegadoException(503, "Servidor sobrecarregado. Tente novamente em instantes.");
+        }
+        ctx.attribute(ATRIBUTO_VAGA, Boolean.TRUE);
+        admitidas.incrementAndGet();
+        picoEmAndamento.accumulateAndGet(emAndamento.incrementAndGet(), Math::max);
+    }
+
+    /**
+     * Limite por usuário logado (before-handler registrado depois do ControleAcesso).
+     */
+    public void limitarUsuario(Context ctx) {
+        if (ctx.method() == HandlerType.OPTIONS) return;
+
+        TokenServico.Sessao sessao = ctx.attribute(ControleAcesso.ATRIBUTO_SESSAO);
+        if (sessao != null) {
+            consumir(ctx, POR_USUARIO, "usuario:" + sessao.idUsuario());
+        }
+    }
+
+    /**
+     * After-handler: devolve a vaga (também roda depois de exceções e de respostas assíncronas).
+     */
+    public void liberar(Context ctx) {
+        if (ctx.attribute(ATRIBUTO_VAGA) != null) {
+            ctx.attribute(ATRIBUTO_VAGA, null);
+            emAndamento.decrementAndGet();
+            vagas.release();
+        }
+    }
+
+    private static void consumir(Context ctx, Regra regra, String cliente) {
+        long esperaSegundos = baldes.computeIfAbsent(regra.nome() + "|" + cliente, k -> new Balde(regra)).consumir();
+        if (esperaSegundos > 0) {
+            recusadasTaxa.computeIfAbsent(regra.nome(), k -> new AtomicLong()).incrementAndGet();
+            ctx.header("Retry-After", String.valueOf(esperaSegundos));
+            throw new ControleAcesso.AcessoNegadoException(429, "Muitas requisições. Tente novamente em " + esperaSegundos + " s.");
+        }
+    }
+
+    /**
+     * Identificador (emailOuCpf) do corpo do login, normalizado; vazio se o corpo não for o esperado.
+     * O Javalin guarda o corpo lido, então o AutenticacaoController ainda o recebe inteiro.
+     */
+    private static String identificadorLogin(Context ctx) {
+        try {
+            JsonNode corpo = mapper.readTree(ctx.body());
+            JsonNode identificador = corpo == null ? null : corpo.get("emailOuCpf");
+            return identificador != null && identificador.isTextual() ? identificador.asText().trim().toLowerCase() : "";
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private static String ipCliente(Context ctx) {
+        if (CONFIAR_PROXY) {
+            String encaminhado = ctx.header("X-Forwarded-For");
+            if (encaminhado != null && !encaminhado.isBlank()) {
+                int virgula = encaminhado.indexOf(',');
+                return (virgula >= 0 ? encaminhado.substring(0, virgula) : encaminhado).trim();
+            }
+        }
+        return ctx.ip();
+    }
+
+    /**
+     * Contadores da admissão de requisições.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> porRegra = new LinkedHashMap<>();
+        recusadasTaxa.forEach((regra, total) -> porRegra.put(regra, total.get()));
+
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("admitidas", admitidas.get());
+        estatisticas.put("em_andamento", emAndamento.get());
+        estatisticas.put("pico_em_andamento", picoEmAndamento.get());
+        estatisticas.put("max_concorrentes", MAX_CONCORRENTES);
+        estatisticas.put("recusadas_concorrencia", recusadasConcorrencia.get());
+        estatisticas.put("recusadas_taxa", porRegra);
+        estatisticas.put("baldes_ativos", baldes.size());
+        return estatisticas;
+    }
+}
@@ -2,6 +2,7 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico; // <-- ADICIONADO
+import br.com.medcontrol.servicos.DisponibilidadeServico;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
@@ -10,10 +11,12 @@ import java.sql.Connection;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException; // MODIFICAÇÃO 1: Importado
 import java.sql.Statement; // <-- ADICIONADO
 import java.sql.Types; // MODIFICAÇÃO 1: Importado
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -118,16 +121,24 @@ public class EstoqueController {
             Map<String, Object> item = mapper.readValue(ctx.body(), new TypeReference<>() {});
             String sql = "INSERT INTO estoque (id_ubs, id_medicamento, quantidade, lote, data_validade) VALUES (?, ?, ?, ?, ?)";
 
+            int idUbs = Integer.parseInt(String.valueOf(item.get("id_ubs")));
+            int idMedicamento = Integer.parseInt(String.valueOf(item.get("id_medicamento")));
+
             try (Connection conn = DB.getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
                 
-                ps.setInt(1, Integer.parseInt(String.valueOf(item.get("id_ubs"))));
-                ps.setInt(2, Integer.parseInt(String.valueOf(item.get("id_medicamento"))));
+                // Estoque e disponibilidade materializada mudam na mesma transação
+                conn.setAutoCommit(false);
+                DisponibilidadeServico.travarPares(conn, List.of(new int[] {idMedicamento, idUbs}));
+
+                ps.setInt(1, idUbs);
+                ps.setInt(2, idMedicamento);
                 ps.setInt(3, Integer.parseInt(String.valueOf(item.get("quantidade"))));
                 ps.setString(4, (String) item.get("lote"));
                 ps.setDate(5, Date.valueOf((String) item.get("data_validade")));
                 
                 ps.executeUpdate();
+                DisponibilidadeServico.recalcularFisico(conn, idMedicamento, idUbs);
 
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 // --- INÍCIO DA MODIFICAÇÃO (AUDITORIA) ---
@@ -143,6 +154,7 @@ public class EstoqueController {
                         novoId = generatedKeys.getInt(1);
                     }
                 }
+                conn.commit();
                 AuditoriaServico.registrarAcao(adminId, "CRIAR", "estoque", novoId, item); // MODIFICADO
                 // --- FIM DA AUDITORIA ---
 
@@ -172,11 +184,18 @@ public class EstoqueController {
             Map<String, Object> item = mapper.readValue(ctx.body(), new TypeReference<>() {});
             String sql = "UPDATE estoque SET id_ubs = ?, id_medicamento = ?, quantidade = ?, lote = ?, data_validade = ? WHERE id_estoque = ?";
 
+            int idUbs = Integer.parseInt(String.valueOf(item.get("id_ubs")));
+            int idMedicamento = Integer.parseInt(String.valueOf(item.get("id_medicamento")));
+
             try (Connection conn = DB.getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 
-                ps.setInt(1, Integer.parseInt(String.valueOf(item.get("id_ubs"))));
-                ps.setInt(2, Integer.parseInt(String.valueOf(item.get("id_medicamento"))));
+                conn.setAutoCommit(false);
+                // O item pode ter mudado de medicamento/UBS: o par antigo também precisa ser recalculado
+                int[] parAnterior = travarParesDoItem(conn, id, new int[] {idMedicamento, idUbs});
+
+                ps.setInt(1, idUbs);
+                ps.setInt(2, idMedicamento);
                 ps.setInt(3, Integer.parseInt(String.valueOf(item.get("quantidade"))));
                 ps.setString(4, (String) item.get("lote"));
                 ps.setDate(5, Date.valueOf((String) item.get("data_validade")));
@@ -184,6 +203,12 @@ public class EstoqueController {
                 
                 ps.executeUpdate();
 
+                DisponibilidadeServico.recalcularFisico(conn, idMedicamento, idUbs);
+                if (parAnterior != null && (parAnterior[0] != idMedicamento || parAnterior[1] != idUbs)) {
+                    DisponibilidadeServico.recalcularFisico(conn, parAnterior[0], parAnterior[1]);
+                }
+                conn.commit();
+
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 // --- INÍCIO DA MODIFICAÇÃO (AUDITORIA) ---
                 Integer adminId = null;
@@ -222,9 +247,17 @@ public class EstoqueController {
 
             try (Connection conn = DB.getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql)) {
+                conn.setAutoCommit(false);
+                int[] parAnterior = travarParesDoItem(conn, id, null);
+
                 ps.setInt(1, id);
                 ps.executeUpdate();
 
+                if (parAnterior != null) {
+                    DisponibilidadeServico.recalcularFisico(conn, parAnterior[0], parAnterior[1]);
+                }
+                conn.commit();
+
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 // --- INÍCIO DA MODIFICAÇÃO (AUDITORIA) ---
                 Integer adminId = null;
@@ -243,4 +276,39 @@ public class EstoqueController {
             ctx.status(500).json(Map.of("erro", "Erro ao excluir estoque"));
         }
     }
+
+    /**
+     * Trava os pares de disponibilidade do item (o atual e, se informado, o novo) e depois o próprio item,
+     * nessa ordem (veja DisponibilidadeServico). Se outra edição mudou o par do item entre a leitura e a
+     * trava, repete com o par novo.
+     * @return O par atual do item (já travado), ou null se o item não existir.
+     */
+    private int[] travarParesDoItem(Connection conn, int idEstoque, int[] parNovo) throws SQLException {
+        while (true) {
+            int[] par = buscarParEstoque(conn, idEstoque, false);
+            List<int[]> pares = new ArrayList<>();
+            if (par != null) pares.add(par);
+            if (parNovo != null) pares.add(parNovo);
+            DisponibilidadeServico.travarPares(conn, pares);
+
+            int[] parTravado = buscarParEstoque(conn, idEstoque, true);
+            if (parTravado == null || Arrays.equals(par, parTravado)) {
+                return parTravado;
+            }
+        }
+    }
+
+    /**
+     * Busca o par {id_medicamento, id_ubs} de um item de estoque (travando o item, se pedido).
+     * @return O par, ou null se o item não existir.
+     */
+    private int[] buscarParEstoque(Connection conn, int idEstoque, boolean travar) throws SQLException {
+        String sql = "SELECT id_medicamento, id_ubs FROM estoque WHERE id_estoque = ?" + (travar ? " FOR UPDATE" : "");
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idEstoque);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? new int[] {rs.getInt("id_medicamento"), rs.getInt("id_ubs")} : null;
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,170 @@
+package br.com.medcontrol.controlador;
+
+import br.com.medcontrol.servicos.ExportacaoServico;
+import io.javalin.http.Context;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Controlador para RF09 - Exportação em massa dos relatórios (CSV e arquivo colunar).
+ * O trabalho roda no pool do ExportacaoServico, não nas threads de requisição.
+ */
+public class ExportacaoController {
+
+    private static final DateTimeFormatter FORMATO_NOME_ARQUIVO = DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss");
+
+    /**
+     * Posição de estoque em CSV (opcionalmente gzip).
+     * GET /api/exportacoes/estoque.csv?ubs_id=&gzip=true
+     */
+    public void exportarEstoqueCsv(Context ctx) {
+        exportarCsv(ctx, consultaEstoque(ctx.queryParam("ubs_id")), "estoque");
+    }
+
+    /**
+     * Itens retirados (uma linha por item de retirada) em CSV (opcionalmente gzip).
+     * GET /api/exportacoes/retiradas.csv?inicio=AAAA-MM-DD&fim=AAAA-MM-DD&gzip=true
+     */
+    public void exportarRetiradasCsv(Context ctx) {
+        ExportacaoServico.Consulta consulta;
+        try {
+            consulta = consultaRetiradas(ctx.queryParam("inicio"), ctx.queryParam("fim"));
+        } catch (DateTimeParseException e) {
+            ctx.status(400).json(Map.of("erro", "Datas inválidas. Use o formato AAAA-MM-DD."));
+            return;
+        }
+        exportarCsv(ctx, consulta, "retiradas");
+    }
+
+    /**
+     * Gera, em segundo plano, um arquivo colunar no diretório de exportações.
+     * POST /api/exportacoes/arquivos/{tipo}  (tipo: estoque | retiradas)
+     */
+    public void gerarArquivo(Context ctx) {
+        String tipo = ctx.pathParam("tipo");
+        ExportacaoServico.Consulta consulta;
+        try {
+            if ("estoque".equals(tipo)) {
+                consulta = consultaEstoque(ctx.queryParam("ubs_id"));
+            } else if ("retiradas".equals(tipo)) {
+                consulta = consultaRetiradas(ctx.queryParam("inicio"), ctx.queryParam("fim"));
+            } else {
+                ctx.status(404).json(Map.of("erro", "Tipo de exportação desconhecido: " + tipo));
+                return;
+            }
+        } catch (DateTimeParseException e) {
+            ctx.status(400).json(Map.of("erro", "Datas inválidas. Use o formato AAAA-MM-DD."));
+            return;
+        }
+
+        String nomeArquivo = tipo + "_" + LocalDateTime.now().format(FORMATO_NOME_ARQUIVO) + ".mcol.gz";
+        try {
+            ExportacaoServico.executor().execute(() -> {
+                try {
+                    Path arquivo = ExportacaoServico.escreverColunar(consulta, nomeArquivo);
+                    System.out.println("Exportação concluída: " + arquivo.toAbsolutePath());
+                } catch (Exception e) {
+                    System.err.println("--- FALHA NA EXPORTAÇÃO " + nomeArquivo + " ---");
+                    e.printStackTrace();
+                }
+            });
+            ctx.status(202).json(Map.of("sucesso", true, "arquivo", nomeArquivo));
+        } catch (RejectedExecutionException e) {
+            ctx.status(503).json(Map.of("erro", "Muitas exportações em andamento. Tente novamente mais tarde."));
+        }
+    }
+
+    /**
+     * Lista os arquivos de exportação já concluídos.
+     * GET /api/exportacoes/arquivos
+     */
+    public void listarArquivos(Context ctx) {
+        try {
+            ctx.json(ExportacaoServico.listarArquivos());
+        } catch (Exception e) {
+            e.printStackTrace();
+            ctx.status(500).json(Map.of("erro", "Erro ao listar arquivos de exportação."));
+        }
+    }
+
+    private void exportarCsv(Context ctx, ExportacaoServico.Consulta consulta, String nomeBase) {
+        boolean gzip = "true".equalsIgnoreCase(ctx.queryParam("gzip"));
+        String nomeArquivo = nomeBase + (gzip ? ".csv.gz" : ".csv");
+
+        ctx.contentType(gzip ? "application/gzip" : "text/csv; charset=utf-8");
+        ctx.header("Content-Disposition", "attachment; filename=\"" + nomeArquivo + "\"");
+
+        ctx.future(() -> {
+            try {
+                return CompletableFuture.runAsync(() -> {
+                    try {
+                        // Já comprimido: escreve direto na resposta, sem a compressão do Javalin por cima
+                        OutputStream saida = gzip ? ctx.res().getOutputStream() : ctx.outputStream();
+                        ExportacaoServico.escreverCsv(consulta, saida, gzip);
+                    } catch (Exception e) {
+                        System.err.println("--- FALHA NA EXPORTAÇÃO " + nomeArquivo + " ---");
+                        e.printStackTrace();
+                        if (!ctx.res().isCommitted()) {
+                            ctx.status(500).json(Map.of("erro", "Erro ao exportar " + nomeBase + "."));
+                        }
+                        // Se parte do arquivo já foi enviada, a resposta fica truncada.
+                    }
+                }, ExportacaoServico.executor());
+            } catch (RejectedExecutionException e) {
+                ctx.status(503).json(Map.of("erro", "Muitas exportações em andamento. Tente novamente mais tarde."));
+                return CompletableFuture.completedFuture(null);
+            }
+        });
+    }
+
+    private ExportacaoServico.Consulta consultaEstoque(String ubsId) {
+        StringBuilder sql = new StringBuilder(
+            "SELECT e.id_estoque, u.id_ubs, u.nome AS nome_ubs, m.id_medicamento, m.nome_comercial, m.principio_ativo, " +
+            "e.lote, e.quantidade, e.data_validade, " +
+            "CASE WHEN e.data_validade < CURDATE() THEN 'Vencido' " +
+            "     WHEN e.quantidade < 20 THEN 'Crítico' " +
+            "     WHEN e.quantidade < 50 THEN 'Baixo' ELSE 'OK' END AS status " +
+            "FROM estoque e " +
+            "JOIN medicamentos m ON e.id_medicamento = m.id_medicamento " +
+            "JOIN ubs u ON e.id_ubs = u.id_ubs " +
+            "WHERE m.ativo = TRUE AND u.ativo = TRUE "
+        );
+        List<Object> parametros = new ArrayList<>();
+        if (ubsId != null && !ubsId.isEmpty()) {
+            sql.append("AND u.id_ubs = ? ");
+            parametros.add(Integer.parseInt(ubsId));
+        }
+        sql.append("ORDER BY m.nome_comercial, u.nome, e.data_validade");
+        return new ExportacaoServico.Consulta(sql.toString(), parametros);
+    }
+
+    private ExportacaoServico.Consulta consultaRetiradas(String dataInicio, String dataFim) {
+        StringBuilder sql = new StringBuilder(
+            "SELECT r.id_retirada, r.data_retirada, r.id_ubs, u.nome AS nome_ubs, " +
+            "ir.id_medicamento, m.nome_comercial, ir.id_estoque, ir.quantidade " +
+            "FROM retiradas r " +
+            "JOIN itens_retiradas ir ON r.id_retirada = ir.id_retirada " +
+            "JOIN medicamentos m ON ir.id_medicamento = m.id_medicamento " +
+            "JOIN ubs u ON r.id_ubs = u.id_ubs "
+        );
+        List<Object> parametros = new ArrayList<>();
+        if (dataInicio != null && !dataInicio.isEmpty() && dataFim != null && !dataFim.isEmpty()) {
+            // Faixa aberta no fim, para usar o índice de data_retirada e incluir o dia final inteiro
+            sql.append("WHERE r.data_retirada >= ? AND r.data_retirada < ? ");
+            parametros.add(java.sql.Date.valueOf(LocalDate.parse(dataInicio)));
+            parametros.add(java.sql.Date.valueOf(LocalDate.parse(dataFim).plusDays(1)));
+        }
+        sql.append("ORDER BY r.id_retirada");
+        return new ExportacaoServico.Consulta(sql.toString(), parametros);
+    }
+}
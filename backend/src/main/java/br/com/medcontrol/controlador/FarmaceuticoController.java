@@ -2,6 +2,7 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico;
+import br.com.medcontrol.servicos.CacheNomesEntidades;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
@@ -108,6 +109,7 @@ public class FarmaceuticoController {
                 ps.setInt(4, id);
 
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("farmaceuticos", id);
 
                 Integer adminId = null;
                 try {
@@ -137,6 +139,7 @@ public class FarmaceuticoController {
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("farmaceuticos", id);
 
                 Integer adminId = null;
                 try {
@@ -2,6 +2,10 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico; // <-- ADICIONADO
+import br.com.medcontrol.servicos.CacheNomesEntidades;
+import br.com.medcontrol.servicos.DemandaNaoAtendidaServico;
+import br.com.medcontrol.servicos.IndiceBuscaMedicamentos;
+import br.com.medcontrol.servicos.IndiceGeoUbs;
 import br.com.medcontrol.servicos.LogBuscaServico; // <-- ADICIONADO RF6.3
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -10,13 +14,17 @@ import io.javalin.http.Context;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-// import java.sql.SQLException; // <-- REMOVIDO (Não usado)
+import java.sql.SQLException;
 import java.sql.Statement; // <-- ADICIONADO
 // import java.sql.Types; // <-- REMOVIDO (Não usado)
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class MedicamentoController {
 
@@ -90,6 +98,8 @@ public class MedicamentoController {
                 AuditoriaServico.registrarAcao(adminId, "CRIAR", "medicamentos", novoId, med);
                 // --- Fim Auditoria ---
 
+                IndiceBuscaMedicamentos.indexar(novoId, (String) med.get("nome_comercial"), (String) med.get("principio_ativo"));
+
                 ctx.status(201).json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -121,12 +131,15 @@ public class MedicamentoController {
                 ps.setInt(7, id);
                 
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("medicamentos", id);
 
                 // --- Auditoria ---
                 Integer adminId = (ctx.header("X-User-ID") != null) ? Integer.parseInt(ctx.header("X-User-ID")) : null;
                 AuditoriaServico.registrarAcao(adminId, "ATUALIZAR", "medicamentos", id, med);
                 // --- Fim Auditoria ---
 
+                IndiceBuscaMedicamentos.atualizar(id);
+
                 ctx.json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -152,12 +165,15 @@ public class MedicamentoController {
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("medicamentos", id);
                 
                 // --- Auditoria ---
                 Integer adminId = (ctx.header("X-User-ID") != null) ? Integer.parseInt(ctx.header("X-User-ID")) : null;
                 AuditoriaServico.registrarAcao(adminId, "DESATIVAR", "medicamentos", id, null);
                 // --- Fim Auditoria ---
 
+                IndiceBuscaMedicamentos.remover(id);
+
                 ctx.json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -184,6 +200,7 @@ public class MedicamentoController {
                 ps.setBoolean(1, novoStatus);
                 ps.setInt(2, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("medicamentos", id);
                 
                 // --- Auditoria ---
                 Integer adminId = (ctx.header("X-User-ID") != null) ? Integer.parseInt(ctx.header("X-User-ID")) : null;
@@ -191,6 +208,12 @@ public class MedicamentoController {
                 AuditoriaServico.registrarAcao(adminId, acao, "medicamentos", id, null);
                 // --- Fim Auditoria ---
 
+                if (novoStatus) {
+                    IndiceBuscaMedicamentos.atualizar(id);
+                } else {
+                    IndiceBuscaMedicamentos.remover(id);
+                }
+
                 ctx.json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -199,10 +222,26 @@ public class MedicamentoController {
         }
     }
 
+    // Disponibilidade real (estoque físico - reservas ATIVAS) lida da tabela materializada
+    // disponibilidade_estoque (uma linha por medicamento/UBS), sem agregar estoque e reservas.
+    // O filtro por nome vem do índice em memória (IN por id), e não de LIKE '%termo%'.
+    private static final String SQL_DISPONIBILIDADE =
+            "SELECT d.id_medicamento, u.id_ubs, u.nome, u.endereco, u.latitude, u.longitude, " +
+            "d.total_fisico, d.total_reservado " +
+            "FROM disponibilidade_estoque d " +
+            "JOIN medicamentos m ON d.id_medicamento = m.id_medicamento " +
+            "JOIN ubs u ON d.id_ubs = u.id_ubs " +
+            "WHERE d.total_fisico > 0 AND m.ativo = TRUE AND u.ativo = TRUE AND d.id_medicamento IN (%s) ";
+
+    private static final int K_PADRAO = 10;
+    private static final int K_MAXIMO = 50;
+
     /**
      * ADICIONADO RF6.3 - MODIFICADO PARA INTEGRAR COM RF07
      * Realiza a busca de medicamentos e calcula a disponibilidade real (Estoque - Reservas).
-     * GET /api/medicamentos/search
+     * Com lat e lng, devolve só as k UBS mais próximas com disponibilidade (padrão 10),
+     * ordenadas por distância e com o campo distancia_km; sem elas, todas as UBS por nome.
+     * GET /api/medicamentos/search?nome=&lat=&lng=&k=
      */
     public void buscarMedicamento(Context ctx) {
         String termo = ctx.queryParam("nome");
@@ -214,95 +253,61 @@ public class MedicamentoController {
             return;
         }
 
-        String termoBusca = "%" + termo.trim().toLowerCase() + "%";
-
-        // --- INÍCIO DA MODIFICAÇÃO (LÓGICA RF07) ---
-        // --- INÍCIO DA MODIFICAÇÃO (CORREÇÃO RF06.2 - MAPA) ---
-        // Adicionado u.latitude, u.longitude ao SELECT e GROUP BY para o mapa
-        String sql = "SELECT m.id_medicamento, u.id_ubs, u.nome, u.endereco, u.latitude, u.longitude, " +
-                     "SUM(e.quantidade) AS total_fisico " + // Soma todo o estoque físico
-                     "FROM estoque e " +
-                     "JOIN medicamentos m ON e.id_medicamento = m.id_medicamento " +
-                     "JOIN ubs u ON e.id_ubs = u.id_ubs " +
-                     "WHERE (LOWER(m.nome_comercial) LIKE ? OR LOWER(m.principio_ativo) LIKE ?) " +
-                     "AND e.quantidade > 0 AND m.ativo = TRUE AND u.ativo = TRUE " +
-                     "AND e.data_validade > CURDATE() " + // Boa prática: não busca vencidos
-                     "GROUP BY m.id_medicamento, u.id_ubs, u.nome, u.endereco, u.latitude, u.longitude " + // Coords adicionadas
-                     "ORDER BY u.nome";
-        // --- FIM DA MODIFICAÇÃO (CORREÇÃO RF06.2 - MAPA) ---
-        // --- FIM DA MODIFICAÇÃO (LÓGICA RF07) ---
-
-        Connection conn = null; // Declarar fora para poder usar na subquery de reservas
+        Double latitude = null;
+        Double longitude = null;
+        int k = K_PADRAO;
         try {
-            conn = DB.getConnection(); // Abre a conexão
-            try (PreparedStatement ps = conn.prepareStatement(sql)) {
-                
-                ps.setString(1, termoBusca);
-                ps.setString(2, termoBusca);
-
-                try (ResultSet rs = ps.executeQuery()) {
-                    while (rs.next()) {
-                        long idMed = rs.getLong("id_medicamento");
-                        long idUbs = rs.getLong("id_ubs");
-                        
-                        if (idMedicamentoEncontrado == null) {
-                            idMedicamentoEncontrado = (int) idMed;
-                        }
-
-                        // --- INÍCIO DA LÓGICA DE CÁLCULO (OPÇÃO B - RF07) ---
-                        // 1. Pega o estoque físico que o SQL principal já somou
-                        long totalFisico = rs.getLong("total_fisico"); //
-                        long totalReservado = 0;
-                        
-                        // 2. Prepara uma sub-query para somar o que está reservado (RF07)
-                        String sqlReservas = "SELECT COALESCE(SUM(quantidade_reservada), 0) FROM reservas " +
-                                             "WHERE id_medicamento = ? AND id_ubs = ? AND status = 'ATIVA'"; //
-                        
-                        // Usa a mesma conexão (conn) para a sub-query
-                        try(PreparedStatement psReservas = conn.prepareStatement(sqlReservas)) {
-                            psReservas.setLong(1, idMed);
-                            psReservas.setLong(2, idUbs);
-                            try(ResultSet rsReservas = psReservas.executeQuery()) {
-                                if(rsReservas.next()) {
-                                    totalReservado = rsReservas.getLong(1); //
-                                }
-                            }
-                        }
-                        
-                        // 3. Calcula a disponibilidade real
-                        long disponibilidadeReal = totalFisico - totalReservado; //
-                        // --- FIM DA LÓGICA DE CÁLCULO ---
-                        
-                        // 4. Só adiciona o resultado se houver disponibilidade real
-                        if (disponibilidadeReal > 0) { //
-                            // --- INÍCIO DA MODIFICAÇÃO (CORREÇÃO RF06.2 - MAPA) ---
-                            // Adiciona latitude e longitude ao Map para o frontend
-                            resultados.add(Map.of(
-                                "id_medicamento", idMed, // NOVO: ID do Medicamento (para reservar)
-                                "id_ubs", idUbs,         // NOVO: ID da UBS (para reservar)
-                                "quantidade_disponivel", disponibilidadeReal, // MODIFICADO: Quantidade CALCULADA
-                                "nome", rs.getString("nome"), // Nome da UBS
-                                "endereco", rs.getString("endereco"),
-                                "latitude", rs.getBigDecimal("latitude"), // <-- ADICIONADO
-                                "longitude", rs.getBigDecimal("longitude") // <-- ADICIONADO
-                            ));
-                            // --- FIM DA MODIFICAÇÃO (CORREÇÃO RF06.2 - MAPA) ---
-                        }
-                    }
-                }
+            String latParam = ctx.queryParam("lat");
+            String lngParam = ctx.queryParam("lng");
+            if (latParam != null && !latParam.isEmpty() && lngParam != null && !lngParam.isEmpty()) {
+                latitude = Double.parseDouble(latParam);
+                longitude = Double.parseDouble(lngParam);
+                if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) throw new NumberFormatException();
             }
-            ctx.json(resultados);
+            String kParam = ctx.queryParam("k");
+            if (kParam != null && !kParam.isEmpty()) {
+                k = Math.max(1, Math.min(Integer.parseInt(kParam), K_MAXIMO));
+            }
+        } catch (NumberFormatException e) {
+            ctx.status(400).json(Map.of("erro", "Parâmetros lat, lng ou k inválidos."));
+            return;
+        }
 
+        Set<Integer> idsEncontrados;
+        try {
+            idsEncontrados = IndiceBuscaMedicamentos.buscar(termo);
         } catch (Exception e) {
             e.printStackTrace();
             ctx.status(500).json(Map.of("erro", "Erro ao realizar busca de medicamento."));
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.close(); // Fecha a conexão principal
-                } catch (Exception e) {
-                    e.printStackTrace();
+            return;
+        }
+
+        if (idsEncontrados.isEmpty()) {
+            // Nenhum medicamento com esse nome: não há por que consultar o estoque.
+            ctx.json(resultados);
+            DemandaNaoAtendidaServico.registrar(termo, DemandaNaoAtendidaServico.SEM_CADASTRO,
+                    DemandaNaoAtendidaServico.NENHUM, DemandaNaoAtendidaServico.NENHUM);
+        } else {
+            try (Connection conn = DB.getConnection()) {
+                boolean todasConsultadas;
+                if (latitude == null) {
+                    idMedicamentoEncontrado = consultarDisponibilidade(conn, termo, idsEncontrados, null, resultados);
+                    todasConsultadas = true;
+                } else {
+                    int[] contagem = new int[1];
+                    idMedicamentoEncontrado = buscarMaisProximas(conn, termo, idsEncontrados, latitude, longitude, k, resultados, contagem);
+                    todasConsultadas = contagem[0] >= IndiceGeoUbs.tamanho();
+                }
+                ctx.json(resultados);
+
+                if (idMedicamentoEncontrado == null && todasConsultadas) {
+                    // Sem estoque físico em nenhuma UBS; o medicamento só é identificado se o termo for inequívoco
+                    int idMed = idsEncontrados.size() == 1 ? idsEncontrados.iterator().next() : DemandaNaoAtendidaServico.NENHUM;
+                    DemandaNaoAtendidaServico.registrar(termo, DemandaNaoAtendidaServico.SEM_ESTOQUE, DemandaNaoAtendidaServico.NENHUM, idMed);
                 }
+            } catch (Exception e) {
+                e.printStackTrace();
+                ctx.status(500).json(Map.of("erro", "Erro ao realizar busca de medicamento."));
             }
         }
 
@@ -319,4 +324,116 @@ public class MedicamentoController {
             // A falha no log não deve interromper a busca do usuário.
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Percorre as UBS em ordem de distância (IndiceGeoUbs), consultando a disponibilidade em blocos
+     * crescentes, até reunir k UBS com disponibilidade ou esgotar o índice.
+     * @param consultadas Saída: contagem[0] = quantas UBS foram consultadas.
+     * @return O ID do primeiro medicamento com estoque (para o log de busca), ou null.
+     */
+    private Integer buscarMaisProximas(Connection conn, String termo, Set<Integer> idsMedicamentos, double latitude, double longitude,
+                                       int k, List<Map<String, Object>> resultados, int[] consultadas) throws SQLException {
+        Integer idMedicamentoEncontrado = null;
+        Map<Integer, Double> distancias = new HashMap<>();
+        List<IndiceGeoUbs.UbsProxima> proximas = List.of();
+        int bloco = k * 4;
+
+        while (true) {
+            int jaConsultadas = proximas.size();
+            proximas = IndiceGeoUbs.maisProximas(latitude, longitude, jaConsultadas + bloco);
+            if (proximas.size() <= jaConsultadas) break;
+
+            List<Integer> novasUbs = new ArrayList<>();
+            for (IndiceGeoUbs.UbsProxima ubs : proximas.subList(jaConsultadas, proximas.size())) {
+                distancias.put(ubs.idUbs(), ubs.distanciaKm());
+                novasUbs.add(ubs.idUbs());
+            }
+            Integer encontrado = consultarDisponibilidade(conn, termo, idsMedicamentos, novasUbs, resultados);
+            if (idMedicamentoEncontrado == null) idMedicamentoEncontrado = encontrado;
+
+            long ubsComDisponibilidade = resultados.stream().map(r -> r.get("id_ubs")).distinct().count();
+            if (ubsComDisponibilidade >= k) break;
+            bloco *= 2;
+        }
+        consultadas[0] = proximas.size();
+
+        // Ordena por distância e mantém só as linhas das k UBS mais próximas
+        List<Map<String, Object>> ordenados = new ArrayList<>();
+        for (Map<String, Object> resultado : resultados) {
+            Map<String, Object> comDistancia = new HashMap<>(resultado);
+            double distancia = distancias.get(((Number) resultado.get("id_ubs")).intValue());
+            comDistancia.put("distancia_km", Math.round(distancia * 100) / 100.0);
+            ordenados.add(comDistancia);
+        }
+        ordenados.sort(Comparator.comparingDouble(r -> (Double) r.get("distancia_km")));
+
+        Set<Object> ubsIncluidas = new HashSet<>();
+        resultados.clear();
+        for (Map<String, Object> resultado : ordenados) {
+            if (ubsIncluidas.size() == k && !ubsIncluidas.contains(resultado.get("id_ubs"))) break;
+            ubsIncluidas.add(resultado.get("id_ubs"));
+            resultados.add(resultado);
+        }
+        return idMedicamentoEncontrado;
+    }
+
+    /**
+     * Executa a consulta de disponibilidade para os medicamentos encontrados no índice
+     * e preenche a lista de resultados (apenas UBS com disponibilidade real).
+     * UBS com estoque físico todo reservado contam como demanda não atendida.
+     * @param idsUbs Restringe a consulta a essas UBS (null = todas).
+     * @return O ID do primeiro medicamento com estoque (para o log de busca), ou null.
+     */
+    private Integer consultarDisponibilidade(Connection conn, String termo, Set<Integer> idsMedicamentos, List<Integer> idsUbs,
+                                             List<Map<String, Object>> resultados) throws SQLException {
+        String sql = String.format(SQL_DISPONIBILIDADE, String.join(",", Collections.nCopies(idsMedicamentos.size(), "?")));
+        if (idsUbs != null) {
+            sql += "AND d.id_ubs IN (" + String.join(",", Collections.nCopies(idsUbs.size(), "?")) + ")";
+        } else {
+            sql += "ORDER BY u.nome";
+        }
+
+        Integer idMedicamentoEncontrado = null;
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            int indice = 1;
+            for (Integer id : idsMedicamentos) {
+                ps.setInt(indice++, id);
+            }
+            if (idsUbs != null) {
+                for (Integer id : idsUbs) {
+                    ps.setInt(indice++, id);
+                }
+            }
+
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long idMed = rs.getLong("id_medicamento");
+                    long idUbs = rs.getLong("id_ubs");
+
+                    if (idMedicamentoEncontrado == null) {
+                        idMedicamentoEncontrado = (int) idMed;
+                    }
+
+                    long disponibilidadeReal = rs.getLong("total_fisico") - rs.getLong("total_reservado");
+
+                    // Só adiciona o resultado se houver disponibilidade real
+                    if (disponibilidadeReal <= 0) {
+                        DemandaNaoAtendidaServico.registrar(termo, DemandaNaoAtendidaServico.ESGOTADO_RESERVAS, (int) idUbs, (int) idMed);
+                    } else {
+                        resultados.add(Map.of(
+                            "id_medicamento", idMed, // ID do Medicamento (para reservar)
+                            "id_ubs", idUbs,         // ID da UBS (para reservar)
+                            "quantidade_disponivel", disponibilidadeReal, // Quantidade CALCULADA
+                            "nome", rs.getString("nome"), // Nome da UBS
+                            "endereco", rs.getString("endereco"),
+                            "latitude", rs.getBigDecimal("latitude"),
+                            "longitude", rs.getBigDecimal("longitude")
+                        ));
+                    }
+                }
+            }
+        }
+        return idMedicamentoEncontrado;
+    }
+}
@@ -0,0 +1,62 @@
+package br.com.medcontrol.controlador;
+
+import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.AlocadorReservas;
+import br.com.medcontrol.servicos.ArmazemCodigosVerificacao;
+import br.com.medcontrol.servicos.AuditoriaServico;
+import br.com.medcontrol.servicos.BaseCepLocal;
+import br.com.medcontrol.servicos.CacheNomesEntidades;
+import br.com.medcontrol.servicos.CepServico;
+import br.com.medcontrol.servicos.DemandaNaoAtendidaServico;
+import br.com.medcontrol.servicos.EstatisticasBuscaServico;
+import br.com.medcontrol.servicos.ExpiracaoReservasServico;
+import br.com.medcontrol.servicos.ExportacaoServico;
+import br.com.medcontrol.servicos.FilaEmailServico;
+import br.com.medcontrol.servicos.LogBuscaServico;
+import br.com.medcontrol.servicos.PainelIndicadoresServico;
+import br.com.medcontrol.servicos.ParticionamentoServico;
+import br.com.medcontrol.servicos.SenhaServico;
+import br.com.medcontrol.servicos.TokenServico;
+import io.javalin.http.Context;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Controlador que expõe as métricas internas do backend (pool de conexões, filas, caches).
+ */
+public class MetricasController {
+
+    private final ArmazemCodigosVerificacao codigosVerificacao;
+
+    public MetricasController(ArmazemCodigosVerificacao codigosVerificacao) {
+        this.codigosVerificacao = codigosVerificacao;
+    }
+
+    /**
+     * Retorna um retrato das métricas atuais.
+     * GET /api/metricas
+     */
+    public void obterMetricas(Context ctx) {
+        Map<String, Object> metricas = new LinkedHashMap<>();
+        metricas.put("pool_conexoes", DB.getEstatisticasPool());
+        metricas.put("log_buscas", LogBuscaServico.getEstatisticas());
+        metricas.put("estatisticas_busca", EstatisticasBuscaServico.getEstatisticas());
+        metricas.put("demanda_nao_atendida", DemandaNaoAtendidaServico.getEstatisticas());
+        metricas.put("auditoria", AuditoriaServico.getEstatisticas());
+        metricas.put("cache_nomes", CacheNomesEntidades.getEstatisticas());
+        metricas.put("cep", CepServico.getEstatisticas());
+        metricas.put("base_cep_local", BaseCepLocal.getEstatisticas());
+        metricas.put("fila_emails", FilaEmailServico.getEstatisticas());
+        metricas.put("codigos_verificacao", codigosVerificacao.getEstatisticas());
+        metricas.put("bcrypt", SenhaServico.getEstatisticas());
+        metricas.put("tokens", TokenServico.getEstatisticas());
+        metricas.put("admissao", ControleAdmissao.getEstatisticas());
+        metricas.put("reservas", AlocadorReservas.getEstatisticas());
+        metricas.put("expiracao_reservas", ExpiracaoReservasServico.getEstatisticas());
+        metricas.put("dashboard", PainelIndicadoresServico.getEstatisticas());
+        metricas.put("exportacoes", ExportacaoServico.getEstatisticas());
+        metricas.put("particionamento", ParticionamentoServico.getEstatisticas());
+        ctx.json(metricas);
+    }
+}
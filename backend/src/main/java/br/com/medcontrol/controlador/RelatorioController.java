@@ -1,8 +1,15 @@
 package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
-// Removido ObjectMapper, que não era usado
+import br.com.medcontrol.servicos.CacheNomesEntidades;
+import br.com.medcontrol.servicos.DemandaDiariaServico;
+import br.com.medcontrol.servicos.DemandaNaoAtendidaServico;
+import br.com.medcontrol.servicos.EstatisticasBuscaServico;
+import br.com.medcontrol.servicos.PainelIndicadoresServico;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
+import io.javalin.json.JavalinJackson;
 
 import java.sql.Connection;
 import java.sql.Date;
@@ -10,97 +17,41 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException; // <-- ADICIONADA IMPORTAÇÃO
 import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Controlador para RF09 - Relatórios e Painel de Gestão.
  */
 public class RelatorioController {
 
-    // Removido ObjectMapper, que não era usado
+    // Mesmo ObjectMapper do ctx.json, para o relatório em streaming sair no mesmo formato
+    private static final ObjectMapper mapper = JavalinJackson.defaultMapper();
 
     /**
      * RF09.3 - Retorna os indicadores consolidados para o Dashboard.
+     * Os indicadores vêm do retrato mantido pelo PainelIndicadoresServico; se o cliente já tem
+     * a versão atual (If-None-Match igual ao ETag), responde 304 sem corpo.
      * GET /api/dashboard/indicadores
      */
     public void getIndicadoresDashboard(Context ctx) {
-        Map<String, Object> dashboard = new HashMap<>();
+        try {
+            PainelIndicadoresServico.Retrato retrato = PainelIndicadoresServico.obter();
 
-        try (Connection conn = DB.getConnection()) {
-            
-            // 1. Estoque Crítico (Top 5)
-            String sqlEstoque = "SELECT m.nome_comercial, e.lote, e.data_validade, e.quantidade, u.nome as nome_ubs " +
-                                "FROM estoque e " +
-                                "JOIN medicamentos m ON e.id_medicamento = m.id_medicamento " +
-                                "JOIN ubs u ON e.id_ubs = u.id_ubs " +
-                                "WHERE e.quantidade < 20 AND m.ativo = TRUE " +
-                                "ORDER BY e.quantidade ASC, e.data_validade ASC LIMIT 5";
-            
-            List<Map<String, Object>> estoqueCritico = new ArrayList<>();
-            try (PreparedStatement ps = conn.prepareStatement(sqlEstoque); ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> item = new HashMap<>();
-                    item.put("nome_comercial", rs.getString("nome_comercial"));
-                    item.put("nome_ubs", rs.getString("nome_ubs"));
-                    item.put("lote", rs.getString("lote"));
-                    item.put("quantidade", rs.getInt("quantidade"));
-                    item.put("data_validade", rs.getDate("data_validade"));
-                    estoqueCritico.add(item);
-                }
-            }
-            dashboard.put("estoqueCritico", estoqueCritico);
+            ctx.header("ETag", retrato.etag());
+            ctx.header("Cache-Control", "no-cache");
 
-            // 2. Mais Pesquisados (Top 5) - Depende da RF6.3 (log_buscas)
-            String sqlBuscas = "SELECT termo_buscado, COUNT(*) as total FROM log_buscas " +
-                               "WHERE teve_resultados = true AND data_busca >= CURDATE() - INTERVAL 30 DAY " +
-                               "GROUP BY termo_buscado ORDER BY total DESC LIMIT 5";
-            
-            List<Map<String, Object>> maisPesquisados = new ArrayList<>();
-            try (PreparedStatement ps = conn.prepareStatement(sqlBuscas); ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    maisPesquisados.add(Map.of(
-                        "termo", rs.getString("termo_buscado"),
-                        "total", rs.getInt("total")
-                    ));
-                }
-            } catch (SQLException e) {
-                // Ignora se a tabela log_buscas ainda não existir
-                System.err.println("Aviso: Tabela 'log_buscas' pode não existir. " + e.getMessage());
+            if (retrato.etag().equals(ctx.header("If-None-Match"))) {
+                ctx.status(304);
+                return;
             }
-            dashboard.put("maisPesquisados", maisPesquisados);
 
-            // 3. Projeção de Demanda (Retiradas nos últimos 30 dias) - Depende da RF5.6 (retiradas)
-            
-            // --- INÍCIO DA MODIFICAÇÃO ---
-            // CORREÇÃO: "DATE(data_retirada)" era ambíguo. Trocado para "DATE(r.data_retirada)"
-            // em todas as ocorrências (SELECT, GROUP BY e ORDER BY).
-            String sqlDemanda = "SELECT DATE(r.data_retirada) as dia, COUNT(DISTINCT r.id_retirada) as total_retiradas, SUM(ir.quantidade) as total_itens " +
-                                "FROM retiradas r " +
-                                "JOIN itens_retiradas ir ON r.id_retirada = ir.id_retirada " +
-                                "WHERE r.data_retirada >= CURDATE() - INTERVAL 30 DAY " +
-                                "GROUP BY DATE(r.data_retirada) ORDER BY DATE(r.data_retirada) ASC";
-            // --- FIM DA MODIFICAÇÃO ---
-            
-            List<Map<String, Object>> projecaoDemanda = new ArrayList<>();
-            try (PreparedStatement ps = conn.prepareStatement(sqlDemanda); ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    projecaoDemanda.add(Map.of(
-                        "dia", rs.getString("dia"),
-                        "total_itens", rs.getInt("total_itens")
-                    ));
-                }
-            } catch (SQLException e) {
-                // Ignora se a tabela retiradas ainda não existir
-                System.err.println("Aviso: Tabela 'retiradas' pode não existir. " + e.getMessage());
-                // Adiciona um print do erro específico para facilitar o debug
-                e.printStackTrace();
-            }
-            dashboard.put("projecaoDemanda", projecaoDemanda);
-
-            ctx.json(dashboard);
+            ctx.contentType("application/json").result(retrato.json());
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -108,13 +59,30 @@ public class RelatorioController {
         }
     }
 
+    /**
+     * RF09.3 - Termos mais buscados hoje, em tempo real (resumo em memória, sem consultar o banco).
+     * GET /api/dashboard/mais-pesquisados?k=10
+     */
+    public void getMaisPesquisadosAgora(Context ctx) {
+        int k;
+        try {
+            String kParam = ctx.queryParam("k");
+            k = (kParam != null && !kParam.isEmpty()) ? Math.max(1, Math.min(Integer.parseInt(kParam), 50)) : 10;
+        } catch (NumberFormatException e) {
+            ctx.status(400).json(Map.of("erro", "Parâmetro k inválido."));
+            return;
+        }
+        ctx.json(EstatisticasBuscaServico.maisBuscadosAgora(k));
+    }
+
     /**
      * RF09.1 - Relatório de Posição de Estoque (com status).
+     * As linhas são lidas em blocos (cursor no servidor) e escritas direto na resposta,
+     * sem montar a lista inteira em memória.
      * GET /api/relatorios/estoque
      */
     public void getRelatorioEstoque(Context ctx) {
         String ubsId = ctx.queryParam("ubs_id");
-        List<Map<String, Object>> relatorioEstoque = new ArrayList<>();
         
         StringBuilder sqlBuilder = new StringBuilder(
             "SELECT e.id_estoque, e.quantidade, e.lote, e.data_validade, " +
@@ -130,45 +98,60 @@ public class RelatorioController {
         }
         sqlBuilder.append("ORDER BY m.nome_comercial, u.nome, e.data_validade");
 
+        boolean respostaIniciada = false;
         try (Connection conn = DB.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sqlBuilder.toString())) {
+             PreparedStatement ps = conn.prepareStatement(sqlBuilder.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
             
+            // Integer.MIN_VALUE: o driver do MySQL entrega as linhas uma a uma (streaming), sem
+            // carregar o relatório inteiro na memória. Só esta consulta usa a conexão até o fim.
+            ps.setFetchSize(Integer.MIN_VALUE);
+
             if (ubsId != null && !ubsId.isEmpty()) {
                 ps.setInt(1, Integer.parseInt(ubsId));
             }
 
             try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) {
-                    Map<String, Object> item = new HashMap<>();
-                    item.put("nome_comercial", rs.getString("nome_comercial"));
-                    item.put("principio_ativo", rs.getString("principio_ativo"));
-                    item.put("nome_ubs", rs.getString("nome_ubs"));
-                    item.put("lote", rs.getString("lote"));
-                    item.put("quantidade", rs.getInt("quantidade"));
-                    
-                    Date dataValidade = rs.getDate("data_validade");
-                    item.put("data_validade", dataValidade);
-                    
-                    // Lógica de Status (em Java)
-                    String status;
-                    if (dataValidade != null && dataValidade.toLocalDate().isBefore(LocalDate.now())) {
-                        status = "Vencido";
-                    } else if (rs.getInt("quantidade") < 20) {
-                        status = "Crítico";
-                    } else if (rs.getInt("quantidade") < 50) {
-                        status = "Baixo";
-                    } else {
-                        status = "OK";
+                LocalDate hoje = LocalDate.now();
+
+                ctx.contentType("application/json");
+                respostaIniciada = true;
+                try (JsonGenerator gen = mapper.getFactory().createGenerator(ctx.outputStream())) {
+                    gen.writeStartArray();
+                    while (rs.next()) {
+                        int quantidade = rs.getInt("quantidade");
+                        Date dataValidade = rs.getDate("data_validade");
+
+                        // Lógica de Status (em Java)
+                        String status;
+                        if (dataValidade != null && dataValidade.toLocalDate().isBefore(hoje)) {
+                            status = "Vencido";
+                        } else if (quantidade < 20) {
+                            status = "Crítico";
+                        } else if (quantidade < 50) {
+                            status = "Baixo";
+                        } else {
+                            status = "OK";
+                        }
+
+                        gen.writeStartObject();
+                        gen.writeStringField("nome_comercial", rs.getString("nome_comercial"));
+                        gen.writeStringField("principio_ativo", rs.getString("principio_ativo"));
+                        gen.writeStringField("nome_ubs", rs.getString("nome_ubs"));
+                        gen.writeStringField("lote", rs.getString("lote"));
+                        gen.writeNumberField("quantidade", quantidade);
+                        gen.writeObjectField("data_validade", dataValidade);
+                        gen.writeStringField("status", status);
+                        gen.writeEndObject();
                     }
-                    item.put("status", status);
-                    
-                    relatorioEstoque.add(item);
+                    gen.writeEndArray();
                 }
             }
-            ctx.json(relatorioEstoque);
         } catch (Exception e) {
             e.printStackTrace();
-            ctx.status(500).json(Map.of("erro", "Erro ao gerar relatório de estoque."));
+            if (!respostaIniciada) {
+                ctx.status(500).json(Map.of("erro", "Erro ao gerar relatório de estoque."));
+            }
+            // Se parte do JSON já foi enviada, não há como trocar o status: a resposta fica truncada.
         }
     }
 
@@ -182,28 +165,24 @@ public class RelatorioController {
         
         List<Map<String, Object>> relatorioDemanda = new ArrayList<>();
         
-        // SQL para medicamentos mais retirados
+        // SQL para medicamentos mais retirados, lido da tabela pré-agregada demanda_diaria
+        // (um registro por dia/medicamento/UBS), e não do histórico completo de retiradas
         StringBuilder sqlBuilder = new StringBuilder(
-            // --- INÍCIO DA MODIFICAÇÃO ---
-            "SELECT DATE(r.data_retirada) as dia_retirada, m.nome_comercial, m.principio_ativo, SUM(ir.quantidade) as total_retirado " +
-            // --- FIM DA MODIFICAÇÃO ---
-            "FROM retiradas r " +
-            "JOIN itens_retiradas ir ON r.id_retirada = ir.id_retirada " +
-            "JOIN medicamentos m ON ir.id_medicamento = m.id_medicamento "
+            "SELECT d.dia as dia_retirada, m.nome_comercial, m.principio_ativo, SUM(d.total_retirado) as total_retirado " +
+            "FROM demanda_diaria d " +
+            "JOIN medicamentos m ON d.id_medicamento = m.id_medicamento "
         );
 
         // Tratamento de datas (simplificado)
         List<Object> params = new ArrayList<>();
         if (dataInicio != null && !dataInicio.isEmpty() && dataFim != null && !dataFim.isEmpty()) {
-            sqlBuilder.append("WHERE r.data_retirada BETWEEN ? AND ? ");
+            sqlBuilder.append("WHERE d.dia BETWEEN ? AND ? ");
             params.add(dataInicio);
             params.add(dataFim);
         }
 
-        // --- INÍCIO DA MODIFICAÇÃO ---
-        sqlBuilder.append("GROUP BY DATE(r.data_retirada), m.id_medicamento, m.nome_comercial, m.principio_ativo ");
+        sqlBuilder.append("GROUP BY d.dia, m.id_medicamento, m.nome_comercial, m.principio_ativo ");
         sqlBuilder.append("ORDER BY dia_retirada DESC, total_retirado DESC");
-        // --- FIM DA MODIFICAÇÃO ---
 
         try (Connection conn = DB.getConnection();
              PreparedStatement ps = conn.prepareStatement(sqlBuilder.toString())) {
@@ -227,12 +206,82 @@ public class RelatorioController {
             }
             ctx.json(relatorioDemanda);
         } catch (SQLException e) {
-             // Ignora se as tabelas de retirada não existirem
-             System.err.println("Aviso: Tabelas 'retiradas' podem não existir. " + e.getMessage());
+             // Ignora se a tabela demanda_diaria não existir
+             System.err.println("Aviso: Tabela 'demanda_diaria' pode não existir. " + e.getMessage());
              ctx.json(relatorioDemanda); // Retorna lista vazia
         } catch (Exception e) {
             e.printStackTrace();
             ctx.status(500).json(Map.of("erro", "Erro ao gerar relatório de demanda."));
         }
     }
+
+    /**
+     * RF09 - Demanda não atendida nos últimos 7 dias (buscas sem cadastro, sem estoque ou com o
+     * estoque todo reservado), da maior para a menor, para orientar a reposição.
+     * O ranking já vem pronto do DemandaNaoAtendidaServico; aqui só se acrescentam os nomes.
+     * GET /api/relatorios/demanda-nao-atendida?ubs_id=&limite=20
+     */
+    public void getDemandaNaoAtendida(Context ctx) {
+        Integer idUbs;
+        int limite;
+        try {
+            String ubsParam = ctx.queryParam("ubs_id");
+            idUbs = (ubsParam != null && !ubsParam.isEmpty()) ? Integer.parseInt(ubsParam) : null;
+            String limiteParam = ctx.queryParam("limite");
+            limite = (limiteParam != null && !limiteParam.isEmpty()) ? Math.max(1, Integer.parseInt(limiteParam)) : 20;
+        } catch (NumberFormatException e) {
+            ctx.status(400).json(Map.of("erro", "Parâmetros inválidos."));
+            return;
+        }
+
+        List<Map<String, Object>> ranking = DemandaNaoAtendidaServico.maisDemandados(idUbs, limite);
+
+        Set<Integer> idsUbs = new HashSet<>();
+        Set<Integer> idsMedicamentos = new HashSet<>();
+        for (Map<String, Object> item : ranking) {
+            if (item.get("id_ubs") != null) idsUbs.add((Integer) item.get("id_ubs"));
+            if (item.get("id_medicamento") != null) idsMedicamentos.add((Integer) item.get("id_medicamento"));
+        }
+
+        try (Connection conn = DB.getConnection()) {
+            Map<Integer, String> nomesUbs = CacheNomesEntidades.buscarNomes(conn, "ubs", idsUbs);
+            Map<Integer, String> nomesMedicamentos = CacheNomesEntidades.buscarNomes(conn, "medicamentos", idsMedicamentos);
+
+            List<Map<String, Object>> resposta = new ArrayList<>();
+            for (Map<String, Object> item : ranking) {
+                Map<String, Object> linha = new LinkedHashMap<>(item);
+                linha.put("nome_ubs", nomesUbs.get(item.get("id_ubs")));
+                linha.put("nome_medicamento", nomesMedicamentos.get(item.get("id_medicamento")));
+                resposta.add(linha);
+            }
+            ctx.json(resposta);
+        } catch (Exception e) {
+            e.printStackTrace();
+            ctx.status(500).json(Map.of("erro", "Erro ao gerar relatório de demanda não atendida."));
+        }
+    }
+
+    /**
+     * RF09.2 - Reconstrói a tabela demanda_diaria a partir do histórico de retiradas.
+     * Sem parâmetros, reconstrói todo o histórico; com inicio/fim (YYYY-MM-DD), só o intervalo.
+     * POST /api/relatorios/demanda/reconstruir
+     */
+    public void reconstruirDemanda(Context ctx) {
+        String dataInicio = ctx.queryParam("inicio");
+        String dataFim = ctx.queryParam("fim");
+        try {
+            int linhas;
+            if (dataInicio != null && !dataInicio.isEmpty() && dataFim != null && !dataFim.isEmpty()) {
+                linhas = DemandaDiariaServico.reconstruir(LocalDate.parse(dataInicio), LocalDate.parse(dataFim));
+            } else {
+                linhas = DemandaDiariaServico.reconstruirTudo();
+            }
+            ctx.json(Map.of("sucesso", true, "linhas", linhas));
+        } catch (DateTimeParseException e) {
+            ctx.status(400).json(Map.of("erro", "Datas inválidas. Use o formato AAAA-MM-DD."));
+        } catch (Exception e) {
+            e.printStackTrace();
+            ctx.status(500).json(Map.of("erro", "Erro ao reconstruir demanda diária."));
+        }
+    }
 }
\ No newline at end of file
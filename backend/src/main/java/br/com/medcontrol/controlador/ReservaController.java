@@ -1,6 +1,9 @@
 package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.AlocadorReservas;
+import br.com.medcontrol.servicos.DisponibilidadeServico;
+import br.com.medcontrol.servicos.ExpiracaoReservasServico;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
@@ -14,6 +17,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeoutException;
 import java.sql.SQLException; // Importação que faltava
 // ADICIONADO: Import necessário para obter o ID da reserva (comprovante)
 import java.sql.Statement; 
@@ -43,79 +47,65 @@ public class ReservaController {
             
             LocalDateTime dataHoraReserva = LocalDateTime.parse((String) req.get("dataHoraReserva"));
 
-            conn = DB.getConnection();
-            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
-            
-            // Inicia a transação
-            conn.setAutoCommit(false); 
-
-            // 1. CALCULAR DISPONIBILIDADE REAL (LÓGICA DA "Opção B")
-            // Esta lógica é a mesma usada pelo MedicamentoController e garante que
-            // o estoque físico (estoque.quantidade) não seja tocado.
-            
-            // 1a. Busca o estoque FÍSICO total
-            long totalFisico = 0;
-            String sqlEstoque = "SELECT COALESCE(SUM(quantidade), 0) FROM estoque " +
-                                "WHERE id_medicamento = ? AND id_ubs = ? AND quantidade > 0 AND data_validade > CURDATE()";
-            try (PreparedStatement ps = conn.prepareStatement(sqlEstoque)) {
-                ps.setInt(1, idMedicamento);
-                ps.setInt(2, idUbs);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) totalFisico = rs.getLong(1);
-                }
+            if (quantidadePedida <= 0) {
+                ctx.status(400).json(Map.of("message", "A quantidade reservada deve ser maior que zero."));
+                return;
             }
 
-            // 1b. Busca o total já RESERVADO (ATIVO)
-            long totalReservado = 0;
-            String sqlReservas = "SELECT COALESCE(SUM(quantidade_reservada), 0) FROM reservas " +
-                                 "WHERE id_medicamento = ? AND id_ubs = ? AND status = 'ATIVA'";
-            try (PreparedStatement ps = conn.prepareStatement(sqlReservas)) {
-                ps.setInt(1, idMedicamento);
-                ps.setInt(2, idUbs);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) totalReservado = rs.getLong(1);
-                }
-            }
+            int idReservaGerada = -1;
+            Map<String, Object> reservaCriada = new HashMap<>();
 
-            // 1c. Calcula a disponibilidade real
-            long disponibilidadeReal = totalFisico - totalReservado;
+            // A trava do par (medicamento, UBS) cobre a transação inteira, até o commit
+            AlocadorReservas.Trava trava = AlocadorReservas.travar(idMedicamento, idUbs);
+            try {
+                conn = DB.getConnection();
+                if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
 
-            // 2. VALIDAR
-            if (quantidadePedida > disponibilidadeReal) {
-                conn.rollback();
-                ctx.status(400).json(Map.of("message", "Quantidade indisponível. Disponível: " + disponibilidadeReal)); 
-                return;
-            }
+                // Inicia a transação
+                conn.setAutoCommit(false);
 
-            // 3. INSERIR A RESERVA
-            String sqlInsert = "INSERT INTO reservas (id_usuario, id_medicamento, id_ubs, quantidade_reservada, data_hora_reserva, status) " +
-                               "VALUES (?, ?, ?, ?, ?, 'ATIVA')";
+                // 1. VALIDAR E RESERVAR (Estoque Físico - Reservas Ativas)
+                // UPDATE condicional na tabela disponibilidade_estoque: só reserva se ainda houver
+                // quantidade disponível, mesmo com outros backends reservando ao mesmo tempo.
+                if (!AlocadorReservas.admitir(conn, idMedicamento, idUbs, quantidadePedida)) {
+                    conn.rollback();
+                    long disponibilidadeReal = DisponibilidadeServico.consultarDisponivel(conn, idMedicamento, idUbs);
+                    ctx.status(400).json(Map.of("message", "Quantidade indisponível. Disponível: " + Math.max(disponibilidadeReal, 0)));
+                    return;
+                }
 
-            // --- INÍCIO DA MODIFICAÇÃO (Comprovante Digital RF07.1) ---
-            int idReservaGerada = -1;
-            Map<String, Object> reservaCriada = new HashMap<>();
+                // 2. INSERIR A RESERVA
+                String sqlInsert = "INSERT INTO reservas (id_usuario, id_medicamento, id_ubs, quantidade_reservada, data_hora_reserva, status) " +
+                                   "VALUES (?, ?, ?, ?, ?, 'ATIVA')";
 
-            // Prepara o statement para retornar o ID gerado (Statement.RETURN_GENERATED_KEYS)
-            try (PreparedStatement ps = conn.prepareStatement(sqlInsert, Statement.RETURN_GENERATED_KEYS)) {
-                ps.setInt(1, idUsuario);
-                ps.setInt(2, idMedicamento);
-                ps.setInt(3, idUbs);
-                ps.setInt(4, quantidadePedida);
-                ps.setTimestamp(5, Timestamp.valueOf(dataHoraReserva));
-                ps.executeUpdate();
+                // --- INÍCIO DA MODIFICAÇÃO (Comprovante Digital RF07.1) ---
+                // Prepara o statement para retornar o ID gerado (Statement.RETURN_GENERATED_KEYS)
+                try (PreparedStatement ps = conn.prepareStatement(sqlInsert, Statement.RETURN_GENERATED_KEYS)) {
+                    ps.setInt(1, idUsuario);
+                    ps.setInt(2, idMedicamento);
+                    ps.setInt(3, idUbs);
+                    ps.setInt(4, quantidadePedida);
+                    ps.setTimestamp(5, Timestamp.valueOf(dataHoraReserva));
+                    ps.executeUpdate();
 
-                // Obtém o ID gerado (nosso "código de confirmação")
-                try (ResultSet rs = ps.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        idReservaGerada = rs.getInt(1);
-                    } else {
-                        throw new SQLException("Falha ao obter o ID da reserva gerada.");
+                    // Obtém o ID gerado (nosso "código de confirmação")
+                    try (ResultSet rs = ps.getGeneratedKeys()) {
+                        if (rs.next()) {
+                            idReservaGerada = rs.getInt(1);
+                        } else {
+                            throw new SQLException("Falha ao obter o ID da reserva gerada.");
+                        }
                     }
                 }
+                // --- FIM DA MODIFICAÇÃO ---
+
+                conn.commit(); // Confirma a transação
+            } finally {
+                trava.liberar();
             }
-            // --- FIM DA MODIFICAÇÃO ---
 
-            conn.commit(); // Confirma a transação
+            // Agenda a expiração automática caso a reserva não seja retirada (RF07.5)
+            ExpiracaoReservasServico.agendar(idReservaGerada, dataHoraReserva);
 
             // --- INÍCIO DA MODIFICAÇÃO (Comprovante Digital RF07.1) ---
             // Monta o objeto de retorno (o comprovante) para o frontend
@@ -131,6 +121,8 @@ public class ReservaController {
             ctx.status(201).json(Map.of("sucesso", true, "reserva", reservaCriada));
             // --- FIM DA MODIFICAÇÃO ---
 
+        } catch (TimeoutException e) {
+            ctx.status(503).json(Map.of("message", e.getMessage()));
         } catch (Exception e) {
             if (conn != null) try { conn.rollback(); } catch (SQLException ex) { ex.printStackTrace(); }
             e.printStackTrace();
@@ -145,28 +137,54 @@ public class ReservaController {
      * Atualiza o status de uma reserva 'ATIVA' para 'CANCELADA'.
      */
     public void cancelarReserva(Context ctx) {
+        Connection conn = null;
         try {
             Integer idReserva = Integer.parseInt(ctx.pathParam("id"));
             Integer idUsuario = Integer.parseInt(ctx.header("X-User-ID"));
 
+            conn = DB.getConnection();
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+
+            // Trava a reserva para saber o par (medicamento, UBS) e a quantidade a devolver.
+            String sqlBusca = "SELECT id_medicamento, id_ubs, quantidade_reservada FROM reservas " +
+                              "WHERE id_reserva = ? AND id_usuario = ? AND status = 'ATIVA' FOR UPDATE";
+            int idMedicamento;
+            int idUbs;
+            int quantidade;
+            try (PreparedStatement ps = conn.prepareStatement(sqlBusca)) {
+                ps.setInt(1, idReserva);
+                ps.setInt(2, idUsuario);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        conn.rollback();
+                        ctx.status(404).json(Map.of("erro", "Reserva não encontrada ou já não estava ativa."));
+                        return;
+                    }
+                    idMedicamento = rs.getInt("id_medicamento");
+                    idUbs = rs.getInt("id_ubs");
+                    quantidade = rs.getInt("quantidade_reservada");
+                }
+            }
+
             String sql = "UPDATE reservas SET status = 'CANCELADA' " +
                          "WHERE id_reserva = ? AND id_usuario = ? AND status = 'ATIVA'";
-            
-            try (Connection conn = DB.getConnection(); PreparedStatement ps = conn.prepareStatement(sql)) {
+            try (PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, idReserva);
                 ps.setInt(2, idUsuario);
-                
-                int rowsAffected = ps.executeUpdate();
-                
-                if (rowsAffected > 0) {
-                    ctx.status(200).json(Map.of("sucesso", true, "message", "Reserva cancelada."));
-                } else {
-                    ctx.status(404).json(Map.of("erro", "Reserva não encontrada ou já não estava ativa."));
-                }
+                ps.executeUpdate();
             }
+
+            DisponibilidadeServico.ajustarReservado(conn, idMedicamento, idUbs, -quantidade);
+
+            conn.commit();
+            ctx.status(200).json(Map.of("sucesso", true, "message", "Reserva cancelada."));
         } catch (Exception e) {
+            if (conn != null) try { conn.rollback(); } catch (SQLException ex) { ex.printStackTrace(); }
             e.printStackTrace();
             ctx.status(500).json(Map.of("erro", "Erro ao cancelar reserva: " + e.getMessage()));
+        } finally {
+            if (conn != null) try { conn.setAutoCommit(true); conn.close(); } catch (SQLException e) { e.printStackTrace(); }
         }
     }
 
@@ -231,6 +249,7 @@ public class ReservaController {
                 int rowsAffected = ps.executeUpdate();
                 
                 if (rowsAffected > 0) {
+                    ExpiracaoReservasServico.agendar(idReserva, novaDataHora);
                     ctx.status(200).json(Map.of("sucesso", true, "message", "Reserva reagendada."));
                 } else {
                     ctx.status(404).json(Map.of("erro", "Reserva não encontrada ou não está ativa."));
@@ -2,6 +2,8 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico;
+import br.com.medcontrol.servicos.DemandaDiariaServico;
+import br.com.medcontrol.servicos.DisponibilidadeServico;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
@@ -11,6 +13,8 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -78,10 +82,20 @@ public class RetiradaController {
                 }
             }
 
+            // Trava os pares (medicamento, UBS) antes de tocar no estoque; ordem em DisponibilidadeServico
+            List<int[]> pares = new ArrayList<>();
+            for (Map<String, Object> item : itens) {
+                pares.add(new int[] {(Integer) item.get("id_medicamento"), idUbs});
+            }
+            DisponibilidadeServico.travarPares(conn, pares);
+
             // Passos 2 e 3: Inserir itens e Atualizar estoque
             String sqlItens = "INSERT INTO itens_retiradas (id_retirada, id_medicamento, id_estoque, quantidade) VALUES (?, ?, ?, ?)";
-            String sqlEstoque = "UPDATE estoque SET quantidade = quantidade - ? WHERE id_estoque = ? AND quantidade >= ?";
-            
+            // O lote precisa ser do medicamento e da UBS informados: foram esses os pares travados
+            String sqlEstoque = "UPDATE estoque SET quantidade = quantidade - ? " +
+                                "WHERE id_estoque = ? AND id_medicamento = ? AND id_ubs = ? AND quantidade >= ?";
+            Map<Integer, Integer> quantidadePorMedicamento = new LinkedHashMap<>();
+
             try (PreparedStatement psItens = conn.prepareStatement(sqlItens);
                  PreparedStatement psEstoque = conn.prepareStatement(sqlEstoque)) {
 
@@ -100,8 +114,12 @@ public class RetiradaController {
                     // Adiciona ao batch de 'estoque'
                     psEstoque.setInt(1, quantidade);
                     psEstoque.setInt(2, idEstoque);
-                    psEstoque.setInt(3, quantidade); // Garante que há estoque suficiente
+                    psEstoque.setInt(3, idMedicamento);
+                    psEstoque.setInt(4, idUbs);
+                    psEstoque.setInt(5, quantidade); // Garante que há estoque suficiente
                     psEstoque.addBatch();
+
+                    quantidadePorMedicamento.merge(idMedicamento, quantidade, Integer::sum);
                 }
 
                 psItens.executeBatch();
@@ -115,10 +133,16 @@ public class RetiradaController {
                 }
             }
             
-            // Passo 4: Commit
+            // Passo 4: Atualiza a disponibilidade materializada e a demanda diária dos medicamentos retirados
+            for (Integer idMedicamento : quantidadePorMedicamento.keySet()) {
+                DisponibilidadeServico.recalcularFisico(conn, idMedicamento, idUbs);
+            }
+            DemandaDiariaServico.registrarRetirada(conn, idUbs, quantidadePorMedicamento);
+
+            // Passo 5: Commit
             conn.commit();
             
-            // Passo 5: Auditoria (fora da transação principal)
+            // Passo 6: Auditoria (fora da transação principal)
             if (idRetiradaGerada != -1) {
                 AuditoriaServico.registrarAcao(adminId, "REGISTRAR_RETIRADA", "retiradas", idRetiradaGerada, req);
             }
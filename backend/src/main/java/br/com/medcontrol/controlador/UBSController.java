@@ -2,6 +2,8 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico; // <-- ADICIONADO
+import br.com.medcontrol.servicos.CacheNomesEntidades;
+import br.com.medcontrol.servicos.IndiceGeoUbs;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context;
@@ -127,6 +129,8 @@ public class UBSController {
                 AuditoriaServico.registrarAcao(adminId, "CRIAR", "ubs", novoId, ubs); // MODIFICADO
                 // --- FIM DA AUDITORIA ---    
 
+                IndiceGeoUbs.atualizar(novoId);
+
                 ctx.status(201).json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -159,6 +163,7 @@ public class UBSController {
                 ps.setInt(8, id);
 
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("ubs", id);
 
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 // --- INÍCIO DA MODIFICAÇÃO (AUDITORIA) ---
@@ -171,6 +176,8 @@ public class UBSController {
                 AuditoriaServico.registrarAcao(adminId, "ATUALIZAR", "ubs", id, ubs); // MODIFICADO
                 // --- FIM DA AUDITORIA ---
 
+                IndiceGeoUbs.atualizar(id);
+
                 ctx.json(Map.of("sucesso", true));
             }
         } catch (Exception e) {
@@ -192,6 +199,7 @@ public class UBSController {
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("ubs", id);
 
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 // --- INÍCIO DA MODIFICAÇÃO (AUDITORIA) ---
@@ -203,6 +211,8 @@ public class UBSController {
 
                 AuditoriaServico.registrarAcao(adminId, "DESATIVAR", "ubs", id, null); // MODIFICADO
                 // --- FIM DA AUDITORIA ---
+
+                IndiceGeoUbs.remover(id);
                 
                 ctx.json(Map.of("sucesso", true));
             }
@@ -2,11 +2,13 @@ package br.com.medcontrol.controlador;
 
 import br.com.medcontrol.db.DB;
 import br.com.medcontrol.servicos.AuditoriaServico; // <-- ADICIONADO RF08
+import br.com.medcontrol.servicos.CacheNomesEntidades;
+import br.com.medcontrol.servicos.SenhaServico;
+import br.com.medcontrol.servicos.TokenServico;
 // REMOVIDO: import br.com.medcontrol.servicos.CepServico; 
 import com.fasterxml.jackson.core.type.TypeReference; 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import io.javalin.http.Context; // <-- IMPORT NECESSÁRIO
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 
 import java.sql.Connection;
 import java.sql.Date;
@@ -23,7 +25,6 @@ import java.util.Map;
 public class UsuarioController {
 
     private final ObjectMapper mapper = new ObjectMapper();
-    private final BCryptPasswordEncoder passwordEncoder = new BCryptPasswordEncoder();
     
     // MODIFICADO: Construtor padrão
     public UsuarioController() {
@@ -42,6 +43,17 @@ public class UsuarioController {
 
         try (Connection conn = DB.getConnection();
              PreparedStatement ps = conn.prepareStatement(sql)) {
+
+            // Perfil atual, para derrubar as sessões se ele mudar (o token carrega o perfil)
+            String perfilAnterior = null;
+            if (user.get("perfil") != null) {
+                try (PreparedStatement psPerfil = conn.prepareStatement("SELECT perfil FROM usuarios WHERE id = ?")) {
+                    psPerfil.setInt(1, id);
+                    try (ResultSet rs = psPerfil.executeQuery()) {
+                        if (rs.next()) perfilAnterior = rs.getString("perfil");
+                    }
+                }
+            }
             
             ps.setString(1, (String) user.get("nome"));
             ps.setString(2, (String) user.get("email"));
@@ -73,6 +85,10 @@ public class UsuarioController {
                 ps.setInt(10, id);
             }
             ps.executeUpdate();
+            CacheNomesEntidades.invalidar("usuarios", id);
+            if (perfilAnterior != null && !perfilAnterior.equals(user.get("perfil"))) {
+                TokenServico.revogar(id);
+            }
         }
     }
 
@@ -92,8 +108,8 @@ public class UsuarioController {
                 try (ResultSet rs = psSelect.executeQuery()) {
                     if (rs.next()) {
                         String senhaHash = rs.getString("senha");
-                        if (passwordEncoder.matches(senhaAtual, senhaHash)) {
-                            String novaSenhaHash = passwordEncoder.encode(novaSenha);
+                        if (SenhaServico.conferir(senhaAtual, senhaHash)) {
+                            String novaSenhaHash = SenhaServico.gerarHash(novaSenha);
                             String sqlUpdate = "UPDATE usuarios SET senha = ? WHERE id = ?";
                             try (PreparedStatement psUpdate = conn.prepareStatement(sqlUpdate)) {
                                 psUpdate.setString(1, novaSenhaHash);
@@ -149,10 +165,35 @@ public class UsuarioController {
         }
     }
 
+    /**
+     * Pacientes ativos (id, nome e CPF/CNS), para a tela de validação e retirada da equipe.
+     */
+    public void listarPacientes(Context ctx) {
+        List<Map<String, Object>> pacientes = new ArrayList<>();
+        String sql = "SELECT id, nome, cpf_cns FROM usuarios WHERE perfil = 'usuario' AND ativo = TRUE ORDER BY nome";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+
+            while (rs.next()) {
+                Map<String, Object> paciente = new HashMap<>();
+                paciente.put("id", rs.getInt("id"));
+                paciente.put("nome", rs.getString("nome"));
+                paciente.put("cpf_cns", rs.getString("cpf_cns"));
+                pacientes.add(paciente);
+            }
+            ctx.json(pacientes);
+        } catch (Exception e) {
+            System.err.println("Erro ao buscar pacientes: " + e.getMessage());
+            ctx.status(500).json(Map.of("error", "Erro ao buscar pacientes"));
+        }
+    }
+
     public void atualizar(Context ctx) {
         try {
             int id = Integer.parseInt(ctx.pathParam("id"));
             Map<String, Object> userObj = mapper.readValue(ctx.body(), new TypeReference<Map<String, Object>>() {});
+            ControleAcesso.removerCamposDeAdmin(ctx, userObj);
             
             // Passa o Map<String, Object> original
             internalUpdate(id, userObj);
@@ -180,12 +221,21 @@ public class UsuarioController {
         try {
             int id = Integer.parseInt(ctx.pathParam("id"));
             Map<String, Boolean> status = mapper.readValue(ctx.body(), new TypeReference<Map<String, Boolean>>() {});
+            // Na própria conta, quem não é admin só pode desativar
+            if (!Boolean.FALSE.equals(status.get("ativo")) && !ControleAcesso.ehAdmin(ctx)) {
+                ctx.status(403).json(Map.of("success", false, "message", "Acesso negado."));
+                return;
+            }
             String sql = "UPDATE usuarios SET ativo = ? WHERE id = ?";
              try (Connection conn = DB.getConnection();
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setBoolean(1, status.get("ativo"));
                 ps.setInt(2, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("usuarios", id);
+                if (!status.get("ativo")) {
+                    TokenServico.revogar(id); // Derruba as sessões abertas do usuário desativado
+                }
 
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 Integer adminId = null;
@@ -211,6 +261,8 @@ public class UsuarioController {
                  PreparedStatement ps = conn.prepareStatement(sql)) {
                 ps.setInt(1, id);
                 ps.executeUpdate();
+                CacheNomesEntidades.invalidar("usuarios", id);
+                TokenServico.revogar(id);
 
                 // --- INÍCIO DA AUDITORIA RF08.4 ---
                 Integer adminId = null;
@@ -230,11 +282,12 @@ public class UsuarioController {
     public void verificarSenhaAdmin(Context ctx) {
         try {
             Map<String, Object> req = mapper.readValue(ctx.body(), new TypeReference<Map<String, Object>>() {});
-            Integer userId = (Integer) req.get("adminId"); 
+            // Confere sempre a senha do usuário da sessão; o adminId do corpo é ignorado
+            Integer userId = ControleAcesso.idUsuario(ctx);
             String password = (String) req.get("password");
 
             if (userId == null || password == null) {
-                ctx.status(400).json(Map.of("success", false, "message", "ID do usuário e senha são obrigatórios."));
+                ctx.status(400).json(Map.of("success", false, "message", "Senha é obrigatória."));
                 return;
             }
 
@@ -245,7 +298,7 @@ public class UsuarioController {
                 try (ResultSet rs = ps.executeQuery()) {
                     if (rs.next()) {
                         String senhaHash = rs.getString("senha");
-                        if (passwordEncoder.matches(password, senhaHash)) {
+                        if (SenhaServico.conferir(password, senhaHash)) {
                             ctx.json(Map.of("success", true));
                         } else {
                             ctx.status(401).json(Map.of("success", false, "message", "Senha incorreta."));
@@ -1,8 +1,8 @@
 package br.com.medcontrol.db;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -14,40 +14,54 @@ public class DB {
     private static final String HOST = "localhost";
     private static final String PORT = "3306";
     private static final String DATABASE = "medcontrol_db";
-    private static final String USER = "root";
-    private static final String PASSWORD = "SUA-SENHA"; // Mantenha sua senha
-    private static final String URL = String.format("jdbc:mysql://%s:%s/%s", HOST, PORT, DATABASE);
+    // medcontrol.db.url / .usuario / .senha substituem os valores abaixo (os testes usam um H2 em memória)
+    private static final String USER = System.getProperty("medcontrol.db.usuario", "root");
+    private static final String PASSWORD = System.getProperty("medcontrol.db.senha", "SUA-SENHA"); // Mantenha sua senha
+    private static final String URL = System.getProperty("medcontrol.db.url", String.format("jdbc:mysql://%s:%s/%s", HOST, PORT, DATABASE));
 
-    // --- REMOVA A CONEXÃO ESTÁTICA ---
-    // private static Connection conn = null; // <-- REMOVA ESTA LINHA
+    // Pool compartilhado por todos os controladores e serviços.
+    private static final PoolConexoes POOL;
 
-    /**
-     * Obtém uma NOVA conexão com o banco de dados.
-     * @return Uma nova instância de Connection ou null em caso de falha.
-     */
-    public static Connection getConnection() {
+    static {
         try {
-            // 1. Carrega o driver
+            // Carrega o driver uma única vez
             Class.forName("com.mysql.cj.jdbc.Driver");
-            
-            // 2. Cria e retorna uma NOVA conexão
-            Connection newConn = DriverManager.getConnection(URL, USER, PASSWORD);
-            
-            // Opcional: logar que uma nova conexão foi criada (pode ser removido em produção)
-            logger.info("Nova conexão com o banco de dados estabelecida.");
-            
-            return newConn;
-
         } catch (ClassNotFoundException e) {
             logger.error("Driver JDBC do MySQL não encontrado.", e);
+        }
+        POOL = new PoolConexoes(URL, USER, PASSWORD);
+    }
+
+    /**
+     * Obtém uma conexão do pool. Chamar close() na conexão a devolve ao pool,
+     * então o try-with-resources dos controladores continua funcionando sem alterações.
+     * @return Uma conexão pronta para uso ou null em caso de falha.
+     */
+    public static Connection getConnection() {
+        try {
+            return POOL.obter();
         } catch (SQLException e) {
-            logger.error("Erro ao conectar com o banco de dados.", e);
+            logger.error("Erro ao obter conexão com o banco de dados.", e);
         }
-        
-        // Retorna null se a criação da conexão falhar
+
+        // Retorna null se não for possível obter a conexão
         return null;
     }
 
+    /**
+     * Métricas do pool de conexões (ativas, ociosas, em espera, latência de aquisição).
+     */
+    public static Map<String, Object> getEstatisticasPool() {
+        return POOL.getEstatisticas();
+    }
+
+    /**
+     * Fecha as conexões ociosas do pool. Usado no desligamento do servidor.
+     */
+    public static void encerrar() {
+        POOL.encerrar();
+    }
+
     /**
      * Este método não é mais necessário, pois o try-with-resources
      * em cada controlador já fecha a conexão individual.
@@ -0,0 +1,323 @@
+package br.com.medcontrol.db;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool de conexões limitado usado por {@link DB#getConnection()}.
+ * As conexões entregues são proxies: chamar close() devolve a conexão física ao pool
+ * em vez de encerrá-la, então o try-with-resources dos controladores continua válido.
+ */
+public class PoolConexoes {
+
+    private static final Logger logger = LoggerFactory.getLogger(PoolConexoes.class);
+
+    // Limites (em ms) das faixas do histograma de latência de aquisição. A última faixa é "acima de".
+    private static final long[] FAIXAS_LATENCIA_MS = {1, 5, 10, 50, 100, 500, 1000, 5000};
+
+    private final String url;
+    private final String usuario;
+    private final String senha;
+
+    private final int tamanhoMaximo;
+    private final int minimoOciosas;
+    private final long timeoutAquisicaoMs;
+    private final long tempoOciosoMaximoMs;
+    private final long tempoVidaMaximoMs;
+    private final long validarAposOciosoMs;
+    private final int timeoutValidacaoSeg;
+
+    private final Semaphore permissoes;
+    // Usada como pilha (LIFO): a conexão mais recente é reaproveitada primeiro e as antigas envelhecem até a remoção.
+    private final Deque<ConexaoFisica> ociosas = new ConcurrentLinkedDeque<>();
+    private final ScheduledExecutorService manutencao;
+
+    // --- MÉTRICAS ---
+    private final AtomicInteger ativas = new AtomicInteger();
+    private final AtomicLong aquisicoes = new AtomicLong();
+    private final AtomicLong timeoutsAquisicao = new AtomicLong();
+    private final AtomicLong conexoesCriadas = new AtomicLong();
+    private final AtomicLong conexoesDescartadas = new AtomicLong();
+    private final AtomicLong latenciaTotalNanos = new AtomicLong();
+    private final AtomicLongArray histogramaLatencia = new AtomicLongArray(FAIXAS_LATENCIA_MS.length + 1);
+
+    // Conexão física mantida pelo pool, com os instantes usados para expiração
+    // e o estado padrão da sessão, restaurado quando um chamador o altera.
+    private static class ConexaoFisica {
+        final Connection conexao;
+        final long criadaEm;
+        volatile long ultimoUsoEm;
+        final int isolamentoPadrao;
+        final boolean somenteLeituraPadrao;
+        final String catalogoPadrao;
+        volatile boolean estadoAlterado;
+
+        ConexaoFisica(Connection conexao) throws SQLException {
+            this.conexao = conexao;
+            this.criadaEm = System.currentTimeMillis();
+            this.ultimoUsoEm = this.criadaEm;
+            this.isolamentoPadrao = conexao.getTransactionIsolation();
+            this.somenteLeituraPadrao = conexao.isReadOnly();
+            this.catalogoPadrao = conexao.getCatalog();
+        }
+    }
+
+    public PoolConexoes(String url, String usuario, String senha) {
+        this.url = url;
+        this.usuario = usuario;
+        this.senha = senha;
+
+        this.tamanhoMaximo = Integer.getInteger("medcontrol.db.pool.tamanhoMaximo", 10);
+        this.minimoOciosas = Integer.getInteger("medcontrol.db.pool.minimoOciosas", 2);
+        this.timeoutAquisicaoMs = Long.getLong("medcontrol.db.pool.timeoutAquisicaoMs", 5_000L);
+        this.tempoOciosoMaximoMs = Long.getLong("medcontrol.db.pool.tempoOciosoMaximoMs", 10 * 60_000L);
+        this.tempoVidaMaximoMs = Long.getLong("medcontrol.db.pool.tempoVidaMaximoMs", 30 * 60_000L);
+        this.validarAposOciosoMs = Long.getLong("medcontrol.db.pool.validarAposOciosoMs", 1_000L);
+        this.timeoutValidacaoSeg = Integer.getInteger("medcontrol.db.pool.timeoutValidacaoSeg", 2);
+
+        this.permissoes = new Semaphore(tamanhoMaximo, true);
+
+        this.manutencao = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "pool-conexoes-manutencao");
+            t.setDaemon(true);
+            return t;
+        });
+        this.manutencao.scheduleWithFixedDelay(this::removerExpiradas, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Obtém uma conexão do pool, aguardando no máximo o timeout de aquisição.
+     * @return Um proxy de Connection cujo close() devolve a conexão ao pool.
+     * @throws SQLException Se o tempo de espera esgotar ou a conexão não puder ser criada.
+     */
+    public Connection obter() throws SQLException {
+        long inicio = System.nanoTime();
+        try {
+            if (!permissoes.tryAcquire(timeoutAquisicaoMs, TimeUnit.MILLISECONDS)) {
+                timeoutsAquisicao.incrementAndGet();
+                throw new SQLException("Tempo esgotado aguardando conexão livre no pool (" + timeoutAquisicaoMs + " ms).");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrompido aguardando conexão do pool.", e);
+        }
+
+        ConexaoFisica fisica;
+        try {
+            fisica = reaproveitarOuCriar();
+        } catch (SQLException | RuntimeException e) {
+            permissoes.release();
+            throw e;
+        }
+
+        ativas.incrementAndGet();
+        aquisicoes.incrementAndGet();
+        registrarLatencia(System.nanoTime() - inicio);
+        return criarProxy(fisica);
+    }
+
+    private ConexaoFisica reaproveitarOuCriar() throws SQLException {
+        ConexaoFisica candidata;
+        while ((candidata = ociosas.pollFirst()) != null) {
+            long agora = System.currentTimeMillis();
+            if (agora - candidata.criadaEm > tempoVidaMaximoMs) {
+                descartar(candidata);
+                continue;
+            }
+            // Só paga o round trip de validação se a conexão ficou parada por algum tempo.
+            if (agora - candidata.ultimoUsoEm > validarAposOciosoMs && !estaValida(candidata)) {
+                descartar(candidata);
+                continue;
+            }
+            return candidata;
+        }
+
+        Connection nova = DriverManager.getConnection(url, usuario, senha);
+        conexoesCriadas.incrementAndGet();
+        logger.debug("Nova conexão física com o banco de dados estabelecida.");
+        try {
+            return new ConexaoFisica(nova);
+        } catch (SQLException e) {
+            nova.close();
+            throw e;
+        }
+    }
+
+    private boolean estaValida(ConexaoFisica fisica) {
+        try {
+            return fisica.conexao.isValid(timeoutValidacaoSeg);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Devolve a conexão ao pool, restaurando o estado padrão (auto-commit, isolamento,
+     * somente leitura e catálogo) se necessário.
+     */
+    private void devolver(ConexaoFisica fisica) {
+        ativas.decrementAndGet();
+        try {
+            boolean reutilizavel = !fisica.conexao.isClosed()
+                    && System.currentTimeMillis() - fisica.criadaEm <= tempoVidaMaximoMs;
+            if (reutilizavel && !fisica.conexao.getAutoCommit()) {
+                // Transação deixada aberta pelo chamador: desfaz antes de reutilizar.
+                fisica.conexao.rollback();
+                fisica.conexao.setAutoCommit(true);
+            }
+            if (reutilizavel && fisica.estadoAlterado) {
+                fisica.conexao.setTransactionIsolation(fisica.isolamentoPadrao);
+                fisica.conexao.setReadOnly(fisica.somenteLeituraPadrao);
+                if (fisica.catalogoPadrao != null) {
+                    fisica.conexao.setCatalog(fisica.catalogoPadrao);
+                }
+                fisica.estadoAlterado = false;
+            }
+            if (reutilizavel) {
+                fisica.ultimoUsoEm = System.currentTimeMillis();
+                ociosas.offerFirst(fisica);
+            } else {
+                descartar(fisica);
+            }
+        } catch (SQLException e) {
+            logger.warn("Conexão descartada ao ser devolvida ao pool: {}", e.getMessage());
+            descartar(fisica);
+        } finally {
+            permissoes.release();
+        }
+    }
+
+    private void descartar(ConexaoFisica fisica) {
+        conexoesDescartadas.incrementAndGet();
+        try {
+            fisica.conexao.close();
+        } catch (SQLException e) {
+            logger.debug("Falha ao fechar conexão descartada: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Tarefa de manutenção: remove conexões ociosas há muito tempo (mantendo o mínimo)
+     * e as que ultrapassaram o tempo de vida máximo.
+     */
+    private void removerExpiradas() {
+        long agora = System.currentTimeMillis();
+        for (ConexaoFisica fisica : ociosas) {
+            boolean vidaEsgotada = agora - fisica.criadaEm > tempoVidaMaximoMs;
+            boolean ociosaDemais = agora - fisica.ultimoUsoEm > tempoOciosoMaximoMs && ociosas.size() > minimoOciosas;
+            // removeFirstOccurrence garante que a conexão não foi emprestada nesse meio tempo.
+            if ((vidaEsgotada || ociosaDemais) && ociosas.removeFirstOccurrence(fisica)) {
+                descartar(fisica);
+            }
+        }
+    }
+
+    private Connection criarProxy(ConexaoFisica fisica) {
+        AtomicBoolean devolvida = new AtomicBoolean(false);
+        return (Connection) Proxy.newProxyInstance(
+                Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                (proxy, metodo, args) -> {
+                    switch (metodo.getName()) {
+                        case "close":
+                            if (devolvida.compareAndSet(false, true)) {
+                                devolver(fisica);
+                            }
+                            return null;
+                        case "isClosed":
+                            return devolvida.get() || fisica.conexao.isClosed();
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return "ConexaoPool[" + fisica.conexao + "]";
+                        // A conexão física nunca sai do pool: quem a recebesse poderia fechá-la ou retê-la.
+                        case "unwrap":
+                            if (((Class<?>) args[0]).isInstance(proxy)) {
+                                return proxy;
+                            }
+                            throw new SQLException("A conexão do pool não expõe " + ((Class<?>) args[0]).getName() + ".");
+                        case "isWrapperFor":
+                            return ((Class<?>) args[0]).isInstance(proxy);
+                        default:
+                            if (devolvida.get()) {
+                                throw new SQLException("Conexão já foi devolvida ao pool.");
+                            }
+                            switch (metodo.getName()) {
+                                case "setTransactionIsolation", "setReadOnly", "setCatalog", "setSchema" -> fisica.estadoAlterado = true;
+                                default -> { }
+                            }
+                            try {
+                                return metodo.invoke(fisica.conexao, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                    }
+                });
+    }
+
+    private void registrarLatencia(long nanos) {
+        latenciaTotalNanos.addAndGet(nanos);
+        long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int faixa = 0;
+        while (faixa < FAIXAS_LATENCIA_MS.length && ms > FAIXAS_LATENCIA_MS[faixa]) {
+            faixa++;
+        }
+        histogramaLatencia.incrementAndGet(faixa);
+    }
+
+    /**
+     * Retorna um retrato das métricas do pool (ativas, ociosas, em espera, latência de aquisição).
+     */
+    public Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("tamanho_maximo", tamanhoMaximo);
+        estatisticas.put("ativas", ativas.get());
+        estatisticas.put("ociosas", ociosas.size());
+        estatisticas.put("aguardando", permissoes.getQueueLength());
+        estatisticas.put("aquisicoes", aquisicoes.get());
+        estatisticas.put("timeouts_aquisicao", timeoutsAquisicao.get());
+        estatisticas.put("conexoes_criadas", conexoesCriadas.get());
+        estatisticas.put("conexoes_descartadas", conexoesDescartadas.get());
+
+        long total = aquisicoes.get();
+        estatisticas.put("latencia_media_aquisicao_ms", total == 0 ? 0.0 : latenciaTotalNanos.get() / 1_000_000.0 / total);
+
+        Map<String, Long> histograma = new LinkedHashMap<>();
+        for (int i = 0; i < FAIXAS_LATENCIA_MS.length; i++) {
+            histograma.put("<=" + FAIXAS_LATENCIA_MS[i] + "ms", histogramaLatencia.get(i));
+        }
+        histograma.put(">" + FAIXAS_LATENCIA_MS[FAIXAS_LATENCIA_MS.length - 1] + "ms", histogramaLatencia.get(FAIXAS_LATENCIA_MS.length));
+        estatisticas.put("histograma_latencia_aquisicao", histograma);
+        return estatisticas;
+    }
+
+    /**
+     * Encerra a manutenção e fecha todas as conexões ociosas.
+     */
+    public void encerrar() {
+        manutencao.shutdownNow();
+        ConexaoFisica fisica;
+        while ((fisica = ociosas.pollFirst()) != null) {
+            descartar(fisica);
+        }
+    }
+}
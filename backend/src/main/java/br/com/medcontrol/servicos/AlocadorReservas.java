@@ -0,0 +1,96 @@
+package br.com.medcontrol.servicos;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * RF07.1 - Admissão de reservas sob concorrência.
+ *
+ * Dentro de um backend, as reservas de um mesmo par (medicamento, UBS) entram uma de cada vez
+ * por meio de travas particionadas (listras): pedidos de pares diferentes não disputam a mesma
+ * trava, e pedidos do mesmo par esperam aqui em vez de se acumularem na trava de linha do banco.
+ * A correção entre vários backends vem do UPDATE condicional em DisponibilidadeServico.reservar,
+ * que depende de total_fisico estar em dia (DisponibilidadeServico.recalcularFisico trava a linha
+ * do par antes de somar o estoque).
+ */
+public class AlocadorReservas {
+
+    private static final int NUMERO_LISTRAS = Integer.getInteger("medcontrol.reservas.listras", 64);
+    private static final long TIMEOUT_TRAVA_MS = Long.getLong("medcontrol.reservas.timeoutTravaMs", 2_000L);
+
+    private static final ReentrantLock[] listras = new ReentrantLock[NUMERO_LISTRAS];
+
+    static {
+        for (int i = 0; i < NUMERO_LISTRAS; i++) {
+            listras[i] = new ReentrantLock(true);
+        }
+    }
+
+    private static final AtomicLong admitidas = new AtomicLong();
+    private static final AtomicLong recusadas = new AtomicLong();
+    private static final AtomicLong timeoutsTrava = new AtomicLong();
+
+    /**
+     * Trava de um par (medicamento, UBS); liberar() deve ser chamado num finally.
+     */
+    public static final class Trava {
+        private final ReentrantLock lock;
+
+        private Trava(ReentrantLock lock) {
+            this.lock = lock;
+        }
+
+        public void liberar() {
+            lock.unlock();
+        }
+    }
+
+    private AlocadorReservas() {
+    }
+
+    /**
+     * Obtém a trava do par. Deve envolver toda a transação da reserva, até o commit.
+     * @throws TimeoutException se a trava não for obtida dentro do limite configurado.
+     */
+    public static Trava travar(int idMedicamento, int idUbs) throws TimeoutException, InterruptedException {
+        ReentrantLock lock = listras[Math.floorMod(31 * idMedicamento + idUbs, NUMERO_LISTRAS)];
+        if (!lock.tryLock(TIMEOUT_TRAVA_MS, TimeUnit.MILLISECONDS)) {
+            timeoutsTrava.incrementAndGet();
+            throw new TimeoutException("Muitas reservas simultâneas para este medicamento. Tente novamente.");
+        }
+        return new Trava(lock);
+    }
+
+    /**
+     * Tenta reservar a quantidade na transação do chamador.
+     * @return true se admitida; false se não há disponibilidade suficiente.
+     */
+    public static boolean admitir(Connection conn, int idMedicamento, int idUbs, int quantidade) throws SQLException {
+        boolean admitida = DisponibilidadeServico.reservar(conn, idMedicamento, idUbs, quantidade);
+        (admitida ? admitidas : recusadas).incrementAndGet();
+        return admitida;
+    }
+
+    /**
+     * Contadores de admissão de reservas.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("listras", NUMERO_LISTRAS);
+        estatisticas.put("admitidas", admitidas.get());
+        estatisticas.put("recusadas_sem_estoque", recusadas.get());
+        estatisticas.put("timeouts_trava", timeoutsTrava.get());
+        int aguardando = 0;
+        for (ReentrantLock lock : listras) {
+            aguardando += lock.getQueueLength();
+        }
+        estatisticas.put("aguardando", aguardando);
+        return estatisticas;
+    }
+}
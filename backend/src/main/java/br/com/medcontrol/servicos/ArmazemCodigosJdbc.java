@@ -0,0 +1,151 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Armazém de códigos de verificação na tabela codigos_verificacao, compartilhado entre os servidores.
+ * Os códigos vencidos são apagados a cada minuto; até lá, a consulta já os ignora pelo expira_em.
+ */
+public class ArmazemCodigosJdbc implements ArmazemCodigosVerificacao {
+
+    private final AtomicLong emitidos = new AtomicLong();
+    private final AtomicLong verificacoesValidas = new AtomicLong();
+    private final AtomicLong verificacoesInvalidas = new AtomicLong();
+    private final AtomicLong descartadosPorTentativas = new AtomicLong();
+    private final AtomicLong expirados = new AtomicLong();
+
+    public ArmazemCodigosJdbc() {
+        ScheduledExecutorService limpeza = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "codigos-verificacao-limpeza");
+            t.setDaemon(true);
+            return t;
+        });
+        limpeza.scheduleWithFixedDelay(this::apagarVencidos, 1, 1, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void guardar(String email, String codigo) throws SQLException {
+        String sql = "INSERT INTO codigos_verificacao (email, codigo, expira_em, tentativas) " +
+                     "VALUES (?, ?, NOW() + INTERVAL ? MINUTE, 0) " +
+                     "ON DUPLICATE KEY UPDATE codigo = VALUES(codigo), expira_em = VALUES(expira_em), tentativas = 0";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, email);
+            ps.setString(2, codigo);
+            ps.setLong(3, TTL_MINUTOS);
+            ps.executeUpdate();
+        }
+        emitidos.incrementAndGet();
+    }
+
+    /**
+     * Cada verificação primeiro gasta uma tentativa (UPDATE condicional, atômico no banco) e só depois
+     * compara o código, na mesma transação. Assim, palpites simultâneos não passam de MAX_TENTATIVAS.
+     */
+    @Override
+    public boolean verificar(String email, String codigo) throws SQLException {
+        if (email == null || codigo == null) {
+            verificacoesInvalidas.incrementAndGet();
+            return false;
+        }
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+            try {
+                int reservadas;
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "UPDATE codigos_verificacao SET tentativas = tentativas + 1 " +
+                        "WHERE email = ? AND expira_em > NOW() AND tentativas < ?")) {
+                    ps.setString(1, email);
+                    ps.setInt(2, MAX_TENTATIVAS);
+                    reservadas = ps.executeUpdate();
+                }
+                // Sem código, vencido ou sem tentativas restantes
+                if (reservadas == 0) {
+                    conn.commit();
+                    verificacoesInvalidas.incrementAndGet();
+                    return false;
+                }
+
+                // A linha está travada pelo UPDATE até o commit: o código lido é o da tentativa gasta
+                String codigoGuardado;
+                int tentativas;
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "SELECT codigo, tentativas FROM codigos_verificacao WHERE email = ?")) {
+                    ps.setString(1, email);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        rs.next();
+                        codigoGuardado = rs.getString(1);
+                        tentativas = rs.getInt(2);
+                    }
+                }
+
+                if (MessageDigest.isEqual(codigoGuardado.getBytes(StandardCharsets.UTF_8), codigo.getBytes(StandardCharsets.UTF_8))) {
+                    conn.commit();
+                    verificacoesValidas.incrementAndGet();
+                    return true;
+                }
+
+                verificacoesInvalidas.incrementAndGet();
+                if (tentativas >= MAX_TENTATIVAS) {
+                    try (PreparedStatement ps = conn.prepareStatement("DELETE FROM codigos_verificacao WHERE email = ?")) {
+                        ps.setString(1, email);
+                        ps.executeUpdate();
+                    }
+                    descartadosPorTentativas.incrementAndGet();
+                }
+                conn.commit();
+                return false;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    @Override
+    public void remover(String email) throws SQLException {
+        if (email == null) return;
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement("DELETE FROM codigos_verificacao WHERE email = ?")) {
+            ps.setString(1, email);
+            ps.executeUpdate();
+        }
+    }
+
+    private void apagarVencidos() {
+        try (Connection conn = DB.getConnection();
+             Statement st = conn.createStatement()) {
+            expirados.addAndGet(st.executeUpdate("DELETE FROM codigos_verificacao WHERE expira_em <= NOW()"));
+        } catch (Exception e) {
+            System.err.println("Falha ao apagar códigos de verificação vencidos: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("armazem", "jdbc");
+        estatisticas.put("emitidos", emitidos.get());
+        estatisticas.put("verificacoes_validas", verificacoesValidas.get());
+        estatisticas.put("verificacoes_invalidas", verificacoesInvalidas.get());
+        estatisticas.put("descartados_por_tentativas", descartadosPorTentativas.get());
+        estatisticas.put("expirados", expirados.get());
+        return estatisticas;
+    }
+}
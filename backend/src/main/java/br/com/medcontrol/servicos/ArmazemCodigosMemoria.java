@@ -0,0 +1,173 @@
+package br.com.medcontrol.servicos;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Armazém de códigos de verificação em memória, com capacidade limitada.
+ *
+ * A expiração usa uma roda de tempo: uma posição por segundo, cobrindo todo o TTL. Cada código entra
+ * na posição do segundo em que vence e uma thread avança a roda a cada segundo, descartando os códigos
+ * vencidos daquela posição (custo proporcional ao que expira, sem varrer o mapa). Com o armazém cheio,
+ * um código novo desloca o que está mais perto de expirar.
+ */
+public class ArmazemCodigosMemoria implements ArmazemCodigosVerificacao {
+
+    private static final int CAPACIDADE = Integer.getInteger("medcontrol.codigos.capacidade", 100_000);
+    private static final long TICK_MS = 1_000L;
+
+    private static final class Entrada {
+        final String codigo;
+        final long expiraEm;
+        final AtomicInteger tentativas = new AtomicInteger();
+
+        Entrada(String codigo, long expiraEm) {
+            this.codigo = codigo;
+            this.expiraEm = expiraEm;
+        }
+    }
+
+    private final Map<String, Entrada> entradas = new ConcurrentHashMap<>();
+    // Roda de tempo: posição (expiraEm / TICK_MS) % roda.length -> e-mails cujo código vence naquele segundo
+    private final Set<String>[] roda;
+    // Próximo segundo (em ticks desde a época) ainda não processado; só a thread da roda altera
+    private volatile long proximoTick;
+
+    private final AtomicLong emitidos = new AtomicLong();
+    private final AtomicLong verificacoesValidas = new AtomicLong();
+    private final AtomicLong verificacoesInvalidas = new AtomicLong();
+    private final AtomicLong descartadosPorTentativas = new AtomicLong();
+    private final AtomicLong expirados = new AtomicLong();
+    private final AtomicLong deslocadosPorCapacidade = new AtomicLong();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ArmazemCodigosMemoria() {
+        // +2: o segundo atual e o segundo parcial do fim do TTL
+        int tamanho = (int) (TimeUnit.MINUTES.toMillis(TTL_MINUTOS) / TICK_MS) + 2;
+        roda = new Set[tamanho];
+        for (int i = 0; i < tamanho; i++) {
+            roda[i] = ConcurrentHashMap.newKeySet();
+        }
+        proximoTick = System.currentTimeMillis() / TICK_MS;
+
+        ScheduledExecutorService relogio = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "codigos-verificacao-expiracao");
+            t.setDaemon(true);
+            return t;
+        });
+        relogio.scheduleAtFixedRate(this::avancarRoda, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void guardar(String email, String codigo) {
+        long expiraEm = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(TTL_MINUTOS);
+        if (!entradas.containsKey(email) && entradas.size() >= CAPACIDADE) {
+            deslocarMaisProximoDeExpirar();
+        }
+        entradas.put(email, new Entrada(codigo, expiraEm));
+        roda[posicao(expiraEm / TICK_MS)].add(email);
+        emitidos.incrementAndGet();
+    }
+
+    @Override
+    public boolean verificar(String email, String codigo) {
+        Entrada entrada = email != null ? entradas.get(email) : null;
+        if (entrada == null || codigo == null) {
+            verificacoesInvalidas.incrementAndGet();
+            return false;
+        }
+        if (entrada.expiraEm <= System.currentTimeMillis()) {
+            // Venceu mas a roda ainda não passou por ele
+            if (entradas.remove(email, entrada)) expirados.incrementAndGet();
+            verificacoesInvalidas.incrementAndGet();
+            return false;
+        }
+        if (MessageDigest.isEqual(entrada.codigo.getBytes(StandardCharsets.UTF_8), codigo.getBytes(StandardCharsets.UTF_8))) {
+            verificacoesValidas.incrementAndGet();
+            return true;
+        }
+        verificacoesInvalidas.incrementAndGet();
+        if (entrada.tentativas.incrementAndGet() >= MAX_TENTATIVAS && entradas.remove(email, entrada)) {
+            descartadosPorTentativas.incrementAndGet();
+        }
+        return false;
+    }
+
+    @Override
+    public void remover(String email) {
+        if (email != null) entradas.remove(email);
+    }
+
+    /**
+     * Processa as posições da roda cujos segundos já terminaram.
+     */
+    private void avancarRoda() {
+        try {
+            long agora = System.currentTimeMillis();
+            long tickAtual = agora / TICK_MS;
+            long tick = Math.max(proximoTick, tickAtual - roda.length); // atraso maior que uma volta: uma volta basta
+            for (; tick < tickAtual; tick++) {
+                Set<String> posicao = roda[posicao(tick)];
+                for (String email : posicao) {
+                    Entrada entrada = entradas.get(email);
+                    if (entrada == null) {
+                        posicao.remove(email);
+                    } else if (entrada.expiraEm <= agora) {
+                        if (entradas.remove(email, entrada)) expirados.incrementAndGet();
+                        posicao.remove(email);
+                    } else if (posicao(entrada.expiraEm / TICK_MS) != posicao(tick)) {
+                        posicao.remove(email); // Código reemitido: já está na posição do novo vencimento
+                    }
+                }
+            }
+            proximoTick = tickAtual;
+        } catch (Exception e) {
+            System.err.println("Falha ao expirar códigos de verificação: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Descarta o código que vence primeiro, percorrendo a roda a partir do segundo atual.
+     */
+    private void deslocarMaisProximoDeExpirar() {
+        long inicio = proximoTick;
+        for (int i = 0; i < roda.length; i++) {
+            int atual = posicao(inicio + i);
+            for (String email : roda[atual]) {
+                Entrada entrada = entradas.get(email);
+                if (entrada != null && posicao(entrada.expiraEm / TICK_MS) == atual && entradas.remove(email, entrada)) {
+                    deslocadosPorCapacidade.incrementAndGet();
+                    return;
+                }
+            }
+        }
+    }
+
+    private int posicao(long tick) {
+        return (int) (tick % roda.length);
+    }
+
+    @Override
+    public Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("armazem", "memoria");
+        estatisticas.put("codigos_vigentes", entradas.size());
+        estatisticas.put("capacidade", CAPACIDADE);
+        estatisticas.put("emitidos", emitidos.get());
+        estatisticas.put("verificacoes_validas", verificacoesValidas.get());
+        estatisticas.put("verificacoes_invalidas", verificacoesInvalidas.get());
+        estatisticas.put("descartados_por_tentativas", descartadosPorTentativas.get());
+        estatisticas.put("expirados", expirados.get());
+        estatisticas.put("deslocados_por_capacidade", deslocadosPorCapacidade.get());
+        return estatisticas;
+    }
+}
@@ -0,0 +1,47 @@
+package br.com.medcontrol.servicos;
+
+import java.util.Map;
+
+/**
+ * Armazena os códigos de verificação enviados por e-mail (cadastro, recuperação de senha, alteração de e-mail).
+ *
+ * Cada e-mail tem no máximo um código vigente, que expira após TTL_MINUTOS e é invalidado depois de
+ * MAX_TENTATIVAS códigos errados. A implementação em memória serve a um único servidor; com vários
+ * servidores atrás de um balanceador, use a implementação JDBC (-Dmedcontrol.codigos.armazem=jdbc)
+ * para que um código emitido por um nó possa ser validado por outro.
+ */
+public interface ArmazemCodigosVerificacao {
+
+    long TTL_MINUTOS = Long.getLong("medcontrol.codigos.ttlMinutos", 2L);
+    int MAX_TENTATIVAS = Integer.getInteger("medcontrol.codigos.maxTentativas", 5);
+
+    /**
+     * Guarda um novo código para o e-mail, substituindo o anterior e zerando as tentativas.
+     */
+    void guardar(String email, String codigo) throws Exception;
+
+    /**
+     * Confere o código informado. Um código errado conta uma tentativa; ao atingir MAX_TENTATIVAS,
+     * o código é descartado e o usuário precisa pedir outro.
+     * @return true se o código confere e ainda não expirou.
+     */
+    boolean verificar(String email, String codigo) throws Exception;
+
+    /**
+     * Descarta o código do e-mail (depois de usado).
+     */
+    void remover(String email) throws Exception;
+
+    /**
+     * Contadores do armazém.
+     */
+    Map<String, Object> getEstatisticas();
+
+    /**
+     * Cria o armazém configurado em medcontrol.codigos.armazem ("memoria", o padrão, ou "jdbc").
+     */
+    static ArmazemCodigosVerificacao criar() {
+        String tipo = System.getProperty("medcontrol.codigos.armazem", "memoria");
+        return "jdbc".equalsIgnoreCase(tipo) ? new ArmazemCodigosJdbc() : new ArmazemCodigosMemoria();
+    }
+}
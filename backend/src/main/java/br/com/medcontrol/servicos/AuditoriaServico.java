@@ -4,74 +4,55 @@ import br.com.medcontrol.db.DB; // Importa a classe DB
 import com.fasterxml.jackson.databind.ObjectMapper;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
-import java.sql.ResultSet; // <-- ADICIONADO
+import java.sql.SQLException;
 import java.sql.Types;
-import java.util.ArrayList; // <-- ADICIONADO
-import java.util.HashMap; // <-- ADICIONADO
-import java.util.List; // <-- ADICIONADO
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RF08.4 - Serviço para registrar logs de auditoria no banco de dados.
+ * Os controladores apenas enfileiram o evento; uma thread de fundo enriquece os nomes
+ * em lote (uma consulta IN por tabela) e grava as linhas de auditoria em INSERTs de várias linhas.
  */
 public class AuditoriaServico {
 
     private static final ObjectMapper mapper = new ObjectMapper();
 
-    /**
-     * Busca o nome de uma entidade em outra tabela para enriquecer o log.
-     * @param tabela Tabela (ex: "usuarios", "ubs")
-     * @param id O ID a ser buscado
-     * @return O nome encontrado ou "ID: {id}" como fallback.
-     */
-    private static String getNome(String tabela, Integer id) {
-        if (id == null) return "N/A";
-        
-        String sql;
-        String nameColumn;
-
-        // Define a consulta SQL com base na tabela
-        switch (tabela) {
-            case "usuarios":
-                sql = "SELECT nome FROM usuarios WHERE id = ?";
-                nameColumn = "nome";
-                break;
-            case "ubs":
-                sql = "SELECT nome FROM ubs WHERE id_ubs = ?";
-                nameColumn = "nome";
-                break;
-            case "medicamentos":
-                sql = "SELECT nome_comercial FROM medicamentos WHERE id_medicamento = ?";
-                nameColumn = "nome_comercial";
-                break;
-            case "farmaceuticos":
-                sql = "SELECT nome FROM farmaceuticos WHERE id_farmaceutico = ?";
-                nameColumn = "nome";
-                break;
-            default:
-                return "ID: " + id;
-        }
+    private record EventoAuditoria(Integer idUsuario, String acao, String tabelaAfetada, int registroId, Map<String, Object> detalhes) {}
 
-        // Este helper abre sua própria conexão para buscar o nome
-        try (Connection conn = DB.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            
-            ps.setInt(1, id);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getString(nameColumn);
-                }
-            }
-        } catch (Exception e) {
-            System.err.println("Erro no helper de auditoria (getNome): " + e.getMessage());
-        }
-        return "ID: " + id; // Fallback se não encontrar
-    }
+    private static final int CAPACIDADE_FILA = Integer.getInteger("medcontrol.auditoria.capacidadeFila", 5_000);
+    private static final int TAMANHO_LOTE = Integer.getInteger("medcontrol.auditoria.tamanhoLote", 100);
+    private static final long INTERVALO_GRAVACAO_MS = Long.getLong("medcontrol.auditoria.intervaloMs", 500L);
+
+    private static final BlockingQueue<EventoAuditoria> fila = new ArrayBlockingQueue<>(CAPACIDADE_FILA);
 
+    private static final AtomicLong enfileirados = new AtomicLong();
+    private static final AtomicLong gravados = new AtomicLong();
+    private static final AtomicLong gravadosSincronamente = new AtomicLong();
+    private static final AtomicLong falhasGravacao = new AtomicLong();
+
+    private static volatile boolean encerrando = false;
+    private static final Thread escritor = new Thread(AuditoriaServico::executarEscritor, "auditoria-escritor");
+
+    static {
+        escritor.setDaemon(true);
+        escritor.start();
+    }
 
     /**
      * Registra uma ação administrativa na tabela de auditoria.
      * Este método é estático para ser facilmente chamado de qualquer controlador.
+     * A gravação é assíncrona: o chamador só paga pelo enfileiramento.
      * @param idUsuario O ID do usuário (admin) realizando a ação. Pode ser nulo.
      * @param acao A ação realizada (ex: "CRIAR", "ATUALIZAR", "EXCLUIR").
      * @param tabelaAfetada O nome da tabela que sofreu a ação (ex: "usuarios", "ubs").
@@ -79,122 +60,288 @@ public class AuditoriaServico {
      * @param detalhesObj Um Map (geralmente o corpo da requisição) contendo os detalhes do que foi alterado.
      */
     public static void registrarAcao(Integer idUsuario, String acao, String tabelaAfetada, int registroId, Map<String, Object> detalhesObj) {
-        
-        String sql = "INSERT INTO auditoria (id_usuario, acao, tabela_afetada, registro_id, detalhes) VALUES (?, ?, ?, ?, ?)";
-        
-        String detalhesJson = null;
-        if (detalhesObj != null) {
+        // Copia os detalhes: o chamador pode continuar usando o Map original
+        Map<String, Object> detalhes = (detalhesObj != null) ? new HashMap<>(detalhesObj) : null;
+        EventoAuditoria evento = new EventoAuditoria(idUsuario, acao, tabelaAfetada, registroId, detalhes);
+
+        if (fila.offer(evento)) {
+            enfileirados.incrementAndGet();
+        } else {
+            // Fila cheia: a auditoria não pode ser perdida, então grava no próprio thread (contrapressão).
+            gravadosSincronamente.incrementAndGet();
+            processarLote(List.of(evento));
+        }
+    }
+
+    /**
+     * Laço da thread de fundo: processa quando o lote enche ou quando o intervalo vence.
+     */
+    private static void executarEscritor() {
+        List<EventoAuditoria> lote = new ArrayList<>(TAMANHO_LOTE);
+        while (!encerrando || !fila.isEmpty()) {
             try {
-                // --- INÍCIO DA MODIFICAÇÃO (Enriquecer Detalhes) ---
-                // Criar uma cópia para não modificar o objeto original
-                Map<String, Object> detalhesEnriquecidos = new HashMap<>(detalhesObj);
+                EventoAuditoria primeiro = fila.poll(INTERVALO_GRAVACAO_MS, TimeUnit.MILLISECONDS);
+                if (primeiro == null) continue;
+                lote.add(primeiro);
 
-                // Remove dados sensíveis
-                detalhesEnriquecidos.remove("senha");
-                detalhesEnriquecidos.remove("codigoVerificacao");
+                long prazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INTERVALO_GRAVACAO_MS);
+                while (lote.size() < TAMANHO_LOTE && !encerrando) {
+                    long restante = prazo - System.nanoTime();
+                    if (restante <= 0) break;
+                    EventoAuditoria proximo = fila.poll(restante, TimeUnit.NANOSECONDS);
+                    if (proximo == null) break;
+                    lote.add(proximo);
+                }
+                fila.drainTo(lote, TAMANHO_LOTE - lote.size());
 
-                // Adiciona nomes com base no tipo de alvo
-                switch (tabelaAfetada) {
+                processarLote(lote);
+            } catch (InterruptedException e) {
+                encerrando = true;
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    /**
+     * Enriquece e grava um lote de eventos usando uma única conexão.
+     * Se o INSERT do lote falhar, grava os eventos um a um: só o evento problemático é perdido.
+     */
+    private static void processarLote(List<EventoAuditoria> lote) {
+        if (lote.isEmpty()) return;
+
+        try (Connection conn = DB.getConnection()) {
+            // 1. Nomes de todas as entidades citadas no lote (uma consulta por tabela)
+            Map<String, Map<Integer, String>> nomes = new HashMap<>();
+            for (Map.Entry<String, Set<Integer>> entrada : coletarIds(lote).entrySet()) {
+                nomes.put(entrada.getKey(), carregarNomes(conn, entrada.getKey(), entrada.getValue()));
+            }
+
+            // O JSON é montado uma única vez (montarDetalhes altera o Map do evento)
+            List<String> detalhes = new ArrayList<>(lote.size());
+            for (EventoAuditoria evento : lote) {
+                detalhes.add(montarDetalhes(evento, nomes));
+            }
+
+            // 2. INSERT de várias linhas
+            try {
+                inserir(conn, lote, detalhes);
+                gravados.addAndGet(lote.size());
+            } catch (SQLException e) {
+                if (lote.size() == 1) throw e;
+                System.err.println("Aviso: falha no INSERT do lote de auditoria (" + e.getMessage() + "); gravando os " + lote.size() + " eventos um a um.");
+                for (int i = 0; i < lote.size(); i++) {
+                    try {
+                        inserir(conn, lote.subList(i, i + 1), detalhes.subList(i, i + 1));
+                        gravados.incrementAndGet();
+                    } catch (SQLException erroEvento) {
+                        falhasGravacao.incrementAndGet();
+                        EventoAuditoria evento = lote.get(i);
+                        System.err.println("--- FALHA NA AUDITORIA (RF08.4): evento " + evento.acao() + " em " + evento.tabelaAfetada()
+                                + " (registro " + evento.registroId() + ", usuário " + evento.idUsuario() + ") descartado: " + erroEvento.getMessage());
+                    }
+                }
+            }
+
+        } catch (Exception e) {
+            falhasGravacao.incrementAndGet();
+            System.err.println("--- FALHA NA AUDITORIA (RF08.4): lote de " + lote.size() + " eventos ---");
+            e.printStackTrace();
+            // A falha na auditoria não deve interromper a operação principal.
+        }
+    }
+
+    private static void inserir(Connection conn, List<EventoAuditoria> eventos, List<String> detalhes) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+            "INSERT INTO auditoria (id_usuario, acao, tabela_afetada, registro_id, detalhes) VALUES ");
+        for (int i = 0; i < eventos.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+        }
+
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int indice = 1;
+            for (int i = 0; i < eventos.size(); i++) {
+                EventoAuditoria evento = eventos.get(i);
+                if (evento.idUsuario() != null) {
+                    ps.setInt(indice++, evento.idUsuario());
+                } else {
+                    ps.setNull(indice++, Types.INTEGER); // id_usuario (admin) - nulo por enquanto
+                }
+                ps.setString(indice++, evento.acao());
+                ps.setString(indice++, evento.tabelaAfetada());
+                ps.setInt(indice++, evento.registroId());
+                ps.setString(indice++, detalhes.get(i)); // Salva o JSON enriquecido
+            }
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Agrupa, por tabela, os IDs cujos nomes serão exibidos nos detalhes dos eventos.
+     */
+    private static Map<String, Set<Integer>> coletarIds(List<EventoAuditoria> lote) {
+        Map<String, Set<Integer>> ids = new HashMap<>();
+        for (EventoAuditoria evento : lote) {
+            Map<String, Object> detalhes = evento.detalhes();
+            if (detalhes == null) continue;
+            try {
+                switch (evento.tabelaAfetada()) {
                     case "retiradas":
-                        // O "id_usuario" aqui é o *paciente*
-                        Integer idPaciente = null;
-                        if (detalhesEnriquecidos.get("id_usuario") != null) {
-                           idPaciente = Integer.parseInt(detalhesEnriquecidos.remove("id_usuario").toString());
-                        }
-                        
-                        Integer idUbs = null;
-                         if (detalhesEnriquecidos.get("id_ubs") != null) {
-                            idUbs = Integer.parseInt(detalhesEnriquecidos.remove("id_ubs").toString());
-                         }
-                        
-                        // O "id_farmaceutico" já é o ID do admin que está no log principal (idUsuario)
-                        detalhesEnriquecidos.remove("id_farmaceutico"); 
-                        
-                        detalhesEnriquecidos.put("paciente", getNome("usuarios", idPaciente));
-                        detalhesEnriquecidos.put("ubs", getNome("ubs", idUbs));
-                        
-                        // --- INÍCIO DA CORREÇÃO (Itens [object Object]) ---
-                        if (detalhesEnriquecidos.containsKey("itens") && detalhesEnriquecidos.get("itens") instanceof java.util.List) {
-                            try {
-                                // Cast para uma lista de mapas
-                                @SuppressWarnings("unchecked")
-                                List<Map<String, Object>> itensOriginais = (List<Map<String, Object>>) detalhesEnriquecidos.get("itens");
-                                
-                                // Criar uma nova lista para as strings formatadas
-                                List<String> itensFormatados = new ArrayList<>();
-                                
-                                for (Map<String, Object> item : itensOriginais) {
-                                    Integer idMed = Integer.parseInt(item.get("id_medicamento").toString());
-                                    Integer qtd = Integer.parseInt(item.get("quantidade").toString());
-                                    String nomeMed = getNome("medicamentos", idMed);
-                                    
-                                    // Formata o item de forma legível
-                                    itensFormatados.add(String.format("%s (Qtd: %d)", nomeMed, qtd));
+                        adicionarId(ids, "usuarios", detalhes.get("id_usuario"));
+                        adicionarId(ids, "ubs", detalhes.get("id_ubs"));
+                        if (detalhes.get("itens") instanceof List<?> itens) {
+                            for (Object item : itens) {
+                                if (item instanceof Map<?, ?> itemMap) {
+                                    adicionarId(ids, "medicamentos", itemMap.get("id_medicamento"));
                                 }
-                                
-                                // Substituir a lista de objetos pela lista de strings legíveis
-                                detalhesEnriquecidos.put("itens", itensFormatados);
-                                
-                            } catch (Exception e) {
-                                // Se falhar a formatação, pelo menos não quebra
-                                detalhesEnriquecidos.put("itens", "Erro ao formatar lista de itens");
-                                e.printStackTrace();
                             }
                         }
-                        // --- FIM DA CORREÇÃO ---
                         break;
-                        
                     case "estoque":
-                        Integer idMed = Integer.parseInt(detalhesEnriquecidos.remove("id_medicamento").toString());
-                        Integer idUbsEstoque = Integer.parseInt(detalhesEnriquecidos.remove("id_ubs").toString());
-                        
-                        detalhesEnriquecidos.put("medicamento", getNome("medicamentos", idMed));
-                        detalhesEnriquecidos.put("ubs", getNome("ubs", idUbsEstoque));
-                        break;
-                        
-                    case "usuarios":
-                        detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome"));
-                        break;
-                    case "ubs":
-                        detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome"));
-                        break;
-                    case "medicamentos":
-                        detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome_comercial"));
-                        break;
-                    case "farmaceuticos":
-                        detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome"));
+                        adicionarId(ids, "medicamentos", detalhes.get("id_medicamento"));
+                        adicionarId(ids, "ubs", detalhes.get("id_ubs"));
                         break;
                 }
-                // --- FIM DA MODIFICAÇÃO ---
-
-                // Serializa o novo mapa enriquecido
-                detalhesJson = mapper.writeValueAsString(detalhesEnriquecidos);
-            } catch (Exception e) {
-                detalhesJson = "{\"erro\": \"Falha ao serializar detalhes.\"}";
-                 e.printStackTrace(); // Loga o erro de enriquecimento
+            } catch (NumberFormatException e) {
+                // Detalhes malformados: o erro é tratado na montagem do JSON
             }
         }
+        return ids;
+    }
+
+    private static void adicionarId(Map<String, Set<Integer>> ids, String tabela, Object valor) {
+        if (valor != null) {
+            ids.computeIfAbsent(tabela, k -> new HashSet<>()).add(Integer.parseInt(valor.toString()));
+        }
+    }
+
+    /**
+     * Busca os nomes das entidades de uma tabela (cache + uma consulta IN para os ausentes).
+     * @return Mapa id -> nome (IDs não encontrados ficam de fora).
+     */
+    private static Map<Integer, String> carregarNomes(Connection conn, String tabela, Set<Integer> ids) {
+        try {
+            return CacheNomesEntidades.buscarNomes(conn, tabela, ids);
+        } catch (Exception e) {
+            System.err.println("Erro no helper de auditoria (carregarNomes): " + e.getMessage());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Nome de uma entidade já carregada, ou "ID: {id}" como fallback.
+     */
+    private static String getNome(Map<String, Map<Integer, String>> nomes, String tabela, Integer id) {
+        if (id == null) return "N/A";
+        String nome = nomes.getOrDefault(tabela, Collections.emptyMap()).get(id);
+        return (nome != null) ? nome : "ID: " + id;
+    }
+
+    /**
+     * Monta o JSON de detalhes do evento, removendo dados sensíveis e trocando IDs por nomes.
+     */
+    private static String montarDetalhes(EventoAuditoria evento, Map<String, Map<Integer, String>> nomes) {
+        if (evento.detalhes() == null) return null;
+
+        try {
+            // O Map do evento já é uma cópia do original
+            Map<String, Object> detalhesEnriquecidos = evento.detalhes();
 
-        // MODIFICADO: Abre e fecha a própria conexão
-        try (Connection conn = DB.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            
-            if (idUsuario != null) {
-                ps.setInt(1, idUsuario);
-            } else {
-                ps.setNull(1, Types.INTEGER); // id_usuario (admin) - nulo por enquanto
+            // Remove dados sensíveis
+            detalhesEnriquecidos.remove("senha");
+            detalhesEnriquecidos.remove("codigoVerificacao");
+
+            // Adiciona nomes com base no tipo de alvo
+            switch (evento.tabelaAfetada()) {
+                case "retiradas":
+                    // O "id_usuario" aqui é o *paciente*
+                    Integer idPaciente = null;
+                    if (detalhesEnriquecidos.get("id_usuario") != null) {
+                        idPaciente = Integer.parseInt(detalhesEnriquecidos.remove("id_usuario").toString());
+                    }
+
+                    Integer idUbs = null;
+                    if (detalhesEnriquecidos.get("id_ubs") != null) {
+                        idUbs = Integer.parseInt(detalhesEnriquecidos.remove("id_ubs").toString());
+                    }
+
+                    // O "id_farmaceutico" já é o ID do admin que está no log principal (idUsuario)
+                    detalhesEnriquecidos.remove("id_farmaceutico");
+
+                    detalhesEnriquecidos.put("paciente", getNome(nomes, "usuarios", idPaciente));
+                    detalhesEnriquecidos.put("ubs", getNome(nomes, "ubs", idUbs));
+
+                    if (detalhesEnriquecidos.get("itens") instanceof List) {
+                        try {
+                            @SuppressWarnings("unchecked")
+                            List<Map<String, Object>> itensOriginais = (List<Map<String, Object>>) detalhesEnriquecidos.get("itens");
+
+                            // Substitui a lista de objetos por strings legíveis
+                            List<String> itensFormatados = new ArrayList<>();
+                            for (Map<String, Object> item : itensOriginais) {
+                                Integer idMed = Integer.parseInt(item.get("id_medicamento").toString());
+                                Integer qtd = Integer.parseInt(item.get("quantidade").toString());
+                                itensFormatados.add(String.format("%s (Qtd: %d)", getNome(nomes, "medicamentos", idMed), qtd));
+                            }
+                            detalhesEnriquecidos.put("itens", itensFormatados);
+
+                        } catch (Exception e) {
+                            // Se falhar a formatação, pelo menos não quebra
+                            detalhesEnriquecidos.put("itens", "Erro ao formatar lista de itens");
+                            e.printStackTrace();
+                        }
+                    }
+                    break;
+
+                case "estoque":
+                    Integer idMed = Integer.parseInt(detalhesEnriquecidos.remove("id_medicamento").toString());
+                    Integer idUbsEstoque = Integer.parseInt(detalhesEnriquecidos.remove("id_ubs").toString());
+
+                    detalhesEnriquecidos.put("medicamento", getNome(nomes, "medicamentos", idMed));
+                    detalhesEnriquecidos.put("ubs", getNome(nomes, "ubs", idUbsEstoque));
+                    break;
+
+                case "usuarios":
+                case "ubs":
+                case "farmaceuticos":
+                    detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome"));
+                    break;
+                case "medicamentos":
+                    detalhesEnriquecidos.put("nome_alvo", detalhesEnriquecidos.get("nome_comercial"));
+                    break;
             }
-            ps.setString(2, acao);
-            ps.setString(3, tabelaAfetada);
-            ps.setInt(4, registroId);
-            ps.setString(5, detalhesJson); // Salva o JSON enriquecido
-            
-            ps.executeUpdate();
-            
+
+            return mapper.writeValueAsString(detalhesEnriquecidos);
         } catch (Exception e) {
-            System.err.println("--- FALHA NA AUDITORIA (RF08.4) ---");
-            e.printStackTrace();
-            // A falha na auditoria não deve interromper a operação principal.
+            e.printStackTrace(); // Loga o erro de enriquecimento
+            return "{\"erro\": \"Falha ao serializar detalhes.\"}";
+        }
+    }
+
+    /**
+     * Para de aguardar novos eventos e grava o que ainda está na fila.
+     * @param timeoutMs Tempo máximo de espera pela drenagem.
+     */
+    public static void encerrar(long timeoutMs) {
+        encerrando = true;
+        try {
+            escritor.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Contadores do pipeline de auditoria.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("tamanho_fila", fila.size());
+        estatisticas.put("capacidade_fila", CAPACIDADE_FILA);
+        estatisticas.put("enfileirados", enfileirados.get());
+        estatisticas.put("gravados", gravados.get());
+        estatisticas.put("gravados_sincronamente", gravadosSincronamente.get());
+        estatisticas.put("falhas_gravacao", falhasGravacao.get());
+        return estatisticas;
+    }
+}
@@ -0,0 +1,214 @@
+package br.com.medcontrol.servicos;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Base de CEPs local, opcional, para resolver /api/cep sem acessar a ViaCEP.
+ *
+ * O arquivo (CSV, opcionalmente .gz) tem cabeçalho e as colunas cep, logradouro, bairro, cidade, uf,
+ * separadas por vírgula ou ponto e vírgula. Na carga, os CEPs viram um int[] ordenado (busca binária);
+ * bairros e cidades/UF são guardados uma vez só num dicionário, e os logradouros num único bloco de bytes UTF-8.
+ * Assim, cerca de um milhão de CEPs ocupa algumas dezenas de MB. CEPs fora da base seguem para a ViaCEP.
+ */
+public class BaseCepLocal {
+
+    // Vazio = desativada
+    private static final String ARQUIVO = System.getProperty("medcontrol.cep.arquivoBase", "");
+
+    /**
+     * Base carregada (imutável; trocada inteira numa recarga).
+     * @param ceps CEPs em ordem crescente.
+     * @param inicioLogradouro Posição do logradouro i em logradouros (o fim é a posição de i + 1).
+     * @param bairro Índice do bairro i em bairros.
+     * @param cidade Índice de "cidade|uf" do CEP i em cidades.
+     */
+    private record Base(int[] ceps, int[] inicioLogradouro, byte[] logradouros, int[] bairro, String[] bairros,
+                        int[] cidade, String[] cidades) {}
+
+    private static volatile Base base;
+
+    private static final AtomicLong acertos = new AtomicLong();
+    private static final AtomicLong faltas = new AtomicLong();
+    private static volatile long duracaoCargaMs;
+
+    private BaseCepLocal() {
+    }
+
+    /**
+     * Carrega a base em segundo plano, se um arquivo estiver configurado.
+     * Até a carga terminar, as consultas seguem para a ViaCEP.
+     */
+    public static void carregarEmSegundoPlano() {
+        if (ARQUIVO.isEmpty()) return;
+        Thread carga = new Thread(() -> {
+            try {
+                carregar(Paths.get(ARQUIVO));
+                System.out.println("Base local de CEPs carregada: " + base.ceps().length + " CEPs em " + duracaoCargaMs + " ms.");
+            } catch (Exception e) {
+                System.err.println("Aviso: não foi possível carregar a base local de CEPs. " + e.getMessage());
+            }
+        }, "base-cep-carga");
+        carga.setDaemon(true);
+        carga.start();
+    }
+
+    /**
+     * Lê o arquivo e substitui a base atual.
+     */
+    public static void carregar(Path arquivo) throws IOException {
+        long inicio = System.currentTimeMillis();
+
+        List<String[]> linhas = new ArrayList<>();
+        InputStream entrada = Files.newInputStream(arquivo);
+        if (arquivo.getFileName().toString().endsWith(".gz")) {
+            entrada = new GZIPInputStream(entrada, 64 * 1024);
+        }
+        try (BufferedReader leitor = new BufferedReader(new InputStreamReader(entrada, StandardCharsets.UTF_8), 64 * 1024)) {
+            String cabecalho = leitor.readLine();
+            if (cabecalho == null) throw new IOException("Arquivo de CEPs vazio.");
+            char separador = cabecalho.indexOf(';') >= 0 ? ';' : ',';
+
+            String linha;
+            while ((linha = leitor.readLine()) != null) {
+                if (linha.isBlank()) continue;
+                String[] campos = dividir(linha, separador);
+                String digitos = campos[0].replaceAll("\\D", "");
+                if (digitos.length() != 8) continue;
+                campos[0] = digitos;
+                linhas.add(campos);
+            }
+        }
+        // Ordena (cep, posição da linha) como long primitivo; a posição desempata e mantém a ordem do arquivo
+        int total = linhas.size();
+        long[] ordem = new long[total];
+        for (int i = 0; i < total; i++) {
+            ordem[i] = ((long) Integer.parseInt(linhas.get(i)[0]) << 32) | i;
+        }
+        Arrays.sort(ordem);
+
+        int[] ceps = new int[total];
+        int[] inicioLogradouro = new int[total + 1];
+        int[] bairro = new int[total];
+        int[] cidade = new int[total];
+        Map<String, Integer> dicionarioBairros = new HashMap<>();
+        Map<String, Integer> dicionarioCidades = new HashMap<>();
+        ByteArrayOutputStream logradouros = new ByteArrayOutputStream(total * 24);
+
+        int n = 0;
+        for (long chave : ordem) {
+            String[] campos = linhas.get((int) chave);
+            int cep = (int) (chave >>> 32);
+            if (n > 0 && ceps[n - 1] == cep) continue; // CEP repetido: vale a primeira linha
+            ceps[n] = cep;
+            inicioLogradouro[n] = logradouros.size();
+            logradouros.writeBytes(campo(campos, 1).getBytes(StandardCharsets.UTF_8));
+            bairro[n] = dicionarioBairros.computeIfAbsent(campo(campos, 2), b -> dicionarioBairros.size());
+            cidade[n] = dicionarioCidades.computeIfAbsent(campo(campos, 3) + "|" + campo(campos, 4), c -> dicionarioCidades.size());
+            n++;
+        }
+        inicioLogradouro[n] = logradouros.size();
+
+        base = new Base(Arrays.copyOf(ceps, n), Arrays.copyOf(inicioLogradouro, n + 1), logradouros.toByteArray(),
+                        Arrays.copyOf(bairro, n), paraVetor(dicionarioBairros),
+                        Arrays.copyOf(cidade, n), paraVetor(dicionarioCidades));
+        duracaoCargaMs = System.currentTimeMillis() - inicio;
+    }
+
+    /**
+     * Procura o CEP na base local.
+     * @param cep CEP com 8 dígitos.
+     * @return Os dados no mesmo formato do CepServico, ou null se a base não estiver carregada ou não tiver o CEP.
+     */
+    public static Map<String, Object> buscar(String cep) {
+        Base atual = base;
+        if (atual == null) return null;
+
+        int i = Arrays.binarySearch(atual.ceps(), Integer.parseInt(cep));
+        if (i < 0) {
+            faltas.incrementAndGet();
+            return null;
+        }
+        acertos.incrementAndGet();
+
+        String[] cidadeUf = atual.cidades()[atual.cidade()[i]].split("\\|", -1);
+        int inicio = atual.inicioLogradouro()[i];
+        Map<String, Object> resultado = new HashMap<>();
+        resultado.put("cep", cep.substring(0, 5) + "-" + cep.substring(5));
+        resultado.put("logradouro", new String(atual.logradouros(), inicio, atual.inicioLogradouro()[i + 1] - inicio, StandardCharsets.UTF_8));
+        resultado.put("bairro", atual.bairros()[atual.bairro()[i]]);
+        resultado.put("cidade", cidadeUf[0]);
+        resultado.put("uf", cidadeUf[1]);
+        return resultado;
+    }
+
+    private static String campo(String[] campos, int indice) {
+        return indice < campos.length ? campos[indice].trim() : "";
+    }
+
+    private static String[] paraVetor(Map<String, Integer> dicionario) {
+        String[] vetor = new String[dicionario.size()];
+        dicionario.forEach((texto, indice) -> vetor[indice] = texto);
+        return vetor;
+    }
+
+    /**
+     * Divide uma linha CSV, respeitando campos entre aspas ("" dentro das aspas = uma aspa).
+     */
+    private static String[] dividir(String linha, char separador) {
+        List<String> campos = new ArrayList<>(5);
+        StringBuilder atual = new StringBuilder();
+        boolean entreAspas = false;
+        for (int i = 0; i < linha.length(); i++) {
+            char c = linha.charAt(i);
+            if (entreAspas) {
+                if (c == '"' && i + 1 < linha.length() && linha.charAt(i + 1) == '"') {
+                    atual.append('"');
+                    i++;
+                } else if (c == '"') {
+                    entreAspas = false;
+                } else {
+                    atual.append(c);
+                }
+            } else if (c == '"') {
+                entreAspas = true;
+            } else if (c == separador) {
+                campos.add(atual.toString());
+                atual.setLength(0);
+            } else {
+                atual.append(c);
+            }
+        }
+        campos.add(atual.toString());
+        return campos.toArray(new String[0]);
+    }
+
+    /**
+     * Contadores da base local de CEPs.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Base atual = base;
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("carregada", atual != null);
+        estatisticas.put("ceps", atual != null ? atual.ceps().length : 0);
+        estatisticas.put("duracao_carga_ms", duracaoCargaMs);
+        estatisticas.put("acertos", acertos.get());
+        estatisticas.put("faltas", faltas.get());
+        return estatisticas;
+    }
+}
@@ -0,0 +1,152 @@
+package br.com.medcontrol.servicos;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache limitado (LRU) e com TTL dos nomes de entidades exibidos na auditoria e nas listagens:
+ * usuarios, ubs, medicamentos e farmaceuticos, indexados por (tabela, id).
+ * Os controladores invalidam a entrada quando a entidade é alterada ou desativada.
+ */
+public class CacheNomesEntidades {
+
+    // Tabela -> {coluna de id, coluna de nome}
+    private static final Map<String, String[]> COLUNAS_NOME = Map.of(
+        "usuarios", new String[] {"id", "nome"},
+        "ubs", new String[] {"id_ubs", "nome"},
+        "medicamentos", new String[] {"id_medicamento", "nome_comercial"},
+        "farmaceuticos", new String[] {"id_farmaceutico", "nome"}
+    );
+
+    private static final int CAPACIDADE = Integer.getInteger("medcontrol.cacheNomes.capacidade", 5_000);
+    private static final long TTL_MS = Long.getLong("medcontrol.cacheNomes.ttlMs", 10 * 60_000L);
+
+    private record Chave(String tabela, int id) {}
+
+    private record Entrada(String nome, long expiraEm) {}
+
+    private static final AtomicLong acertos = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
+    private static final AtomicLong remocoesPorCapacidade = new AtomicLong();
+    private static final AtomicLong expiracoes = new AtomicLong();
+    private static final AtomicLong invalidacoes = new AtomicLong();
+
+    // LinkedHashMap em ordem de acesso: a entrada menos usada recentemente sai quando a capacidade estoura.
+    private static final Map<Chave, Entrada> entradas = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Chave, Entrada> maisAntiga) {
+            if (size() > CAPACIDADE) {
+                remocoesPorCapacidade.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private CacheNomesEntidades() {
+    }
+
+    /**
+     * Retorna os nomes das entidades informadas, buscando no banco (em uma única consulta IN)
+     * apenas os IDs que não estão no cache.
+     * @param conn Conexão usada para carregar os IDs ausentes.
+     * @param tabela Tabela da entidade (ex: "ubs").
+     * @param ids IDs desejados.
+     * @return Mapa id -> nome (IDs inexistentes ficam de fora).
+     */
+    public static Map<Integer, String> buscarNomes(Connection conn, String tabela, Collection<Integer> ids) throws SQLException {
+        String[] colunas = COLUNAS_NOME.get(tabela);
+        if (colunas == null || ids.isEmpty()) return Collections.emptyMap();
+
+        Map<Integer, String> nomes = new HashMap<>();
+        Set<Integer> ausentes = new HashSet<>();
+        long agora = System.currentTimeMillis();
+
+        synchronized (entradas) {
+            for (Integer id : ids) {
+                Chave chave = new Chave(tabela, id);
+                Entrada entrada = entradas.get(chave);
+                if (entrada != null && entrada.expiraEm() > agora) {
+                    acertos.incrementAndGet();
+                    nomes.put(id, entrada.nome());
+                } else {
+                    if (entrada != null) {
+                        entradas.remove(chave);
+                        expiracoes.incrementAndGet();
+                    }
+                    falhas.incrementAndGet();
+                    ausentes.add(id);
+                }
+            }
+        }
+
+        if (ausentes.isEmpty()) return nomes;
+
+        String sql = "SELECT " + colunas[0] + ", " + colunas[1] + " FROM " + tabela +
+                     " WHERE " + colunas[0] + " IN (" + String.join(",", Collections.nCopies(ausentes.size(), "?")) + ")";
+
+        Map<Integer, String> carregados = new HashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            int indice = 1;
+            for (Integer id : ausentes) {
+                ps.setInt(indice++, id);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    carregados.put(rs.getInt(1), rs.getString(2));
+                }
+            }
+        }
+
+        long expiraEm = System.currentTimeMillis() + TTL_MS;
+        synchronized (entradas) {
+            for (Map.Entry<Integer, String> carregado : carregados.entrySet()) {
+                entradas.put(new Chave(tabela, carregado.getKey()), new Entrada(carregado.getValue(), expiraEm));
+            }
+        }
+        nomes.putAll(carregados);
+        return nomes;
+    }
+
+    /**
+     * Remove a entrada de uma entidade alterada ou desativada.
+     */
+    public static void invalidar(String tabela, int id) {
+        synchronized (entradas) {
+            if (entradas.remove(new Chave(tabela, id)) != null) {
+                invalidacoes.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Estatísticas de uso do cache (para dimensionamento).
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        synchronized (entradas) {
+            estatisticas.put("tamanho", entradas.size());
+        }
+        estatisticas.put("capacidade", CAPACIDADE);
+        estatisticas.put("ttl_ms", TTL_MS);
+        long totalAcertos = acertos.get();
+        long totalFalhas = falhas.get();
+        estatisticas.put("acertos", totalAcertos);
+        estatisticas.put("falhas", totalFalhas);
+        estatisticas.put("taxa_acerto", (totalAcertos + totalFalhas) == 0 ? 0.0 : (double) totalAcertos / (totalAcertos + totalFalhas));
+        estatisticas.put("remocoes_por_capacidade", remocoesPorCapacidade.get());
+        estatisticas.put("expiracoes", expiracoes.get());
+        estatisticas.put("invalidacoes", invalidacoes.get());
+        return estatisticas;
+    }
+}
@@ -8,26 +8,167 @@ import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Consulta de CEP na API ViaCEP, com cache local.
+ * Se houver uma base de CEPs offline carregada (BaseCepLocal), ela é consultada antes de tudo.
+ *
+ * As respostas ficam num cache LRU em memória (opcionalmente persistido em disco): CEPs encontrados
+ * por TTL_HORAS e "CEP não encontrado" por TTL_NEGATIVO_MINUTOS. Falhas de comunicação não são guardadas.
+ * Consultas simultâneas ao mesmo CEP ainda não cacheado compartilham uma única requisição à ViaCEP,
+ * e timeouts de conexão e de resposta impedem que uma ViaCEP lenta prenda as threads do Javalin.
+ */
 public class CepServico {
 
-    private final HttpClient httpClient = HttpClient.newHttpClient();
-    private final ObjectMapper mapper = new ObjectMapper();
+    private static final String URL_BASE = System.getProperty("medcontrol.cep.urlBase", "https://viacep.com.br/ws/");
+    private static final long TIMEOUT_CONEXAO_MS = Long.getLong("medcontrol.cep.timeoutConexaoMs", 2_000L);
+    private static final long TIMEOUT_RESPOSTA_MS = Long.getLong("medcontrol.cep.timeoutMs", 3_000L);
+    private static final int CAPACIDADE_CACHE = Integer.getInteger("medcontrol.cep.capacidadeCache", 10_000);
+    private static final long TTL_MS = TimeUnit.HOURS.toMillis(Long.getLong("medcontrol.cep.ttlHoras", 720L));
+    private static final long TTL_NEGATIVO_MS = TimeUnit.MINUTES.toMillis(Long.getLong("medcontrol.cep.ttlNegativoMinutos", 60L));
+    // Vazio = cache só em memória
+    private static final String ARQUIVO_CACHE = System.getProperty("medcontrol.cep.arquivoCache", "");
 
     /**
-     * Busca informações de um CEP utilizando a API ViaCEP.
+     * Resposta guardada no cache.
+     * @param dados Mapa devolvido ao cliente (endereço ou erro).
+     * @param expiraEm Momento (epoch ms) em que a entrada deixa de valer.
+     */
+    private record Entrada(Map<String, Object> dados, long expiraEm) {}
+
+    /**
+     * Resultado de uma consulta à ViaCEP e se ele pode ser cacheado.
+     */
+    private record Resposta(Map<String, Object> dados, boolean cacheavel, boolean negativa) {}
+
+    // LRU por ordem de acesso; acesso sincronizado pelo próprio mapa
+    private static final Map<String, Entrada> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entrada> maisAntiga) {
+            return size() > CAPACIDADE_CACHE;
+        }
+    };
+    // CEP -> consulta em andamento (single-flight)
+    private static final Map<String, CompletableFuture<Resposta>> emAndamento = new ConcurrentHashMap<>();
+    private static volatile boolean cacheAlterado = false;
+
+    private static final AtomicLong acertos = new AtomicLong();
+    private static final AtomicLong acertosNegativos = new AtomicLong();
+    private static final AtomicLong faltas = new AtomicLong();
+    private static final AtomicLong coalescidas = new AtomicLong();
+    private static final AtomicLong falhasConsulta = new AtomicLong();
+    private static final AtomicLong timeouts = new AtomicLong();
+
+    private static final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofMillis(TIMEOUT_CONEXAO_MS))
+            .build();
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static final ScheduledExecutorService persistencia = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cep-cache-persistencia");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        if (!ARQUIVO_CACHE.isEmpty()) {
+            carregarDoDisco();
+            persistencia.scheduleWithFixedDelay(CepServico::salvar, 5, 5, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Busca informações de um CEP utilizando a API ViaCEP (ou o cache local).
      * @param cep O CEP a ser consultado (deve conter apenas números).
      * @return Um Map com os dados do endereço, ou um mapa indicando erro.
      */
     public Map<String, Object> buscarCep(String cep) {
+        if (cep == null || !cep.matches("\\d{8}")) {
+            return erro("CEP inválido.");
+        }
+
+        // Base local (se configurada) responde sem rede; só os CEPs fora dela seguem adiante
+        Map<String, Object> local = BaseCepLocal.buscar(cep);
+        if (local != null) {
+            return local;
+        }
+
+        Entrada entrada;
+        synchronized (cache) {
+            entrada = cache.get(cep);
+            if (entrada != null && entrada.expiraEm() < System.currentTimeMillis()) {
+                cache.remove(cep);
+                entrada = null;
+            }
+        }
+        if (entrada != null) {
+            (entrada.dados().containsKey("erro") ? acertosNegativos : acertos).incrementAndGet();
+            return entrada.dados();
+        }
+
+        // Só a primeira requisição de um CEP vai à ViaCEP; as simultâneas esperam o mesmo resultado
+        CompletableFuture<Resposta> nova = new CompletableFuture<>();
+        CompletableFuture<Resposta> existente = emAndamento.putIfAbsent(cep, nova);
+        if (existente != null) {
+            coalescidas.incrementAndGet();
+            try {
+                return existente.get(TIMEOUT_CONEXAO_MS + TIMEOUT_RESPOSTA_MS, TimeUnit.MILLISECONDS).dados();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return erro("Falha de comunicação ao consultar o CEP.");
+            } catch (TimeoutException e) {
+                timeouts.incrementAndGet();
+                return erro("Falha de comunicação ao consultar o CEP.");
+            } catch (Exception e) {
+                return erro("Ocorreu um erro inesperado.");
+            }
+        }
+
+        faltas.incrementAndGet();
+        Resposta resposta = null;
+        try {
+            resposta = consultarViaCep(cep);
+            if (resposta.cacheavel()) {
+                long ttl = resposta.negativa() ? TTL_NEGATIVO_MS : TTL_MS;
+                synchronized (cache) {
+                    cache.put(cep, new Entrada(resposta.dados(), System.currentTimeMillis() + ttl));
+                }
+                cacheAlterado = true;
+            }
+            return resposta.dados();
+        } finally {
+            emAndamento.remove(cep);
+            nova.complete(resposta != null ? resposta : new Resposta(erro("Ocorreu um erro inesperado."), false, false));
+        }
+    }
+
+    private Resposta consultarViaCep(String cep) {
         // MODIFICAÇÃO 2.1: URL trocada para ViaCEP
-        String url = String.format("https://viacep.com.br/ws/%s/json/", cep);
+        String url = URL_BASE + cep + "/json/";
 
         try {
             HttpRequest request = HttpRequest.newBuilder()
                     .uri(new URI(url))
+                    .timeout(Duration.ofMillis(TIMEOUT_RESPOSTA_MS))
                     .header("Accept", "application/json")
                     .header("User-Agent", "Java-HttpClient/21")
                     .GET()
@@ -38,15 +179,12 @@ public class CepServico {
             if (response.statusCode() == 200) {
                 // Mapeia a resposta principal
                 Map<String, Object> responseMap = mapper.readValue(response.body(), new TypeReference<Map<String, Object>>() {});
-                
+
                 // MODIFICAÇÃO 2.1: Verifica se a ViaCEP retornou erro
                 if (responseMap.containsKey("erro")) {
-                    Map<String, Object> errorMap = new HashMap<>();
-                    errorMap.put("erro", true);
-                    errorMap.put("message", "CEP não encontrado.");
-                    return errorMap;
+                    return new Resposta(erro("CEP não encontrado."), true, true);
                 }
-                
+
                 // MODIFICAÇÃO 2.1: Remove lógica de location/coordinates e popula com ViaCEP
                 Map<String, Object> resultMap = new HashMap<>();
                 resultMap.put("cep", responseMap.get("cep"));
@@ -54,30 +192,109 @@ public class CepServico {
                 resultMap.put("bairro", responseMap.get("bairro"));
                 resultMap.put("cidade", responseMap.get("localidade")); // ViaCEP usa "localidade"
                 resultMap.put("uf", responseMap.get("uf"));
-                
-                return resultMap; // Retorna o mapa formatado
+
+                return new Resposta(Collections.unmodifiableMap(resultMap), true, false); // Retorna o mapa formatado
 
             } else {
-                 // Trata erros de status HTTP (diferente de 200)
-                 Map<String, Object> errorMap = new HashMap<>();
-                 errorMap.put("erro", true);
-                 errorMap.put("message", "Erro na consulta do CEP. Status: " + response.statusCode());
-                 return errorMap;
+                 // Trata erros de status HTTP (diferente de 200); não vai para o cache
+                 falhasConsulta.incrementAndGet();
+                 return new Resposta(erro("Erro na consulta do CEP. Status: " + response.statusCode()), false, false);
             }
 
+        } catch (HttpTimeoutException e) {
+            timeouts.incrementAndGet();
+            System.err.println("Timeout ao consultar ViaCEP API: " + e.getMessage());
+            return new Resposta(erro("Falha de comunicação ao consultar o CEP."), false, false);
         } catch (IOException | InterruptedException e) {
+            falhasConsulta.incrementAndGet();
             System.err.println("Falha ao consultar ViaCEP API: " + e.getMessage()); // Modificado
-            Thread.currentThread().interrupt(); // Restaura o status de interrupção
-            Map<String, Object> errorMap = new HashMap<>();
-            errorMap.put("erro", true);
-            errorMap.put("message", "Falha de comunicação ao consultar o CEP.");
-            return errorMap;
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt(); // Restaura o status de interrupção
+            }
+            return new Resposta(erro("Falha de comunicação ao consultar o CEP."), false, false);
         } catch (Exception e) {
+            falhasConsulta.incrementAndGet();
             System.err.println("Erro inesperado ao buscar CEP: " + e.getMessage());
-            Map<String, Object> errorMap = new HashMap<>();
-            errorMap.put("erro", true);
-            errorMap.put("message", "Ocorreu um erro inesperado.");
-            return errorMap;
+            return new Resposta(erro("Ocorreu um erro inesperado."), false, false);
+        }
+    }
+
+    private static Map<String, Object> erro(String mensagem) {
+        Map<String, Object> errorMap = new HashMap<>();
+        errorMap.put("erro", true);
+        errorMap.put("message", mensagem);
+        return Collections.unmodifiableMap(errorMap);
+    }
+
+    /**
+     * Grava o cache no arquivo configurado (se houver e se mudou desde a última gravação).
+     */
+    public static void salvar() {
+        if (ARQUIVO_CACHE.isEmpty() || !cacheAlterado) return;
+        cacheAlterado = false;
+
+        List<Map<String, Object>> linhas = new ArrayList<>();
+        long agora = System.currentTimeMillis();
+        synchronized (cache) {
+            for (Map.Entry<String, Entrada> item : cache.entrySet()) {
+                if (item.getValue().expiraEm() < agora) continue;
+                Map<String, Object> linha = new HashMap<>();
+                linha.put("cep", item.getKey());
+                linha.put("dados", item.getValue().dados());
+                linha.put("expiraEm", item.getValue().expiraEm());
+                linhas.add(linha);
+            }
+        }
+
+        Path arquivo = Paths.get(ARQUIVO_CACHE);
+        Path parcial = Paths.get(ARQUIVO_CACHE + ".parcial");
+        try {
+            if (arquivo.getParent() != null) Files.createDirectories(arquivo.getParent());
+            mapper.writeValue(parcial.toFile(), linhas);
+            Files.move(parcial, arquivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            cacheAlterado = true;
+            System.err.println("Aviso: não foi possível gravar o cache de CEP. " + e.getMessage());
+        }
+    }
+
+    private static void carregarDoDisco() {
+        Path arquivo = Paths.get(ARQUIVO_CACHE);
+        if (!Files.exists(arquivo)) return;
+        try {
+            List<Map<String, Object>> linhas = mapper.readValue(arquivo.toFile(), new TypeReference<List<Map<String, Object>>>() {});
+            long agora = System.currentTimeMillis();
+            synchronized (cache) {
+                for (Map<String, Object> linha : linhas) {
+                    long expiraEm = ((Number) linha.get("expiraEm")).longValue();
+                    if (expiraEm < agora) continue;
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> dados = (Map<String, Object>) linha.get("dados");
+                    cache.put((String) linha.get("cep"), new Entrada(Collections.unmodifiableMap(dados), expiraEm));
+                }
+            }
+            System.out.println("Cache de CEP carregado do disco: " + cache.size() + " entradas.");
+        } catch (Exception e) {
+            System.err.println("Aviso: não foi possível ler o cache de CEP em disco. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Contadores do cache de CEP.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        synchronized (cache) {
+            estatisticas.put("tamanho_cache", cache.size());
         }
+        estatisticas.put("capacidade_cache", CAPACIDADE_CACHE);
+        estatisticas.put("acertos", acertos.get());
+        estatisticas.put("acertos_negativos", acertosNegativos.get());
+        estatisticas.put("faltas", faltas.get());
+        estatisticas.put("coalescidas", coalescidas.get());
+        estatisticas.put("em_andamento", emAndamento.size());
+        estatisticas.put("falhas_consulta", falhasConsulta.get());
+        estatisticas.put("timeouts", timeouts.get());
+        return estatisticas;
     }
 }
\ No newline at end of file
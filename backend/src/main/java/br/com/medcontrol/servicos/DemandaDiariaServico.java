@@ -0,0 +1,129 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * RF09.2 - Mantém a tabela demanda_diaria: total retirado por (dia, medicamento, UBS).
+ * É incrementada na mesma transação da retirada e pode ser reconstruída a partir do histórico,
+ * de modo que o relatório de demanda não precise agrupar retiradas e itens a cada consulta.
+ */
+public class DemandaDiariaServico {
+
+    private DemandaDiariaServico() {
+    }
+
+    /**
+     * Soma as quantidades de uma retirada ao dia corrente (na transação do chamador).
+     * @param idUbs UBS da retirada.
+     * @param quantidadePorMedicamento id_medicamento -> quantidade retirada.
+     */
+    public static void registrarRetirada(Connection conn, int idUbs, Map<Integer, Integer> quantidadePorMedicamento) throws SQLException {
+        String sql = "INSERT INTO demanda_diaria (dia, id_medicamento, id_ubs, total_retirado) VALUES (CURDATE(), ?, ?, ?) " +
+                     "ON DUPLICATE KEY UPDATE total_retirado = total_retirado + ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<Integer, Integer> item : quantidadePorMedicamento.entrySet()) {
+                ps.setInt(1, item.getKey());
+                ps.setInt(2, idUbs);
+                ps.setInt(3, item.getValue());
+                ps.setInt(4, item.getValue());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Reconstrói os dias do intervalo [inicio, fim] a partir de retiradas/itens_retiradas,
+     * um mês por transação para não segurar travas por muito tempo.
+     * @return Quantas linhas da tabela foram geradas.
+     */
+    public static int reconstruir(LocalDate inicio, LocalDate fim) throws SQLException {
+        String sqlApagar = "DELETE FROM demanda_diaria WHERE dia >= ? AND dia < ?";
+        String sqlInserir = "INSERT INTO demanda_diaria (dia, id_medicamento, id_ubs, total_retirado) " +
+                            "SELECT DATE(r.data_retirada), ir.id_medicamento, r.id_ubs, SUM(ir.quantidade) " +
+                            "FROM retiradas r " +
+                            "JOIN itens_retiradas ir ON r.id_retirada = ir.id_retirada " +
+                            "WHERE r.data_retirada >= ? AND r.data_retirada < ? " +
+                            "GROUP BY DATE(r.data_retirada), ir.id_medicamento, r.id_ubs";
+
+        int linhas = 0;
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+
+            LocalDate blocoInicio = inicio;
+            while (!blocoInicio.isAfter(fim)) {
+                LocalDate blocoFim = blocoInicio.withDayOfMonth(1).plusMonths(1);
+                if (blocoFim.isAfter(fim.plusDays(1))) blocoFim = fim.plusDays(1);
+
+                conn.setAutoCommit(false);
+                try (PreparedStatement psApagar = conn.prepareStatement(sqlApagar);
+                     PreparedStatement psInserir = conn.prepareStatement(sqlInserir)) {
+                    psApagar.setDate(1, Date.valueOf(blocoInicio));
+                    psApagar.setDate(2, Date.valueOf(blocoFim));
+                    psApagar.executeUpdate();
+
+                    psInserir.setDate(1, Date.valueOf(blocoInicio));
+                    psInserir.setDate(2, Date.valueOf(blocoFim));
+                    linhas += psInserir.executeUpdate();
+
+                    conn.commit();
+                } catch (SQLException e) {
+                    conn.rollback();
+                    throw e;
+                } finally {
+                    conn.setAutoCommit(true);
+                }
+                blocoInicio = blocoFim;
+            }
+        }
+        return linhas;
+    }
+
+    /**
+     * Reconstrói todo o histórico (do dia da primeira retirada até hoje).
+     */
+    public static int reconstruirTudo() throws SQLException {
+        LocalDate primeiroDia = null;
+        try (Connection conn = DB.getConnection();
+             Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery("SELECT DATE(MIN(data_retirada)) FROM retiradas")) {
+            if (rs.next() && rs.getDate(1) != null) {
+                primeiroDia = rs.getDate(1).toLocalDate();
+            }
+        }
+        return primeiroDia == null ? 0 : reconstruir(primeiroDia, LocalDate.now());
+    }
+
+    /**
+     * Na inicialização: se a tabela estiver vazia mas já houver retiradas, preenche em segundo plano.
+     */
+    public static void preencherSeVazia() {
+        Thread preenchimento = new Thread(() -> {
+            try {
+                boolean precisaPreencher = false;
+                try (Connection conn = DB.getConnection();
+                     Statement st = conn.createStatement();
+                     ResultSet rs = st.executeQuery(
+                         "SELECT EXISTS (SELECT 1 FROM demanda_diaria), EXISTS (SELECT 1 FROM retiradas)")) {
+                    precisaPreencher = rs.next() && !rs.getBoolean(1) && rs.getBoolean(2);
+                }
+                if (precisaPreencher) {
+                    int linhas = reconstruirTudo();
+                    System.out.println("Demanda diária preenchida a partir do histórico: " + linhas + " linhas.");
+                }
+            } catch (Exception e) {
+                System.err.println("Aviso: não foi possível preencher a demanda diária. " + e.getMessage());
+            }
+        }, "demanda-diaria-preenchimento");
+        preenchimento.setDaemon(true);
+        preenchimento.start();
+    }
+}
@@ -0,0 +1,246 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RF6.3 / RF09 - Demanda não atendida nas buscas, para orientar a reposição de estoque.
+ *
+ * A busca de medicamentos informa cada caso de demanda não atendida (termo sem cadastro, medicamento
+ * sem estoque, ou estoque físico todo comprometido com reservas numa UBS). As ocorrências são somadas
+ * em memória e, a cada intervalo, gravadas em demanda_nao_atendida (uma linha por dia/UBS/medicamento/
+ * termo/motivo). O serviço mantém em memória a janela dos últimos dias e, a cada gravação, recalcula o
+ * ranking; a consulta só devolve a lista já pronta.
+ *
+ * Os termos são texto livre, então a memória é limitada: com medcontrol.demandaNaoAtendida.maxPendentes
+ * combinações distintas aguardando gravação, ocorrências de combinações novas são descartadas (e contadas)
+ * até a próxima gravação; a janela guarda no máximo medcontrol.demandaNaoAtendida.maxChavesJanela
+ * combinações, e as de menor total saem primeiro (continuam gravadas no banco).
+ */
+public class DemandaNaoAtendidaServico {
+
+    /** Nenhum medicamento corresponde ao termo buscado. */
+    public static final String SEM_CADASTRO = "SEM_CADASTRO";
+    /** O medicamento existe, mas não há estoque físico em nenhuma UBS. */
+    public static final String SEM_ESTOQUE = "SEM_ESTOQUE";
+    /** A UBS tem estoque físico, mas todo ele está reservado. */
+    public static final String ESGOTADO_RESERVAS = "ESGOTADO_RESERVAS";
+
+    /** id_ubs / id_medicamento usados quando a ocorrência não é de uma UBS ou medicamento específico. */
+    public static final int NENHUM = 0;
+
+    private static final long INTERVALO_SEGUNDOS = Long.getLong("medcontrol.demandaNaoAtendida.intervaloSegundos", 30L);
+    private static final int DIAS_JANELA = Integer.getInteger("medcontrol.demandaNaoAtendida.diasJanela", 7);
+    private static final int TAMANHO_RANKING = Integer.getInteger("medcontrol.demandaNaoAtendida.tamanhoRanking", 50);
+    private static final int MAX_PENDENTES = Integer.getInteger("medcontrol.demandaNaoAtendida.maxPendentes", 10_000);
+    private static final int MAX_CHAVES_JANELA = Integer.getInteger("medcontrol.demandaNaoAtendida.maxChavesJanela", 50_000);
+
+    private record Chave(LocalDate dia, int idUbs, int idMedicamento, String termo, String motivo) {}
+
+    private record ItemRanking(int idUbs, int idMedicamento, String termo, String motivo) {}
+
+    /** Ocorrências ainda não gravadas. */
+    private static final ConcurrentHashMap<Chave, Long> pendentes = new ConcurrentHashMap<>();
+    /** Totais por dia dentro da janela; só acessado pela thread de gravação. */
+    private static final Map<Chave, Long> janela = new HashMap<>();
+
+    private static volatile List<Map<String, Object>> ranking = List.of();
+    private static volatile Map<Integer, List<Map<String, Object>>> rankingPorUbs = Map.of();
+
+    private static final AtomicLong ocorrencias = new AtomicLong();
+    private static final AtomicLong falhasGravacao = new AtomicLong();
+    private static final AtomicLong descartadas = new AtomicLong();
+    private static final AtomicLong removidasDaJanela = new AtomicLong();
+
+    private static final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "demanda-nao-atendida");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private DemandaNaoAtendidaServico() {
+    }
+
+    /**
+     * Carrega a janela já gravada e agenda a gravação periódica.
+     */
+    public static void iniciar() {
+        agendador.execute(DemandaNaoAtendidaServico::carregarJanela);
+        agendador.scheduleWithFixedDelay(DemandaNaoAtendidaServico::gravarPendentes, INTERVALO_SEGUNDOS, INTERVALO_SEGUNDOS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Registra uma ocorrência de demanda não atendida no dia corrente (só memória, custo constante).
+     * @param termo Termo buscado (será normalizado).
+     * @param motivo SEM_CADASTRO, SEM_ESTOQUE ou ESGOTADO_RESERVAS.
+     */
+    public static void registrar(String termo, String motivo, int idUbs, int idMedicamento) {
+        String termoNormalizado = EstatisticasBuscaServico.normalizarTermo(termo);
+        if (termoNormalizado.isEmpty()) return;
+        Chave chave = new Chave(LocalDate.now(), idUbs, idMedicamento, termoNormalizado, motivo);
+        // O limite é aproximado (size() e merge() não são atômicos juntos), o que basta para conter a memória
+        if (pendentes.size() >= MAX_PENDENTES && !pendentes.containsKey(chave)) {
+            descartadas.incrementAndGet();
+            return;
+        }
+        pendentes.merge(chave, 1L, Long::sum);
+        ocorrencias.incrementAndGet();
+    }
+
+    /**
+     * Ranking dos últimos dias (já calculado), opcionalmente de uma UBS.
+     * @param idUbs UBS desejada, ou null para todas.
+     */
+    public static List<Map<String, Object>> maisDemandados(Integer idUbs, int limite) {
+        List<Map<String, Object>> lista = idUbs == null ? ranking : rankingPorUbs.getOrDefault(idUbs, List.of());
+        return lista.subList(0, Math.min(limite, lista.size()));
+    }
+
+    private static void carregarJanela() {
+        String sql = "SELECT dia, id_ubs, id_medicamento, termo, motivo, total FROM demanda_nao_atendida WHERE dia >= ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setDate(1, Date.valueOf(inicioJanela()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Chave chave = new Chave(rs.getDate("dia").toLocalDate(), rs.getInt("id_ubs"), rs.getInt("id_medicamento"),
+                                            rs.getString("termo"), rs.getString("motivo"));
+                    janela.merge(chave, rs.getLong("total"), Long::sum);
+                }
+            }
+            limitarJanela();
+            recalcularRanking();
+        } catch (Exception e) {
+            System.err.println("Aviso: não foi possível carregar a demanda não atendida. " + e.getMessage());
+        }
+    }
+
+    private static void gravarPendentes() {
+        // remove() é atômico em relação ao merge() de registrar: nenhuma ocorrência se perde
+        Map<Chave, Long> lote = new HashMap<>();
+        for (Chave chave : pendentes.keySet()) {
+            Long total = pendentes.remove(chave);
+            if (total != null) lote.put(chave, total);
+        }
+
+        if (!lote.isEmpty()) {
+            String sql = "INSERT INTO demanda_nao_atendida (dia, id_ubs, id_medicamento, termo, motivo, total) VALUES (?, ?, ?, ?, ?, ?) " +
+                         "ON DUPLICATE KEY UPDATE total = total + VALUES(total)";
+            try (Connection conn = DB.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (Map.Entry<Chave, Long> item : lote.entrySet()) {
+                    Chave chave = item.getKey();
+                    ps.setDate(1, Date.valueOf(chave.dia()));
+                    ps.setInt(2, chave.idUbs());
+                    ps.setInt(3, chave.idMedicamento());
+                    ps.setString(4, chave.termo());
+                    ps.setString(5, chave.motivo());
+                    ps.setLong(6, item.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            } catch (Exception e) {
+                // Devolve ao acumulador para a próxima tentativa
+                falhasGravacao.incrementAndGet();
+                lote.forEach((chave, total) -> pendentes.merge(chave, total, Long::sum));
+                System.err.println("Aviso: falha ao gravar demanda não atendida. " + e.getMessage());
+                return;
+            }
+            lote.forEach((chave, total) -> janela.merge(chave, total, Long::sum));
+        }
+
+        LocalDate inicio = inicioJanela();
+        janela.keySet().removeIf(chave -> chave.dia().isBefore(inicio));
+        limitarJanela();
+        recalcularRanking();
+    }
+
+    /**
+     * Acima do limite de combinações, tira da janela as de menor total, as menos relevantes para o ranking.
+     */
+    private static void limitarJanela() {
+        int excesso = janela.size() - MAX_CHAVES_JANELA;
+        if (excesso <= 0) return;
+        List<Map.Entry<Chave, Long>> ordenados = new ArrayList<>(janela.entrySet());
+        ordenados.sort(Map.Entry.comparingByValue());
+        for (int i = 0; i < excesso; i++) {
+            janela.remove(ordenados.get(i).getKey());
+        }
+        removidasDaJanela.addAndGet(excesso);
+    }
+
+    /**
+     * Grava as ocorrências pendentes (na thread de gravação) e para o agendamento. Usado no desligamento.
+     * @param timeoutMs Tempo máximo de espera pela gravação.
+     */
+    public static void encerrar(long timeoutMs) {
+        try {
+            agendador.submit(DemandaNaoAtendidaServico::gravarPendentes).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            System.err.println("Aviso: demanda não atendida pendente não foi gravada no desligamento. " + e.getMessage());
+        }
+        agendador.shutdown();
+    }
+
+    private static void recalcularRanking() {
+        Map<ItemRanking, Long> totais = new HashMap<>();
+        for (Map.Entry<Chave, Long> item : janela.entrySet()) {
+            Chave chave = item.getKey();
+            totais.merge(new ItemRanking(chave.idUbs(), chave.idMedicamento(), chave.termo(), chave.motivo()), item.getValue(), Long::sum);
+        }
+
+        List<Map.Entry<ItemRanking, Long>> ordenados = new ArrayList<>(totais.entrySet());
+        ordenados.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        List<Map<String, Object>> geral = new ArrayList<>();
+        Map<Integer, List<Map<String, Object>>> porUbs = new HashMap<>();
+        for (Map.Entry<ItemRanking, Long> item : ordenados) {
+            ItemRanking chave = item.getKey();
+            Map<String, Object> linha = new LinkedHashMap<>();
+            linha.put("id_ubs", chave.idUbs() == NENHUM ? null : chave.idUbs());
+            linha.put("id_medicamento", chave.idMedicamento() == NENHUM ? null : chave.idMedicamento());
+            linha.put("termo", chave.termo());
+            linha.put("motivo", chave.motivo());
+            linha.put("total", item.getValue());
+
+            if (geral.size() < TAMANHO_RANKING) geral.add(linha);
+            List<Map<String, Object>> daUbs = porUbs.computeIfAbsent(chave.idUbs(), id -> new ArrayList<>());
+            if (daUbs.size() < TAMANHO_RANKING) daUbs.add(linha);
+        }
+        ranking = List.copyOf(geral);
+        rankingPorUbs = porUbs;
+    }
+
+    private static LocalDate inicioJanela() {
+        return LocalDate.now().minusDays(DIAS_JANELA - 1L);
+    }
+
+    /**
+     * Contadores da demanda não atendida.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("ocorrencias", ocorrencias.get());
+        estatisticas.put("pendentes", pendentes.size());
+        estatisticas.put("descartadas_limite", descartadas.get());
+        estatisticas.put("chaves_janela_removidas", removidasDaJanela.get());
+        estatisticas.put("itens_no_ranking", ranking.size());
+        estatisticas.put("falhas_gravacao", falhasGravacao.get());
+        return estatisticas;
+    }
+}
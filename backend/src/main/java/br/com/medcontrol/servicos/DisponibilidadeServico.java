@@ -0,0 +1,203 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RF07 - Mantém a tabela disponibilidade_estoque: estoque físico válido e total reservado (ATIVA)
+ * por (medicamento, UBS). Assim a busca e a reserva leem a disponibilidade em O(1), em vez de
+ * somar estoque e reservas a cada requisição.
+ *
+ * Os métodos que recebem uma Connection participam da transação do chamador.
+ *
+ * Ordem de travas: quem altera estoque trava antes as linhas dos pares afetados (travarPares) e só
+ * depois toca em estoque. Com todos os escritores na mesma ordem, duas alterações simultâneas em lotes
+ * do mesmo par esperam uma pela outra em vez de entrar em deadlock.
+ */
+public class DisponibilidadeServico {
+
+    private static final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "disponibilidade-reconciliacao");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Recalcula o estoque físico válido (quantidade > 0 e não vencido) de um par (medicamento, UBS).
+     * Usado após qualquer alteração em estoque (cadastro, edição, exclusão, retirada), dentro da transação dela.
+     *
+     * O chamador já deve ter travado o par com travarPares antes de alterar o estoque; a trava é
+     * repetida aqui (sem custo, a linha já é da transação) para que recálculos concorrentes do mesmo par
+     * aconteçam um de cada vez. A soma usa leitura travada (FOR SHARE), que enxerga os lotes já
+     * confirmados por outras transações em vez do retrato tirado no início desta. Sem isso, duas
+     * alterações simultâneas podiam gravar um total_fisico desatualizado e permitir reservas acima do estoque.
+     */
+    public static void recalcularFisico(Connection conn, int idMedicamento, int idUbs) throws SQLException {
+        travarPar(conn, idMedicamento, idUbs);
+
+        long totalFisico = 0;
+        String sqlSoma = "SELECT COALESCE(SUM(quantidade), 0) FROM estoque " +
+                         "WHERE id_medicamento = ? AND id_ubs = ? AND quantidade > 0 AND data_validade > CURDATE() FOR SHARE";
+        try (PreparedStatement ps = conn.prepareStatement(sqlSoma)) {
+            ps.setInt(1, idMedicamento);
+            ps.setInt(2, idUbs);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) totalFisico = rs.getLong(1);
+            }
+        }
+
+        String sqlAtualizar = "UPDATE disponibilidade_estoque SET total_fisico = ? WHERE id_medicamento = ? AND id_ubs = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sqlAtualizar)) {
+            ps.setLong(1, totalFisico);
+            ps.setInt(2, idMedicamento);
+            ps.setInt(3, idUbs);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Trava (criando se preciso) as linhas dos pares {id_medicamento, id_ubs} em disponibilidade_estoque,
+     * sempre na mesma ordem (UBS, depois medicamento). Deve ser chamado antes de qualquer alteração em
+     * estoque na transação; veja a ordem de travas no comentário da classe.
+     */
+    public static void travarPares(Connection conn, Collection<int[]> pares) throws SQLException {
+        List<int[]> ordenados = new ArrayList<>(pares);
+        ordenados.sort(Comparator.<int[]>comparingInt(par -> par[1]).thenComparingInt(par -> par[0]));
+        int[] anterior = null;
+        for (int[] par : ordenados) {
+            if (anterior == null || anterior[0] != par[0] || anterior[1] != par[1]) {
+                travarPar(conn, par[0], par[1]);
+            }
+            anterior = par;
+        }
+    }
+
+    private static void travarPar(Connection conn, int idMedicamento, int idUbs) throws SQLException {
+        String sql = "INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs) VALUES (?, ?) " +
+                     "ON DUPLICATE KEY UPDATE total_fisico = total_fisico";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idMedicamento);
+            ps.setInt(2, idUbs);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Soma (ou subtrai, com delta negativo) do total reservado de um par (medicamento, UBS).
+     * Usado no cancelamento de reservas (a criação usa reservar).
+     */
+    public static void ajustarReservado(Connection conn, int idMedicamento, int idUbs, int delta) throws SQLException {
+        String sql = "INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_reservado) VALUES (?, ?, GREATEST(?, 0)) " +
+                     "ON DUPLICATE KEY UPDATE total_reservado = GREATEST(total_reservado + ?, 0)";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idMedicamento);
+            ps.setInt(2, idUbs);
+            ps.setInt(3, delta);
+            ps.setInt(4, delta);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Reserva a quantidade somente se ainda houver disponibilidade (UPDATE condicional).
+     * A checagem e o incremento acontecem na mesma instrução, sob a trava de linha do InnoDB,
+     * o que garante que não haja reserva acima do estoque mesmo com vários backends.
+     * @return true se a quantidade foi reservada; false se não há disponibilidade suficiente.
+     */
+    public static boolean reservar(Connection conn, int idMedicamento, int idUbs, int quantidade) throws SQLException {
+        String sql = "UPDATE disponibilidade_estoque SET total_reservado = total_reservado + ? " +
+                     "WHERE id_medicamento = ? AND id_ubs = ? AND total_fisico - total_reservado >= ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, quantidade);
+            ps.setInt(2, idMedicamento);
+            ps.setInt(3, idUbs);
+            ps.setInt(4, quantidade);
+            return ps.executeUpdate() > 0;
+        }
+    }
+
+    /**
+     * Disponibilidade real (físico - reservado) de um par, lida da tabela materializada.
+     * @return A quantidade disponível, ou 0 se o par não tiver estoque.
+     */
+    public static long consultarDisponivel(Connection conn, int idMedicamento, int idUbs) throws SQLException {
+        String sql = "SELECT total_fisico - total_reservado FROM disponibilidade_estoque WHERE id_medicamento = ? AND id_ubs = ?";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idMedicamento);
+            ps.setInt(2, idUbs);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Reconstrói a tabela inteira a partir de estoque e reservas, em uma transação.
+     * Corrige divergências e retira do físico os lotes que venceram desde a última execução.
+     */
+    public static void reconciliar() throws SQLException {
+        String sqlZerar = "UPDATE disponibilidade_estoque SET total_fisico = 0, total_reservado = 0";
+        String sqlFisico = "INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_fisico) " +
+                           "SELECT * FROM (SELECT id_medicamento, id_ubs, SUM(quantidade) AS soma FROM estoque " +
+                           "               WHERE quantidade > 0 AND data_validade > CURDATE() " +
+                           "               GROUP BY id_medicamento, id_ubs) AS f " +
+                           "ON DUPLICATE KEY UPDATE total_fisico = f.soma";
+        String sqlReservado = "INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_reservado) " +
+                              "SELECT * FROM (SELECT id_medicamento, id_ubs, SUM(quantidade_reservada) AS soma FROM reservas " +
+                              "               WHERE status = 'ATIVA' " +
+                              "               GROUP BY id_medicamento, id_ubs) AS r " +
+                              "ON DUPLICATE KEY UPDATE total_reservado = r.soma";
+
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate(sqlZerar);
+                st.executeUpdate(sqlFisico);
+                st.executeUpdate(sqlReservado);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Reconcilia na inicialização e agenda a reconciliação diária logo após a meia-noite
+     * (quando lotes passam a ser considerados vencidos).
+     */
+    public static void agendarReconciliacao() {
+        Runnable tarefa = () -> {
+            try {
+                reconciliar();
+                System.out.println("Disponibilidade de estoque reconciliada.");
+            } catch (Exception e) {
+                System.err.println("Falha ao reconciliar disponibilidade de estoque: " + e.getMessage());
+            }
+        };
+
+        agendador.execute(tarefa);
+
+        LocalDateTime agora = LocalDateTime.now();
+        LocalDateTime proximaExecucao = agora.toLocalDate().plusDays(1).atTime(LocalTime.of(0, 5));
+        long atrasoInicialMs = Duration.between(agora, proximaExecucao).toMillis();
+        agendador.scheduleAtFixedRate(tarefa, atrasoInicialMs, TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+    }
+}
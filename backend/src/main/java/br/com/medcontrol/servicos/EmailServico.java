@@ -147,11 +147,15 @@ public class EmailServico {
 // 
 package br.com.medcontrol.servicos;
 
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
 // --- VERSÃO DE TESTE (MODO MOCK) ---
 // Esta versão da classe é usada para desenvolvimento e testes locais
 // para evitar a necessidade de configurar a API do Gmail a todo momento.
 // Ela não envia e-mails reais, apenas simula o processo no console.
-public class EmailServico {
+// O envio em si é feito pela FilaEmailServico, que usa esta classe como transporte.
+public class EmailServico implements TransporteEmail {
     
     public EmailServico() {
         // Construtor vazio, pois a inicialização real do serviço do Gmail foi removida.
@@ -160,15 +164,39 @@ public class EmailServico {
     }
 
    
-    // Simula o envio de e-mail imprimindo as informações no console.
-    public void enviarCodigoVerificacao(String destinatario, String codigo, String motivo) {
+    // Monta o e-mail conforme o motivo e o coloca na fila de envio; retorna sem esperar a entrega.
+    public void enviarCodigoVerificacao(String destinatario, String codigo, String motivo) throws SQLException {
+        String assunto;
+        String corpo;
+        switch (motivo == null ? "" : motivo) {
+            case "cadastro":
+                assunto = "Seu Código de Verificação MedControl";
+                corpo = "Olá,\n\nO seu código para finalizar o cadastro no MedControl é: " + codigo;
+                break;
+            case "recuperacao":
+                assunto = "Recuperação de Senha - MedControl";
+                corpo = "Olá,\n\nRecebemos uma solicitação para redefinir sua senha. Use o código a seguir para continuar: " + codigo;
+                break;
+            case "alteracao":
+                assunto = "Confirmação de Alteração de E-mail - MedControl";
+                corpo = "Olá,\n\nPara confirmar a alteração do seu e-mail no MedControl, use o código: " + codigo;
+                break;
+            default:
+                assunto = "Código de Verificação MedControl";
+                corpo = "Seu código de verificação é: " + codigo;
+        }
+        // Depois que o código expira, o e-mail não serve mais: a fila o descarta em vez de enviá-lo atrasado
+        FilaEmailServico.enfileirar(destinatario, assunto, corpo, TimeUnit.MINUTES.toSeconds(ArmazemCodigosVerificacao.TTL_MINUTOS));
+    }
+
+    // Simula a entrega do e-mail imprimindo as informações no console (chamado pelas threads da fila).
+    @Override
+    public void enviar(Mensagem mensagem) {
         System.out.println("--- MODO DE TESTE: Simulação de envio de e-mail (API Gmail desativada) ---");
-        System.out.println("Destinatário: " + destinatario);
-        System.out.println("Código: " + codigo);
-        System.out.println("Motivo: " + motivo);
+        System.out.println("Destinatário: " + mensagem.destinatario());
+        System.out.println("Assunto: " + mensagem.assunto());
+        System.out.println(mensagem.corpo());
         System.out.println("---------------------------------------------------------------------");
-
-      
     }
 
    
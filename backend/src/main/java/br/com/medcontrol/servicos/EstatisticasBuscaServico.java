@@ -0,0 +1,248 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RF6.3 / RF09.3 - Estatísticas dos termos buscados ("mais pesquisados").
+ *
+ * Os termos chegam já normalizados (NormalizadorTexto) pelo LogBuscaServico e são contados em
+ * buscas_termos_diarias, uma linha por (dia, termo). O dashboard soma essa tabela pequena em vez de
+ * agrupar o log bruto. Para o top-K em tempo real há ainda um resumo Space-Saving em memória
+ * com as buscas do dia corrente.
+ */
+public class EstatisticasBuscaServico {
+
+    private static final int CAPACIDADE_SKETCH = Integer.getInteger("medcontrol.buscas.capacidadeSketch", 200);
+    private static final int DIAS_PREENCHIMENTO = Integer.getInteger("medcontrol.buscas.diasPreenchimento", 30);
+    private static final int TAMANHO_MAXIMO_TERMO = 255;
+
+    private static final SpaceSaving sketch = new SpaceSaving(CAPACIDADE_SKETCH);
+    private static LocalDate diaSketch = LocalDate.now(); // Protegido pelo monitor do sketch
+
+    private static final AtomicLong termosGravados = new AtomicLong();
+    private static final AtomicLong falhasGravacao = new AtomicLong();
+
+    private EstatisticasBuscaServico() {
+    }
+
+    /**
+     * Normaliza o termo para contagem (mesma forma usada nas buscas), limitado ao tamanho da coluna.
+     */
+    public static String normalizarTermo(String termo) {
+        String normalizado = NormalizadorTexto.normalizar(termo);
+        return normalizado.length() > TAMANHO_MAXIMO_TERMO ? normalizado.substring(0, TAMANHO_MAXIMO_TERMO) : normalizado;
+    }
+
+    /**
+     * Soma ao dia corrente as contagens de um lote de buscas, na conexão (e na transação) do chamador.
+     * O resumo em memória não é tocado aqui: o chamador usa registrarNoResumo depois do commit,
+     * para que um lote regravado após falha não seja contado duas vezes.
+     * @param contagens termo normalizado -> {total de buscas, buscas com resultado}.
+     */
+    public static void gravarLote(Connection conn, Map<String, int[]> contagens) throws SQLException {
+        if (contagens.isEmpty()) return;
+
+        String sql = "INSERT INTO buscas_termos_diarias (dia, termo, total_buscas, total_com_resultado) VALUES (CURDATE(), ?, ?, ?) " +
+                     "ON DUPLICATE KEY UPDATE total_buscas = total_buscas + VALUES(total_buscas), " +
+                     "total_com_resultado = total_com_resultado + VALUES(total_com_resultado)";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (Map.Entry<String, int[]> item : contagens.entrySet()) {
+                ps.setString(1, item.getKey());
+                ps.setInt(2, item.getValue()[0]);
+                ps.setInt(3, item.getValue()[1]);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            termosGravados.addAndGet(contagens.size());
+        } catch (SQLException e) {
+            falhasGravacao.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Soma as buscas com resultado de um lote já gravado ao top-K em tempo real do dia.
+     */
+    public static void registrarNoResumo(Map<String, int[]> contagens) {
+        synchronized (sketch) {
+            LocalDate hoje = LocalDate.now();
+            if (!hoje.equals(diaSketch)) {
+                sketch.limpar();
+                diaSketch = hoje;
+            }
+            for (Map.Entry<String, int[]> item : contagens.entrySet()) {
+                if (item.getValue()[1] > 0) sketch.adicionar(item.getKey(), item.getValue()[1]);
+            }
+        }
+    }
+
+    /**
+     * Top-K de hoje (buscas com resultado) segundo o resumo em memória.
+     * "total" pode superestimar em até "erro_maximo" ocorrências; o termo é garantido no top-K
+     * quando total - erro_maximo supera o total do K+1-ésimo.
+     */
+    public static List<Map<String, Object>> maisBuscadosAgora(int k) {
+        synchronized (sketch) {
+            if (!LocalDate.now().equals(diaSketch)) {
+                sketch.limpar();
+                diaSketch = LocalDate.now();
+            }
+            return sketch.topo(k);
+        }
+    }
+
+    /**
+     * Na inicialização: se a tabela estiver vazia mas houver log de buscas, preenche os últimos dias
+     * em segundo plano (a normalização dos termos é feita em Java, como na gravação).
+     */
+    public static void preencherSeVazia() {
+        Thread preenchimento = new Thread(() -> {
+            try {
+                boolean precisaPreencher;
+                try (Connection conn = DB.getConnection();
+                     Statement st = conn.createStatement();
+                     ResultSet rs = st.executeQuery(
+                         "SELECT EXISTS (SELECT 1 FROM buscas_termos_diarias), EXISTS (SELECT 1 FROM log_buscas)")) {
+                    precisaPreencher = rs.next() && !rs.getBoolean(1) && rs.getBoolean(2);
+                }
+                if (precisaPreencher) {
+                    int linhas = preencher(LocalDate.now().minusDays(DIAS_PREENCHIMENTO));
+                    System.out.println("Estatísticas de busca preenchidas a partir do log: " + linhas + " linhas.");
+                }
+            } catch (Exception e) {
+                System.err.println("Aviso: não foi possível preencher as estatísticas de busca. " + e.getMessage());
+            }
+        }, "estatisticas-busca-preenchimento");
+        preenchimento.setDaemon(true);
+        preenchimento.start();
+    }
+
+    private static int preencher(LocalDate inicio) throws SQLException {
+        String sqlLeitura = "SELECT DATE(data_busca) AS dia, termo_buscado, teve_resultados, COUNT(*) AS total " +
+                            "FROM log_buscas WHERE data_busca >= ? " +
+                            "GROUP BY DATE(data_busca), termo_buscado, teve_resultados";
+        String sqlGravacao = "INSERT INTO buscas_termos_diarias (dia, termo, total_buscas, total_com_resultado) VALUES (?, ?, ?, ?) " +
+                             "ON DUPLICATE KEY UPDATE total_buscas = VALUES(total_buscas), total_com_resultado = VALUES(total_com_resultado)";
+
+        // Grafias diferentes do mesmo termo ("Dipirona", "dipirona ") caem na mesma linha
+        Map<LocalDate, Map<String, int[]>> porDia = new HashMap<>();
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sqlLeitura)) {
+            ps.setTimestamp(1, Timestamp.valueOf(inicio.atStartOfDay()));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String termo = normalizarTermo(rs.getString("termo_buscado"));
+                    if (termo.isEmpty()) continue;
+                    int[] contagem = porDia.computeIfAbsent(rs.getDate("dia").toLocalDate(), d -> new HashMap<>())
+                                           .computeIfAbsent(termo, t -> new int[2]);
+                    contagem[0] += rs.getInt("total");
+                    if (rs.getBoolean("teve_resultados")) contagem[1] += rs.getInt("total");
+                }
+            }
+
+            int linhas = 0;
+            try (PreparedStatement psGravacao = conn.prepareStatement(sqlGravacao)) {
+                for (Map.Entry<LocalDate, Map<String, int[]>> dia : porDia.entrySet()) {
+                    for (Map.Entry<String, int[]> item : dia.getValue().entrySet()) {
+                        psGravacao.setDate(1, Date.valueOf(dia.getKey()));
+                        psGravacao.setString(2, item.getKey());
+                        psGravacao.setInt(3, item.getValue()[0]);
+                        psGravacao.setInt(4, item.getValue()[1]);
+                        psGravacao.addBatch();
+                        linhas++;
+                    }
+                }
+                psGravacao.executeBatch();
+            }
+            return linhas;
+        }
+    }
+
+    /**
+     * Contadores das estatísticas de busca.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        synchronized (sketch) {
+            estatisticas.put("termos_no_sketch", sketch.tamanho());
+            estatisticas.put("capacidade_sketch", CAPACIDADE_SKETCH);
+        }
+        estatisticas.put("termos_gravados", termosGravados.get());
+        estatisticas.put("falhas_gravacao", falhasGravacao.get());
+        return estatisticas;
+    }
+
+    /**
+     * Algoritmo Space-Saving (Metwally et al.): guarda no máximo "capacidade" termos; um termo novo
+     * com o resumo cheio substitui o de menor contagem e herda essa contagem como erro máximo.
+     * Não é thread-safe: o acesso é sincronizado pelo serviço.
+     */
+    private static final class SpaceSaving {
+
+        private static final class Contador {
+            long total;
+            long erro;
+        }
+
+        private final int capacidade;
+        private final Map<String, Contador> contadores = new HashMap<>();
+
+        SpaceSaving(int capacidade) {
+            this.capacidade = capacidade;
+        }
+
+        void adicionar(String termo, long quantidade) {
+            Contador contador = contadores.get(termo);
+            if (contador == null) {
+                contador = new Contador();
+                if (contadores.size() >= capacidade) {
+                    Map.Entry<String, Contador> menor = null;
+                    for (Map.Entry<String, Contador> item : contadores.entrySet()) {
+                        if (menor == null || item.getValue().total < menor.getValue().total) menor = item;
+                    }
+                    contadores.remove(menor.getKey());
+                    contador.total = menor.getValue().total;
+                    contador.erro = menor.getValue().total;
+                }
+                contadores.put(termo, contador);
+            }
+            contador.total += quantidade;
+        }
+
+        List<Map<String, Object>> topo(int k) {
+            List<Map.Entry<String, Contador>> itens = new ArrayList<>(contadores.entrySet());
+            itens.sort((a, b) -> Long.compare(b.getValue().total, a.getValue().total));
+            List<Map<String, Object>> resultado = new ArrayList<>();
+            for (Map.Entry<String, Contador> item : itens.subList(0, Math.min(k, itens.size()))) {
+                Map<String, Object> termo = new LinkedHashMap<>();
+                termo.put("termo", item.getKey());
+                termo.put("total", item.getValue().total);
+                termo.put("erro_maximo", item.getValue().erro);
+                resultado.add(termo);
+            }
+            return resultado;
+        }
+
+        int tamanho() {
+            return contadores.size();
+        }
+
+        void limpar() {
+            contadores.clear();
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RF07.5 - Expiração automática de reservas.
+ *
+ * Reservas ATIVA cujo horário (data_hora_reserva + tolerância) já passou viram EXPIRADA e
+ * devolvem a quantidade à disponibilidade. As reservas criadas/reagendadas neste backend entram
+ * numa fila de prazos (DelayQueue) e expiram na hora certa; uma varredura periódica, apoiada no
+ * índice (status, data_hora_reserva), pega as que vieram de outros backends ou de antes da inicialização.
+ * As expirações são feitas em lotes limitados.
+ */
+public class ExpiracaoReservasServico {
+
+    private static final long TOLERANCIA_MINUTOS = Long.getLong("medcontrol.reservas.toleranciaMinutos", 120L);
+    private static final int TAMANHO_LOTE = Integer.getInteger("medcontrol.reservas.loteExpiracao", 200);
+    private static final long INTERVALO_VARREDURA_MINUTOS = Long.getLong("medcontrol.reservas.varreduraMinutos", 10L);
+    private static final int HISTORICO_EXECUCOES = 20;
+
+    private static final class ReservaAgendada implements Delayed {
+        final int idReserva;
+        final long prazoMs;
+
+        ReservaAgendada(int idReserva, long prazoMs) {
+            this.idReserva = idReserva;
+            this.prazoMs = prazoMs;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(prazoMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed outro) {
+            return Long.compare(prazoMs, ((ReservaAgendada) outro).prazoMs);
+        }
+    }
+
+    private static final DelayQueue<ReservaAgendada> fila = new DelayQueue<>();
+    // id_reserva -> prazo agendado (evita duplicar a mesma reserva na fila)
+    private static final Map<Integer, Long> agendadas = new ConcurrentHashMap<>();
+
+    private static final AtomicLong totalExpiradas = new AtomicLong();
+    private static final AtomicLong totalExecucoes = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
+    private static final Deque<Map<String, Object>> ultimasExecucoes = new ArrayDeque<>();
+
+    private static final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "expiracao-reservas-varredura");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static volatile boolean iniciado = false;
+
+    private ExpiracaoReservasServico() {
+    }
+
+    /**
+     * Inicia o consumidor da fila de prazos e a varredura periódica (a primeira roda imediatamente).
+     */
+    public static synchronized void iniciar() {
+        if (iniciado) return;
+        iniciado = true;
+
+        Thread consumidor = new Thread(ExpiracaoReservasServico::consumirFila, "expiracao-reservas");
+        consumidor.setDaemon(true);
+        consumidor.start();
+
+        agendador.scheduleWithFixedDelay(() -> {
+            try {
+                varrer();
+            } catch (Exception e) {
+                falhas.incrementAndGet();
+                System.err.println("Falha na varredura de reservas expiradas: " + e.getMessage());
+            }
+        }, 0, INTERVALO_VARREDURA_MINUTOS, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Agenda (ou reagenda) a expiração de uma reserva ATIVA.
+     * @param idReserva ID da reserva.
+     * @param dataHoraReserva Horário marcado para a retirada.
+     */
+    public static void agendar(int idReserva, LocalDateTime dataHoraReserva) {
+        long prazoMs = dataHoraReserva.plusMinutes(TOLERANCIA_MINUTOS)
+                .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        Long anterior = agendadas.put(idReserva, prazoMs);
+        if (anterior == null || anterior != prazoMs) {
+            fila.add(new ReservaAgendada(idReserva, prazoMs));
+        }
+    }
+
+    /**
+     * Retira da fila os prazos vencidos, em lotes, e expira as reservas correspondentes.
+     */
+    private static void consumirFila() {
+        List<ReservaAgendada> vencidas = new ArrayList<>(TAMANHO_LOTE);
+        while (true) {
+            try {
+                vencidas.add(fila.take());
+                fila.drainTo(vencidas, TAMANHO_LOTE - vencidas.size());
+
+                List<Integer> ids = new ArrayList<>(vencidas.size());
+                for (ReservaAgendada agendada : vencidas) {
+                    // Entradas antigas de reservas reagendadas são ignoradas
+                    if (agendadas.remove(agendada.idReserva, agendada.prazoMs)) {
+                        ids.add(agendada.idReserva);
+                    }
+                }
+                if (!ids.isEmpty()) {
+                    registrarExecucao("fila", expirarLote(ids));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                falhas.incrementAndGet();
+                System.err.println("Falha ao expirar lote de reservas: " + e.getMessage());
+            } finally {
+                vencidas.clear();
+            }
+        }
+    }
+
+    /**
+     * Expira, em lotes, as reservas já vencidas e agenda as que vencem até a próxima varredura.
+     * Usa apenas consultas por faixa no índice (status, data_hora_reserva).
+     */
+    public static int varrer() throws SQLException {
+        LocalDateTime limite = LocalDateTime.now().minusMinutes(TOLERANCIA_MINUTOS);
+        String sqlVencidas = "SELECT id_reserva FROM reservas " +
+                             "WHERE status = 'ATIVA' AND data_hora_reserva < ? " +
+                             "ORDER BY data_hora_reserva LIMIT ?";
+
+        int expiradasNaVarredura = 0;
+        List<Integer> ids;
+        do {
+            ids = new ArrayList<>();
+            try (Connection conn = DB.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sqlVencidas)) {
+                ps.setTimestamp(1, Timestamp.valueOf(limite));
+                ps.setInt(2, TAMANHO_LOTE);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) ids.add(rs.getInt(1));
+                }
+            }
+            if (ids.isEmpty()) break;
+
+            int expiradas = expirarLote(ids);
+            expiradasNaVarredura += expiradas;
+            // Se nada do lote pôde ser expirado (concorrência), não insiste nos mesmos IDs
+            if (expiradas == 0) break;
+        } while (ids.size() == TAMANHO_LOTE);
+
+        registrarExecucao("varredura", expiradasNaVarredura);
+        agendarProximas(limite);
+        return expiradasNaVarredura;
+    }
+
+    private static void agendarProximas(LocalDateTime inicio) throws SQLException {
+        LocalDateTime fim = inicio.plusMinutes(INTERVALO_VARREDURA_MINUTOS);
+        String sql = "SELECT id_reserva, data_hora_reserva FROM reservas " +
+                     "WHERE status = 'ATIVA' AND data_hora_reserva >= ? AND data_hora_reserva < ? " +
+                     "ORDER BY data_hora_reserva LIMIT ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setTimestamp(1, Timestamp.valueOf(inicio));
+            ps.setTimestamp(2, Timestamp.valueOf(fim));
+            ps.setInt(3, TAMANHO_LOTE * 10);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    agendar(rs.getInt("id_reserva"), rs.getTimestamp("data_hora_reserva").toLocalDateTime());
+                }
+            }
+        }
+    }
+
+    /**
+     * Expira as reservas informadas que ainda estiverem ATIVA e vencidas, em uma transação,
+     * devolvendo as quantidades à disponibilidade materializada.
+     * @return Quantas reservas foram expiradas.
+     */
+    private static int expirarLote(List<Integer> ids) throws SQLException {
+        String marcadores = String.join(",", Collections.nCopies(ids.size(), "?"));
+        LocalDateTime limite = LocalDateTime.now().minusMinutes(TOLERANCIA_MINUTOS);
+
+        String sqlTravar = "SELECT id_reserva, id_medicamento, id_ubs, quantidade_reservada FROM reservas " +
+                           "WHERE id_reserva IN (" + marcadores + ") AND status = 'ATIVA' AND data_hora_reserva < ? " +
+                           "FOR UPDATE";
+
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+            try {
+                List<Integer> expirar = new ArrayList<>();
+                // (id_medicamento, id_ubs) -> quantidade a devolver
+                Map<List<Integer>, Integer> devolucoes = new HashMap<>();
+
+                try (PreparedStatement ps = conn.prepareStatement(sqlTravar)) {
+                    int indice = 1;
+                    for (Integer id : ids) ps.setInt(indice++, id);
+                    ps.setTimestamp(indice, Timestamp.valueOf(limite));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            expirar.add(rs.getInt("id_reserva"));
+                            devolucoes.merge(List.of(rs.getInt("id_medicamento"), rs.getInt("id_ubs")),
+                                             rs.getInt("quantidade_reservada"), Integer::sum);
+                        }
+                    }
+                }
+
+                if (expirar.isEmpty()) {
+                    conn.rollback();
+                    return 0;
+                }
+
+                String sqlExpirar = "UPDATE reservas SET status = 'EXPIRADA' WHERE id_reserva IN (" +
+                                    String.join(",", Collections.nCopies(expirar.size(), "?")) + ")";
+                try (PreparedStatement ps = conn.prepareStatement(sqlExpirar)) {
+                    int indice = 1;
+                    for (Integer id : expirar) ps.setInt(indice++, id);
+                    ps.executeUpdate();
+                }
+
+                for (Map.Entry<List<Integer>, Integer> devolucao : devolucoes.entrySet()) {
+                    DisponibilidadeServico.ajustarReservado(conn, devolucao.getKey().get(0), devolucao.getKey().get(1), -devolucao.getValue());
+                }
+
+                conn.commit();
+                totalExpiradas.addAndGet(expirar.size());
+                return expirar.size();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static void registrarExecucao(String origem, int expiradas) {
+        totalExecucoes.incrementAndGet();
+        if (expiradas > 0) {
+            System.out.println("Reservas expiradas (" + origem + "): " + expiradas);
+        }
+        Map<String, Object> execucao = new LinkedHashMap<>();
+        execucao.put("origem", origem);
+        execucao.put("expiradas", expiradas);
+        execucao.put("data_hora", LocalDateTime.now().toString());
+        synchronized (ultimasExecucoes) {
+            ultimasExecucoes.addFirst(execucao);
+            if (ultimasExecucoes.size() > HISTORICO_EXECUCOES) ultimasExecucoes.removeLast();
+        }
+    }
+
+    /**
+     * Contadores da expiração de reservas, incluindo quantas foram expiradas em cada execução recente.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("tolerancia_minutos", TOLERANCIA_MINUTOS);
+        estatisticas.put("agendadas", agendadas.size());
+        estatisticas.put("total_expiradas", totalExpiradas.get());
+        estatisticas.put("execucoes", totalExecucoes.get());
+        estatisticas.put("falhas", falhas.get());
+        synchronized (ultimasExecucoes) {
+            estatisticas.put("ultimas_execucoes", new ArrayList<>(ultimasExecucoes));
+        }
+        return estatisticas;
+    }
+}
@@ -0,0 +1,263 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * RF09 - Exportação em massa dos relatórios (CSV e arquivo colunar).
+ *
+ * As exportações rodam num pool próprio (fora das threads de requisição do Javalin) e leem o
+ * banco com cursor (fetchSize), escrevendo cada linha direto na saída. Assim, exportar milhões
+ * de linhas não acumula nada em memória.
+ */
+public class ExportacaoServico {
+
+    private static final int THREADS = Integer.getInteger("medcontrol.exportacoes.threads", 2);
+    private static final int FILA = Integer.getInteger("medcontrol.exportacoes.fila", 16);
+    private static final int LINHAS_POR_GRUPO = Integer.getInteger("medcontrol.exportacoes.linhasPorGrupo", 65_536);
+    private static final Path DIRETORIO = Paths.get(System.getProperty("medcontrol.exportacoes.diretorio", "exportacoes"));
+
+    /** Identifica o arquivo colunar (ver escreverColunar). */
+    private static final byte[] ASSINATURA_COLUNAR = "MCOL1".getBytes(StandardCharsets.US_ASCII);
+
+    private static final AtomicInteger contadorThreads = new AtomicInteger();
+    private static final ExecutorService executor = new ThreadPoolExecutor(
+        THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(FILA),
+        r -> {
+            Thread t = new Thread(r, "exportacao-" + contadorThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+
+    private static final AtomicLong exportacoes = new AtomicLong();
+    private static final AtomicLong linhasExportadas = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
+
+    /**
+     * Consulta parametrizada de uma exportação.
+     */
+    public record Consulta(String sql, List<Object> parametros) {}
+
+    private ExportacaoServico() {
+    }
+
+    /**
+     * Pool exclusivo das exportações. Recusa tarefas (RejectedExecutionException) quando a fila enche.
+     */
+    public static ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Escreve o resultado da consulta como CSV (cabeçalho = rótulos das colunas).
+     * @param saida Destino; é fechado ao final.
+     * @param gzip Se true, comprime a saída com gzip.
+     * @return Quantas linhas foram escritas.
+     */
+    public static long escreverCsv(Consulta consulta, OutputStream saida, boolean gzip) throws SQLException, IOException {
+        OutputStream destino = gzip ? new GZIPOutputStream(saida, 64 * 1024) : saida;
+        long linhas = 0;
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = prepararCursor(conn, consulta);
+             ResultSet rs = ps.executeQuery();
+             Writer out = new BufferedWriter(new OutputStreamWriter(destino, StandardCharsets.UTF_8), 64 * 1024)) {
+
+            ResultSetMetaData meta = rs.getMetaData();
+            int colunas = meta.getColumnCount();
+
+            for (int i = 1; i <= colunas; i++) {
+                if (i > 1) out.write(',');
+                out.write(escaparCsv(meta.getColumnLabel(i)));
+            }
+            out.write("\r\n");
+
+            while (rs.next()) {
+                for (int i = 1; i <= colunas; i++) {
+                    if (i > 1) out.write(',');
+                    String valor = rs.getString(i);
+                    if (valor != null) out.write(escaparCsv(valor));
+                }
+                out.write("\r\n");
+                linhas++;
+            }
+        } catch (SQLException | IOException e) {
+            falhas.incrementAndGet();
+            throw e;
+        }
+        exportacoes.incrementAndGet();
+        linhasExportadas.addAndGet(linhas);
+        return linhas;
+    }
+
+    /**
+     * Grava o resultado da consulta num arquivo colunar compacto no diretório de exportações.
+     * O arquivo é escrito como "nome.parcial" e renomeado só quando termina.
+     *
+     * Formato (tudo dentro de um fluxo gzip, inteiros em big-endian):
+     * assinatura "MCOL1"; nº de colunas (int); para cada coluna: nome (UTF) e tipo (byte: 'L' inteiro, 'S' texto).
+     * Depois, grupos de linhas: nº de linhas do grupo (int) seguido de cada coluna inteira do grupo;
+     * cada valor é um byte de presença (0 = nulo) e, se presente, um long ou um UTF. Um grupo com 0 linhas encerra o arquivo.
+     * @return Caminho do arquivo gerado.
+     */
+    public static Path escreverColunar(Consulta consulta, String nomeArquivo) throws SQLException, IOException {
+        Files.createDirectories(DIRETORIO);
+        Path destino = DIRETORIO.resolve(nomeArquivo);
+        Path parcial = DIRETORIO.resolve(nomeArquivo + ".parcial");
+
+        long linhas = 0;
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = prepararCursor(conn, consulta);
+             ResultSet rs = ps.executeQuery();
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                 new GZIPOutputStream(Files.newOutputStream(parcial), 64 * 1024), 64 * 1024))) {
+
+            ResultSetMetaData meta = rs.getMetaData();
+            int colunas = meta.getColumnCount();
+            boolean[] inteira = new boolean[colunas];
+
+            out.write(ASSINATURA_COLUNAR);
+            out.writeInt(colunas);
+            for (int i = 0; i < colunas; i++) {
+                inteira[i] = ehInteira(meta.getColumnType(i + 1));
+                out.writeUTF(meta.getColumnLabel(i + 1));
+                out.writeByte(inteira[i] ? 'L' : 'S');
+            }
+
+            // Um grupo de linhas por vez em memória, coluna a coluna
+            List<Object[]> grupo = new ArrayList<>(Math.min(LINHAS_POR_GRUPO, 4_096));
+            while (rs.next()) {
+                Object[] linha = new Object[colunas];
+                for (int i = 0; i < colunas; i++) {
+                    if (inteira[i]) {
+                        long valor = rs.getLong(i + 1);
+                        linha[i] = rs.wasNull() ? null : valor;
+                    } else {
+                        linha[i] = rs.getString(i + 1);
+                    }
+                }
+                grupo.add(linha);
+                linhas++;
+                if (grupo.size() == LINHAS_POR_GRUPO) {
+                    escreverGrupo(out, grupo, inteira);
+                    grupo.clear();
+                }
+            }
+            if (!grupo.isEmpty()) escreverGrupo(out, grupo, inteira);
+            out.writeInt(0);
+        } catch (SQLException | IOException e) {
+            falhas.incrementAndGet();
+            Files.deleteIfExists(parcial);
+            throw e;
+        }
+
+        Files.move(parcial, destino, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        exportacoes.incrementAndGet();
+        linhasExportadas.addAndGet(linhas);
+        return destino;
+    }
+
+    /**
+     * Lista os arquivos já concluídos no diretório de exportações.
+     */
+    public static List<Map<String, Object>> listarArquivos() throws IOException {
+        List<Map<String, Object>> arquivos = new ArrayList<>();
+        if (!Files.isDirectory(DIRETORIO)) return arquivos;
+        try (var caminhos = Files.list(DIRETORIO)) {
+            for (Path caminho : (Iterable<Path>) caminhos.sorted()::iterator) {
+                String nome = caminho.getFileName().toString();
+                if (nome.endsWith(".parcial")) continue;
+                Map<String, Object> arquivo = new LinkedHashMap<>();
+                arquivo.put("nome", nome);
+                arquivo.put("tamanho_bytes", Files.size(caminho));
+                arquivo.put("modificado_em", Files.getLastModifiedTime(caminho).toString());
+                arquivos.add(arquivo);
+            }
+        }
+        return arquivos;
+    }
+
+    private static void escreverGrupo(DataOutputStream out, List<Object[]> grupo, boolean[] inteira) throws IOException {
+        out.writeInt(grupo.size());
+        for (int coluna = 0; coluna < inteira.length; coluna++) {
+            for (Object[] linha : grupo) {
+                Object valor = linha[coluna];
+                if (valor == null) {
+                    out.writeByte(0);
+                } else if (inteira[coluna]) {
+                    out.writeByte(1);
+                    out.writeLong((Long) valor);
+                } else {
+                    out.writeByte(1);
+                    out.writeUTF((String) valor);
+                }
+            }
+        }
+    }
+
+    private static PreparedStatement prepararCursor(Connection conn, Consulta consulta) throws SQLException {
+        if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+        PreparedStatement ps = conn.prepareStatement(consulta.sql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        // Integer.MIN_VALUE: o driver do MySQL entrega as linhas uma a uma conforme chegam, sem
+        // carregar o resultado inteiro na memória. Enquanto o ResultSet estiver aberto, a conexão
+        // não aceita outros comandos; por isso cada exportação usa uma conexão só para a consulta.
+        ps.setFetchSize(Integer.MIN_VALUE);
+        for (int i = 0; i < consulta.parametros().size(); i++) {
+            ps.setObject(i + 1, consulta.parametros().get(i));
+        }
+        return ps;
+    }
+
+    private static boolean ehInteira(int tipo) {
+        return tipo == Types.INTEGER || tipo == Types.BIGINT || tipo == Types.SMALLINT || tipo == Types.TINYINT;
+    }
+
+    private static String escaparCsv(String valor) {
+        if (valor.indexOf(',') < 0 && valor.indexOf('"') < 0 && valor.indexOf('\n') < 0 && valor.indexOf('\r') < 0) {
+            return valor;
+        }
+        return '"' + valor.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Contadores das exportações.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("em_execucao", pool.getActiveCount());
+        estatisticas.put("na_fila", pool.getQueue().size());
+        estatisticas.put("exportacoes", exportacoes.get());
+        estatisticas.put("linhas_exportadas", linhasExportadas.get());
+        estatisticas.put("falhas", falhas.get());
+        return estatisticas;
+    }
+}
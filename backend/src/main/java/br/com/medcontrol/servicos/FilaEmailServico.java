@@ -0,0 +1,381 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fila durável de e-mails de saída (tabela fila_emails).
+ *
+ * Quem envia e-mail só grava a mensagem na fila e retorna. Um pool de threads reivindica lotes de
+ * mensagens pendentes (SELECT ... FOR UPDATE SKIP LOCKED, então várias threads ou instâncias não pegam
+ * a mesma mensagem) e as entrega pelo TransporteEmail configurado. Falhas voltam para a fila com espera
+ * exponencial até MAX_TENTATIVAS; cada destinatário recebe no máximo LIMITE_POR_DESTINATARIO mensagens
+ * por janela, e o excedente é adiado.
+ *
+ * Mensagens com validade (valido_ate, ex.: códigos de verificação) não são enviadas depois dela: em vez
+ * de adiá-las ou tentar de novo além da validade, a fila as marca como EXPIRADO. O corpo é apagado assim
+ * que a mensagem sai da fila (ENVIADO, FALHOU ou EXPIRADO), para não manter códigos em texto no banco.
+ */
+public class FilaEmailServico {
+
+    private static final int THREADS = Integer.getInteger("medcontrol.email.threads", 2);
+    private static final int TAMANHO_LOTE = Integer.getInteger("medcontrol.email.tamanhoLote", 20);
+    private static final long INTERVALO_MS = Long.getLong("medcontrol.email.intervaloMs", 2_000L);
+    private static final int MAX_TENTATIVAS = Integer.getInteger("medcontrol.email.maxTentativas", 6);
+    private static final long ESPERA_BASE_MS = Long.getLong("medcontrol.email.esperaBaseMs", 15_000L);
+    private static final long ESPERA_MAXIMA_MS = Long.getLong("medcontrol.email.esperaMaximaMs", 3_600_000L);
+    private static final int LIMITE_POR_DESTINATARIO = Integer.getInteger("medcontrol.email.limitePorDestinatario", 5);
+    private static final long JANELA_DESTINATARIO_MS = TimeUnit.MINUTES.toMillis(Long.getLong("medcontrol.email.janelaDestinatarioMinutos", 10L));
+    // Mensagens em ENVIANDO há mais tempo que isso são de uma thread/instância que caiu
+    private static final int MINUTOS_ENVIO_PRESO = 10;
+    private static final int DIAS_RETENCAO_FINALIZADOS = 7;
+
+    /**
+     * Mensagem reivindicada para envio e sua validade (null = sem validade).
+     */
+    private record Reivindicada(TransporteEmail.Mensagem mensagem, Timestamp validoAte) {
+        boolean venceAte(long momento) {
+            return validoAte != null && validoAte.getTime() <= momento;
+        }
+    }
+
+    private static volatile TransporteEmail transporte;
+
+    // Acorda uma thread de envio assim que algo é enfileirado (sem esperar o intervalo)
+    private static final Semaphore sinal = new Semaphore(0);
+    // destinatário -> momentos (epoch ms) dos envios dentro da janela
+    private static final Map<String, Deque<Long>> enviosPorDestinatario = new HashMap<>();
+
+    private static final AtomicLong enfileirados = new AtomicLong();
+    private static final AtomicLong enviados = new AtomicLong();
+    private static final AtomicLong falhasTemporarias = new AtomicLong();
+    private static final AtomicLong falhasDefinitivas = new AtomicLong();
+    private static final AtomicLong adiadosPorLimite = new AtomicLong();
+    private static final AtomicLong expirados = new AtomicLong();
+
+    private static final ScheduledExecutorService manutencao = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "fila-emails-manutencao");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private FilaEmailServico() {
+    }
+
+    /**
+     * Define o transporte e inicia as threads de envio e a manutenção da fila.
+     */
+    public static synchronized void iniciar(TransporteEmail transporteEmail) {
+        if (transporte != null) return;
+        transporte = transporteEmail;
+        for (int i = 1; i <= THREADS; i++) {
+            Thread t = new Thread(FilaEmailServico::executarEnvio, "fila-emails-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        manutencao.scheduleWithFixedDelay(FilaEmailServico::manter, 0, 5, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Grava a mensagem na fila para envio imediato, sem prazo de validade.
+     * @return O id da mensagem na fila.
+     */
+    public static long enfileirar(String destinatario, String assunto, String corpo) throws SQLException {
+        return enfileirar(destinatario, assunto, corpo, 0);
+    }
+
+    /**
+     * Grava a mensagem na fila para envio imediato.
+     * @param validadeSegundos Prazo para a entrega; passado dele, a mensagem é descartada (0 = sem prazo).
+     * @return O id da mensagem na fila.
+     */
+    public static long enfileirar(String destinatario, String assunto, String corpo, long validadeSegundos) throws SQLException {
+        String sql = "INSERT INTO fila_emails (destinatario, assunto, corpo, valido_ate) " +
+                     "VALUES (?, ?, ?, IF(? > 0, NOW() + INTERVAL ? SECOND, NULL))";
+        long id;
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            ps.setString(1, destinatario);
+            ps.setString(2, assunto);
+            ps.setString(3, corpo);
+            ps.setLong(4, validadeSegundos);
+            ps.setLong(5, validadeSegundos);
+            ps.executeUpdate();
+            try (ResultSet chaves = ps.getGeneratedKeys()) {
+                id = chaves.next() ? chaves.getLong(1) : -1;
+            }
+        }
+        enfileirados.incrementAndGet();
+        sinal.release();
+        return id;
+    }
+
+    private static void executarEnvio() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<Reivindicada> lote = reivindicar();
+                if (lote.isEmpty()) {
+                    sinal.tryAcquire(INTERVALO_MS, TimeUnit.MILLISECONDS);
+                    sinal.drainPermits();
+                    continue;
+                }
+                processar(lote);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("--- FALHA NA FILA DE E-MAILS ---");
+                e.printStackTrace();
+                try {
+                    Thread.sleep(INTERVALO_MS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marca como ENVIANDO um lote de mensagens pendentes, com a tentativa vencida e ainda válidas, e o devolve.
+     */
+    private static List<Reivindicada> reivindicar() throws SQLException {
+        String sqlSelecionar = "SELECT id_email, destinatario, assunto, corpo, valido_ate FROM fila_emails " +
+                               "WHERE status = 'PENDENTE' AND proxima_tentativa <= NOW() " +
+                               "AND (valido_ate IS NULL OR valido_ate > NOW()) " +
+                               "ORDER BY proxima_tentativa LIMIT ? FOR UPDATE SKIP LOCKED";
+        List<Reivindicada> lote = new ArrayList<>();
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(sqlSelecionar)) {
+                    ps.setInt(1, TAMANHO_LOTE);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            TransporteEmail.Mensagem mensagem = new TransporteEmail.Mensagem(rs.getLong("id_email"), rs.getString("destinatario"),
+                                                                                             rs.getString("assunto"), rs.getString("corpo"));
+                            lote.add(new Reivindicada(mensagem, rs.getTimestamp("valido_ate")));
+                        }
+                    }
+                }
+                if (!lote.isEmpty()) {
+                    String sqlMarcar = "UPDATE fila_emails SET status = 'ENVIANDO', atualizado_em = NOW() WHERE id_email IN (" +
+                                       String.join(",", Collections.nCopies(lote.size(), "?")) + ")";
+                    try (PreparedStatement ps = conn.prepareStatement(sqlMarcar)) {
+                        for (int i = 0; i < lote.size(); i++) {
+                            ps.setLong(i + 1, lote.get(i).mensagem().id());
+                        }
+                        ps.executeUpdate();
+                    }
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        return lote;
+    }
+
+    private static void processar(List<Reivindicada> lote) throws SQLException {
+        List<Reivindicada> aEnviar = new ArrayList<>();
+        for (Reivindicada item : lote) {
+            long liberadoEm = reservarEnvio(item.mensagem().destinatario());
+            if (liberadoEm == 0) {
+                aEnviar.add(item);
+            } else if (item.venceAte(liberadoEm)) {
+                expirar(item.mensagem().id(), "Limite de envios para o destinatário até o fim da validade.");
+            } else {
+                adiadosPorLimite.incrementAndGet();
+                reagendar(item.mensagem().id(), liberadoEm, false, null);
+            }
+        }
+        if (aEnviar.isEmpty()) return;
+
+        List<TransporteEmail.Mensagem> mensagens = new ArrayList<>(aEnviar.size());
+        for (Reivindicada item : aEnviar) {
+            mensagens.add(item.mensagem());
+        }
+        List<Exception> resultados = transporte.enviarLote(mensagens);
+
+        List<Long> entregues = new ArrayList<>();
+        for (int i = 0; i < aEnviar.size(); i++) {
+            Exception falha = resultados.get(i);
+            TransporteEmail.Mensagem mensagem = mensagens.get(i);
+            if (falha == null) {
+                entregues.add(mensagem.id());
+            } else {
+                System.err.println("Falha ao enviar e-mail " + mensagem.id() + " para " + mensagem.destinatario() + ": " + falha.getMessage());
+                registrarFalha(aEnviar.get(i), falha);
+            }
+        }
+
+        if (!entregues.isEmpty()) {
+            String sql = "UPDATE fila_emails SET status = 'ENVIADO', corpo = NULL, enviado_em = NOW(), atualizado_em = NOW() WHERE id_email IN (" +
+                         String.join(",", Collections.nCopies(entregues.size(), "?")) + ")";
+            try (Connection conn = DB.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                for (int i = 0; i < entregues.size(); i++) {
+                    ps.setLong(i + 1, entregues.get(i));
+                }
+                ps.executeUpdate();
+            }
+            enviados.addAndGet(entregues.size());
+        }
+    }
+
+    private static void registrarFalha(Reivindicada item, Exception falha) throws SQLException {
+        long idEmail = item.mensagem().id();
+        int tentativas;
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT tentativas FROM fila_emails WHERE id_email = ?")) {
+            ps.setLong(1, idEmail);
+            try (ResultSet rs = ps.executeQuery()) {
+                tentativas = rs.next() ? rs.getInt(1) + 1 : MAX_TENTATIVAS;
+            }
+        }
+
+        String erro = String.valueOf(falha.getMessage());
+        if (erro.length() > 500) erro = erro.substring(0, 500);
+
+        if (tentativas >= MAX_TENTATIVAS) {
+            falhasDefinitivas.incrementAndGet();
+            String sql = "UPDATE fila_emails SET status = 'FALHOU', corpo = NULL, tentativas = ?, ultimo_erro = ?, atualizado_em = NOW() WHERE id_email = ?";
+            try (Connection conn = DB.getConnection();
+                 PreparedStatement ps = conn.prepareStatement(sql)) {
+                ps.setInt(1, tentativas);
+                ps.setString(2, erro);
+                ps.setLong(3, idEmail);
+                ps.executeUpdate();
+            }
+            return;
+        }
+
+        // Espera exponencial com variação aleatória, para as novas tentativas não chegarem todas juntas
+        falhasTemporarias.incrementAndGet();
+        long espera = Math.min(ESPERA_MAXIMA_MS, ESPERA_BASE_MS << Math.min(tentativas - 1, 20));
+        espera += ThreadLocalRandom.current().nextLong(espera / 4 + 1);
+        long proximaTentativa = System.currentTimeMillis() + espera;
+        if (item.venceAte(proximaTentativa)) {
+            expirar(idEmail, erro);
+            return;
+        }
+        reagendar(idEmail, proximaTentativa, true, erro);
+    }
+
+    /**
+     * Tira da fila uma mensagem que não pode mais ser entregue dentro da validade, apagando o corpo.
+     */
+    private static void expirar(long idEmail, String erro) throws SQLException {
+        String sql = "UPDATE fila_emails SET status = 'EXPIRADO', corpo = NULL, atualizado_em = NOW(), " +
+                     "ultimo_erro = COALESCE(?, ultimo_erro) WHERE id_email = ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, erro);
+            ps.setLong(2, idEmail);
+            ps.executeUpdate();
+        }
+        expirados.incrementAndGet();
+    }
+
+    /**
+     * Devolve a mensagem para PENDENTE com nova data de tentativa.
+     * @param contaTentativa Se true, soma uma tentativa (falha); se false, só adia (limite por destinatário).
+     */
+    private static void reagendar(long idEmail, long proximaTentativa, boolean contaTentativa, String erro) throws SQLException {
+        String sql = "UPDATE fila_emails SET status = 'PENDENTE', proxima_tentativa = ?, atualizado_em = NOW(), " +
+                     "tentativas = tentativas + ?, ultimo_erro = COALESCE(?, ultimo_erro) WHERE id_email = ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setTimestamp(1, new Timestamp(proximaTentativa));
+            ps.setInt(2, contaTentativa ? 1 : 0);
+            ps.setString(3, erro);
+            ps.setLong(4, idEmail);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Registra um envio para o destinatário se ele ainda estiver dentro do limite.
+     * @return 0 se o envio pode ser feito agora; senão, o momento (epoch ms) em que será liberado.
+     */
+    private static long reservarEnvio(String destinatario) {
+        long agora = System.currentTimeMillis();
+        synchronized (enviosPorDestinatario) {
+            Deque<Long> envios = enviosPorDestinatario.computeIfAbsent(destinatario.toLowerCase(), d -> new ArrayDeque<>());
+            while (!envios.isEmpty() && envios.peekFirst() <= agora - JANELA_DESTINATARIO_MS) {
+                envios.pollFirst();
+            }
+            if (envios.size() >= LIMITE_POR_DESTINATARIO) {
+                return envios.peekFirst() + JANELA_DESTINATARIO_MS;
+            }
+            envios.addLast(agora);
+            return 0;
+        }
+    }
+
+    /**
+     * Devolve à fila mensagens presas em ENVIANDO, expira as pendentes vencidas, apaga as finalizadas
+     * antigas e limpa o controle por destinatário.
+     */
+    private static void manter() {
+        try (Connection conn = DB.getConnection();
+             Statement st = conn.createStatement()) {
+            int recuperadas = st.executeUpdate(
+                "UPDATE fila_emails SET status = 'PENDENTE', proxima_tentativa = NOW() " +
+                "WHERE status = 'ENVIANDO' AND atualizado_em < NOW() - INTERVAL " + MINUTOS_ENVIO_PRESO + " MINUTE");
+            int vencidas = st.executeUpdate(
+                "UPDATE fila_emails SET status = 'EXPIRADO', corpo = NULL, atualizado_em = NOW() " +
+                "WHERE status = 'PENDENTE' AND valido_ate <= NOW()");
+            expirados.addAndGet(vencidas);
+            st.executeUpdate(
+                "DELETE FROM fila_emails WHERE status IN ('ENVIADO', 'FALHOU', 'EXPIRADO') " +
+                "AND atualizado_em < NOW() - INTERVAL " + DIAS_RETENCAO_FINALIZADOS + " DAY");
+            if (recuperadas > 0) {
+                System.out.println("Fila de e-mails: " + recuperadas + " mensagens presas devolvidas à fila.");
+                sinal.release();
+            }
+        } catch (Exception e) {
+            System.err.println("Aviso: falha na manutenção da fila de e-mails. " + e.getMessage());
+        }
+
+        long limite = System.currentTimeMillis() - JANELA_DESTINATARIO_MS;
+        synchronized (enviosPorDestinatario) {
+            enviosPorDestinatario.values().removeIf(envios -> envios.isEmpty() || envios.peekLast() <= limite);
+        }
+    }
+
+    /**
+     * Contadores da fila de e-mails.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("enfileirados", enfileirados.get());
+        estatisticas.put("enviados", enviados.get());
+        estatisticas.put("falhas_temporarias", falhasTemporarias.get());
+        estatisticas.put("falhas_definitivas", falhasDefinitivas.get());
+        estatisticas.put("adiados_por_limite", adiadosPorLimite.get());
+        estatisticas.put("expirados", expirados.get());
+        return estatisticas;
+    }
+}
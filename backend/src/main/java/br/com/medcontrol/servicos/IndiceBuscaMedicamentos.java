@@ -0,0 +1,186 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RF6.3 - Índice em memória para a busca pública de medicamentos.
+ * Indexa nome comercial e princípio ativo (normalizados, sem acentos) por n-gramas de 1 a 3 caracteres,
+ * respondendo buscas por substring (e, portanto, por prefixo) sem varrer a tabela medicamentos.
+ * Só medicamentos ativos ficam no índice.
+ */
+public class IndiceBuscaMedicamentos {
+
+    private static final int TAMANHO_MAXIMO_NGRAMA = 3;
+
+    /**
+     * Estrutura do índice. A recarga completa monta uma nova e a publica de uma vez, para que
+     * buscas simultâneas nunca vejam um índice vazio ou pela metade.
+     */
+    private static final class Indice {
+        // id_medicamento -> {nome_comercial, principio_ativo} normalizados
+        final Map<Integer, String[]> textos = new ConcurrentHashMap<>();
+        // n-grama -> ids dos medicamentos que o contêm
+        final Map<String, Set<Integer>> ngramas = new ConcurrentHashMap<>();
+    }
+
+    private static volatile Indice indice = new Indice();
+    private static volatile boolean carregado = false;
+
+    // Recarga completa periódica para convergir com alterações feitas por outras instâncias do backend.
+    private static final ScheduledExecutorService recarga = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "indice-medicamentos-recarga");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        long intervaloMin = Long.getLong("medcontrol.indiceMedicamentos.recargaMinutos", 5L);
+        recarga.scheduleWithFixedDelay(() -> {
+            try {
+                carregar();
+            } catch (Exception e) {
+                System.err.println("Falha ao recarregar índice de medicamentos: " + e.getMessage());
+            }
+        }, intervaloMin, intervaloMin, TimeUnit.MINUTES);
+    }
+
+    /**
+     * (Re)constrói o índice a partir de todos os medicamentos ativos.
+     */
+    public static synchronized void carregar() throws SQLException {
+        String sql = "SELECT id_medicamento, nome_comercial, principio_ativo FROM medicamentos WHERE ativo = TRUE";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+
+            Indice novo = new Indice();
+            while (rs.next()) {
+                adicionar(novo, rs.getInt("id_medicamento"), rs.getString("nome_comercial"), rs.getString("principio_ativo"));
+            }
+            indice = novo;
+            carregado = true;
+        }
+    }
+
+    /**
+     * Busca os medicamentos cujo nome comercial ou princípio ativo contém o termo
+     * (equivalente ao antigo LIKE '%termo%', mas insensível a acentos).
+     * @param termo Termo digitado pelo usuário.
+     * @return Ids dos medicamentos ativos encontrados, em ordem crescente.
+     */
+    public static Set<Integer> buscar(String termo) throws SQLException {
+        if (!carregado) {
+            carregar();
+        }
+        String termoNormalizado = NormalizadorTexto.normalizar(termo);
+        if (termoNormalizado.isEmpty()) return Collections.emptySet();
+
+        // Lê a referência uma única vez: a busca inteira usa o mesmo índice, mesmo durante uma recarga.
+        Indice atual = indice;
+
+        // Termos curtos são eles próprios um n-grama indexado: a lista já é exata.
+        if (termoNormalizado.length() <= TAMANHO_MAXIMO_NGRAMA) {
+            return new TreeSet<>(atual.ngramas.getOrDefault(termoNormalizado, Collections.emptySet()));
+        }
+
+        // Termos longos: parte da lista de trigramas mais seletiva e confirma por substring.
+        Set<Integer> candidatos = null;
+        for (int i = 0; i + TAMANHO_MAXIMO_NGRAMA <= termoNormalizado.length(); i++) {
+            Set<Integer> lista = atual.ngramas.get(termoNormalizado.substring(i, i + TAMANHO_MAXIMO_NGRAMA));
+            if (lista == null) return Collections.emptySet();
+            if (candidatos == null || lista.size() < candidatos.size()) {
+                candidatos = lista;
+            }
+        }
+
+        Set<Integer> encontrados = new TreeSet<>();
+        for (Integer id : candidatos) {
+            String[] texto = atual.textos.get(id);
+            if (texto != null && (texto[0].contains(termoNormalizado) || texto[1].contains(termoNormalizado))) {
+                encontrados.add(id);
+            }
+        }
+        return encontrados;
+    }
+
+    /**
+     * Indexa (ou reindexa) um medicamento ativo com os dados informados.
+     */
+    public static synchronized void indexar(int idMedicamento, String nomeComercial, String principioAtivo) {
+        remover(idMedicamento);
+        adicionar(indice, idMedicamento, nomeComercial, principioAtivo);
+    }
+
+    /**
+     * Relê um medicamento do banco e atualiza sua entrada no índice
+     * (removendo-a se o medicamento não existir mais ou estiver inativo).
+     */
+    public static synchronized void atualizar(int idMedicamento) {
+        String sql = "SELECT nome_comercial, principio_ativo, ativo FROM medicamentos WHERE id_medicamento = ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idMedicamento);
+            try (ResultSet rs = ps.executeQuery()) {
+                remover(idMedicamento);
+                if (rs.next() && rs.getBoolean("ativo")) {
+                    adicionar(indice, idMedicamento, rs.getString("nome_comercial"), rs.getString("principio_ativo"));
+                }
+            }
+        } catch (Exception e) {
+            // Na falha, força recarga completa na próxima busca para não servir dados obsoletos.
+            carregado = false;
+            System.err.println("Falha ao atualizar índice de medicamentos (id " + idMedicamento + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove um medicamento do índice (ex.: ao ser desativado).
+     */
+    public static synchronized void remover(int idMedicamento) {
+        Indice atual = indice;
+        String[] texto = atual.textos.remove(idMedicamento);
+        if (texto == null) return;
+        for (String ngrama : extrairNgramas(texto)) {
+            Set<Integer> lista = atual.ngramas.get(ngrama);
+            if (lista != null) {
+                lista.remove(idMedicamento);
+                if (lista.isEmpty()) {
+                    atual.ngramas.remove(ngrama);
+                }
+            }
+        }
+    }
+
+    private static void adicionar(Indice destino, int idMedicamento, String nomeComercial, String principioAtivo) {
+        String[] texto = {NormalizadorTexto.normalizar(nomeComercial), NormalizadorTexto.normalizar(principioAtivo)};
+        destino.textos.put(idMedicamento, texto);
+        for (String ngrama : extrairNgramas(texto)) {
+            destino.ngramas.computeIfAbsent(ngrama, k -> ConcurrentHashMap.newKeySet()).add(idMedicamento);
+        }
+    }
+
+    private static Set<String> extrairNgramas(String[] texto) {
+        Set<String> resultado = new HashSet<>();
+        for (String campo : texto) {
+            for (int tamanho = 1; tamanho <= TAMANHO_MAXIMO_NGRAMA; tamanho++) {
+                for (int i = 0; i + tamanho <= campo.length(); i++) {
+                    resultado.add(campo.substring(i, i + tamanho));
+                }
+            }
+        }
+        return resultado;
+    }
+}
@@ -0,0 +1,215 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RF06.2 - Índice espacial em memória das UBS ativas (grade regular de latitude/longitude).
+ * Cada UBS com coordenadas fica numa célula da grade; a busca dos mais próximos percorre anéis
+ * de células ao redor do ponto e para assim que nenhuma célula ainda não visitada pode conter
+ * uma UBS mais próxima que as já encontradas.
+ */
+public class IndiceGeoUbs {
+
+    private static final double TAMANHO_CELULA_GRAUS = Double.parseDouble(System.getProperty("medcontrol.geo.tamanhoCelulaGraus", "0.05"));
+    private static final double RAIO_TERRA_KM = 6371.0;
+    private static final double KM_POR_GRAU = Math.PI * RAIO_TERRA_KM / 180.0;
+    // Além deste anel, é mais barato comparar com todas as UBS do que percorrer células vazias
+    private static final int ANEL_MAXIMO = 64;
+
+    /**
+     * UBS encontrada e sua distância (km) até o ponto de busca.
+     */
+    public record UbsProxima(int idUbs, double distanciaKm) {}
+
+    /**
+     * Grade do índice. A recarga completa monta uma nova e a publica de uma vez, como no índice de medicamentos.
+     */
+    private static final class Grade {
+        // id_ubs -> {latitude, longitude}
+        final Map<Integer, double[]> coordenadas = new ConcurrentHashMap<>();
+        // célula da grade -> ids das UBS dentro dela
+        final Map<Long, Set<Integer>> celulas = new ConcurrentHashMap<>();
+    }
+
+    private static volatile Grade grade = new Grade();
+    private static volatile boolean carregado = false;
+
+    // Recarga completa periódica, como no índice de medicamentos
+    private static final ScheduledExecutorService recarga = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "indice-geo-ubs-recarga");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        long intervaloMin = Long.getLong("medcontrol.geo.recargaMinutos", 5L);
+        recarga.scheduleWithFixedDelay(() -> {
+            try {
+                carregar();
+            } catch (Exception e) {
+                System.err.println("Falha ao recarregar índice geográfico de UBS: " + e.getMessage());
+            }
+        }, intervaloMin, intervaloMin, TimeUnit.MINUTES);
+    }
+
+    /**
+     * (Re)constrói o índice a partir de todas as UBS ativas com coordenadas.
+     */
+    public static synchronized void carregar() throws SQLException {
+        String sql = "SELECT id_ubs, latitude, longitude FROM ubs WHERE ativo = TRUE AND latitude IS NOT NULL AND longitude IS NOT NULL";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql);
+             ResultSet rs = ps.executeQuery()) {
+
+            Grade nova = new Grade();
+            while (rs.next()) {
+                adicionar(nova, rs.getInt("id_ubs"), rs.getDouble("latitude"), rs.getDouble("longitude"));
+            }
+            grade = nova;
+            carregado = true;
+        }
+    }
+
+    /**
+     * Relê uma UBS do banco e atualiza sua entrada no índice
+     * (removendo-a se estiver inativa ou sem coordenadas).
+     */
+    public static synchronized void atualizar(int idUbs) {
+        String sql = "SELECT latitude, longitude, ativo FROM ubs WHERE id_ubs = ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idUbs);
+            try (ResultSet rs = ps.executeQuery()) {
+                remover(idUbs);
+                if (rs.next() && rs.getBoolean("ativo") && rs.getObject("latitude") != null && rs.getObject("longitude") != null) {
+                    adicionar(grade, idUbs, rs.getDouble("latitude"), rs.getDouble("longitude"));
+                }
+            }
+        } catch (Exception e) {
+            // Na falha, força recarga completa na próxima busca para não servir dados obsoletos.
+            carregado = false;
+            System.err.println("Falha ao atualizar índice geográfico (UBS " + idUbs + "): " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove uma UBS do índice (ex.: ao ser desativada).
+     */
+    public static synchronized void remover(int idUbs) {
+        Grade atual = grade;
+        double[] ponto = atual.coordenadas.remove(idUbs);
+        if (ponto == null) return;
+        long chave = chaveCelula(celula(ponto[0]), celula(ponto[1]));
+        Set<Integer> ids = atual.celulas.get(chave);
+        if (ids != null) {
+            ids.remove(idUbs);
+            if (ids.isEmpty()) {
+                atual.celulas.remove(chave);
+            }
+        }
+    }
+
+    /**
+     * As n UBS ativas mais próximas do ponto, da mais próxima para a mais distante.
+     */
+    public static List<UbsProxima> maisProximas(double latitude, double longitude, int n) throws SQLException {
+        if (!carregado) {
+            carregar();
+        }
+        // Lê a referência uma única vez: a busca inteira usa a mesma grade, mesmo durante uma recarga.
+        Grade atual = grade;
+        List<UbsProxima> encontradas = new ArrayList<>();
+        if (n <= 0 || atual.coordenadas.isEmpty()) return encontradas;
+
+        int linha = celula(latitude);
+        int coluna = celula(longitude);
+        int total = atual.coordenadas.size();
+        int vistas = 0;
+
+        for (int anel = 0; ; anel++) {
+            if (anel > ANEL_MAXIMO) {
+                // Pontos muito espalhados: compara com todas as UBS
+                encontradas.clear();
+                atual.coordenadas.forEach((id, ponto) -> encontradas.add(new UbsProxima(id, distanciaKm(latitude, longitude, ponto[0], ponto[1]))));
+                break;
+            }
+
+            for (int dl = -anel; dl <= anel; dl++) {
+                for (int dc = -anel; dc <= anel; dc++) {
+                    if (Math.abs(dl) != anel && Math.abs(dc) != anel) continue; // só a borda do anel
+                    Set<Integer> ids = atual.celulas.get(chaveCelula(linha + dl, coluna + dc));
+                    if (ids == null) continue;
+                    for (Integer id : ids) {
+                        double[] ponto = atual.coordenadas.get(id);
+                        if (ponto == null) continue;
+                        encontradas.add(new UbsProxima(id, distanciaKm(latitude, longitude, ponto[0], ponto[1])));
+                        vistas++;
+                    }
+                }
+            }
+
+            if (vistas >= total) break;
+            if (encontradas.size() >= n) {
+                encontradas.sort(Comparator.comparingDouble(UbsProxima::distanciaKm));
+                if (encontradas.get(n - 1).distanciaKm() <= distanciaMinimaForaDoAnel(latitude, anel)) break;
+            }
+        }
+
+        encontradas.sort(Comparator.comparingDouble(UbsProxima::distanciaKm));
+        return encontradas.size() > n ? new ArrayList<>(encontradas.subList(0, n)) : encontradas;
+    }
+
+    /**
+     * Quantas UBS estão no índice.
+     */
+    public static int tamanho() {
+        return grade.coordenadas.size();
+    }
+
+    /**
+     * Distância (km) entre dois pontos pela fórmula de haversine.
+     */
+    public static double distanciaKm(double lat1, double lng1, double lat2, double lng2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLng = Math.toRadians(lng2 - lng1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                 + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLng / 2) * Math.sin(dLng / 2);
+        return 2 * RAIO_TERRA_KM * Math.asin(Math.min(1.0, Math.sqrt(a)));
+    }
+
+    /**
+     * Limite inferior da distância até qualquer ponto fora das células já visitadas (anéis 0..anel).
+     * Na longitude, usa o menor comprimento de grau dentro da faixa de latitudes alcançada.
+     */
+    private static double distanciaMinimaForaDoAnel(double latitude, int anel) {
+        double grausAteBorda = anel * TAMANHO_CELULA_GRAUS;
+        double latitudeExtrema = Math.min(90.0, Math.abs(latitude) + grausAteBorda + TAMANHO_CELULA_GRAUS);
+        return grausAteBorda * KM_POR_GRAU * Math.cos(Math.toRadians(latitudeExtrema));
+    }
+
+    private static void adicionar(Grade destino, int idUbs, double latitude, double longitude) {
+        destino.coordenadas.put(idUbs, new double[]{latitude, longitude});
+        destino.celulas.computeIfAbsent(chaveCelula(celula(latitude), celula(longitude)), k -> ConcurrentHashMap.newKeySet()).add(idUbs);
+    }
+
+    private static int celula(double grau) {
+        return (int) Math.floor(grau / TAMANHO_CELULA_GRAUS);
+    }
+
+    private static long chaveCelula(int linha, int coluna) {
+        return ((long) linha << 32) | (coluna & 0xffffffffL);
+    }
+}
@@ -3,48 +3,253 @@ package br.com.medcontrol.servicos;
 import br.com.medcontrol.db.DB;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * RF6.3 - Serviço para registrar logs de busca de medicamentos.
+ * Os registros entram numa fila limitada em memória e são gravados em lote
+ * (INSERT de várias linhas) por uma thread de fundo, fora do caminho da requisição.
+ * Cada lote também alimenta as contagens por termo do EstatisticasBuscaServico, na mesma transação
+ * do INSERT; um lote que falha é regravado inteiro algumas vezes antes de ser descartado.
  */
 public class LogBuscaServico {
 
     /**
-     * Registra uma busca de medicamento na tabela log_buscas.
-     * @param termo O termo que o usuário pesquisou.
+     * O que fazer quando a fila está cheia.
+     */
+    public enum PoliticaFilaCheia {
+        DESCARTAR_NOVO,   // Ignora o registro que está chegando
+        DESCARTAR_ANTIGO, // Remove o registro mais antigo da fila para abrir espaço
+        BLOQUEAR          // Aguarda espaço na fila (até o timeout) antes de descartar
+    }
+
+    private record RegistroBusca(String termo, boolean teveResultados, Integer idUsuario, Integer idMedicamentoEncontrado) {}
+
+    private static final int CAPACIDADE_FILA = Integer.getInteger("medcontrol.logBuscas.capacidadeFila", 10_000);
+    private static final int TAMANHO_LOTE = Integer.getInteger("medcontrol.logBuscas.tamanhoLote", 200);
+    private static final long INTERVALO_GRAVACAO_MS = Long.getLong("medcontrol.logBuscas.intervaloMs", 1_000L);
+    private static final long TIMEOUT_BLOQUEIO_MS = Long.getLong("medcontrol.logBuscas.timeoutBloqueioMs", 50L);
+    private static final int MAX_TENTATIVAS = Integer.getInteger("medcontrol.logBuscas.maxTentativas", 3);
+    private static final long ESPERA_ENTRE_TENTATIVAS_MS = Long.getLong("medcontrol.logBuscas.esperaTentativaMs", 1_000L);
+    // Tamanho de log_buscas.termo_buscado: um termo maior faria o INSERT do lote inteiro falhar
+    private static final int TAMANHO_MAXIMO_TERMO = 255;
+    private static final PoliticaFilaCheia POLITICA = PoliticaFilaCheia.valueOf(
+            System.getProperty("medcontrol.logBuscas.politica", PoliticaFilaCheia.DESCARTAR_ANTIGO.name()));
+
+    private static final BlockingQueue<RegistroBusca> fila = new ArrayBlockingQueue<>(CAPACIDADE_FILA);
+
+    private static final AtomicLong enfileirados = new AtomicLong();
+    private static final AtomicLong gravados = new AtomicLong();
+    private static final AtomicLong descartados = new AtomicLong();
+    private static final AtomicLong falhasGravacao = new AtomicLong();
+    private static final AtomicLong lotesRegravados = new AtomicLong();
+
+    private static volatile boolean encerrando = false;
+    private static final Thread escritor = new Thread(LogBuscaServico::executarEscritor, "log-buscas-escritor");
+
+    static {
+        escritor.setDaemon(true);
+        escritor.start();
+    }
+
+    /**
+     * Registra uma busca de medicamento na tabela log_buscas (de forma assíncrona).
+     * Depois de encerrar(), os registros são descartados.
+     * @param termo O termo que o usuário pesquisou (cortado em 255 caracteres).
      * @param teveResultados Se a busca retornou algum resultado.
      * @param idUsuario O ID do usuário logado (pode ser nulo).
      * @param idMedicamentoEncontrado O ID do primeiro medicamento encontrado (pode ser nulo).
      */
     public static void registrar(String termo, boolean teveResultados, Integer idUsuario, Integer idMedicamentoEncontrado) {
-        
-        String sql = "INSERT INTO log_buscas (termo_buscado, teve_resultados, id_usuario, id_medicamento_encontrado) VALUES (?, ?, ?, ?)";
-
-        try (Connection conn = DB.getConnection();
-             PreparedStatement ps = conn.prepareStatement(sql)) {
-            
-            ps.setString(1, termo);
-            ps.setBoolean(2, teveResultados);
-
-            if (idUsuario != null) {
-                ps.setInt(3, idUsuario);
-            } else {
-                ps.setNull(3, Types.INTEGER);
+        if (encerrando) {
+            descartados.incrementAndGet();
+            return;
+        }
+        if (termo != null && termo.length() > TAMANHO_MAXIMO_TERMO) {
+            termo = termo.substring(0, TAMANHO_MAXIMO_TERMO);
+        }
+        RegistroBusca registro = new RegistroBusca(termo, teveResultados, idUsuario, idMedicamentoEncontrado);
+
+        boolean aceito;
+        switch (POLITICA) {
+            case DESCARTAR_ANTIGO:
+                aceito = fila.offer(registro);
+                while (!aceito) {
+                    if (fila.poll() != null) {
+                        descartados.incrementAndGet();
+                    }
+                    aceito = fila.offer(registro);
+                }
+                break;
+            case BLOQUEAR:
+                try {
+                    aceito = fila.offer(registro, TIMEOUT_BLOQUEIO_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    aceito = false;
+                }
+                break;
+            default:
+                aceito = fila.offer(registro);
+        }
+
+        if (aceito) {
+            enfileirados.incrementAndGet();
+        } else {
+            descartados.incrementAndGet();
+        }
+    }
+
+    /**
+     * Laço da thread de fundo: grava quando o lote enche ou quando o intervalo vence.
+     */
+    private static void executarEscritor() {
+        List<RegistroBusca> lote = new ArrayList<>(TAMANHO_LOTE);
+        while (!encerrando || !fila.isEmpty()) {
+            try {
+                RegistroBusca primeiro = fila.poll(INTERVALO_GRAVACAO_MS, TimeUnit.MILLISECONDS);
+                if (primeiro == null) continue;
+                lote.add(primeiro);
+
+                long prazo = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(INTERVALO_GRAVACAO_MS);
+                while (lote.size() < TAMANHO_LOTE && !encerrando) {
+                    long restante = prazo - System.nanoTime();
+                    if (restante <= 0) break;
+                    RegistroBusca proximo = fila.poll(restante, TimeUnit.NANOSECONDS);
+                    if (proximo == null) break;
+                    lote.add(proximo);
+                }
+                fila.drainTo(lote, TAMANHO_LOTE - lote.size());
+
+                gravarComRetentativa(lote);
+            } catch (InterruptedException e) {
+                // Interrupção só acontece no encerramento; o laço drena o que restou.
+                encerrando = true;
+            } finally {
+                lote.clear();
+            }
+        }
+    }
+
+    /**
+     * Grava o lote; se falhar (ex.: banco fora do ar por instantes), tenta de novo com espera
+     * crescente. Enquanto isso a fila continua recebendo e, se encher, vale a política configurada.
+     */
+    private static void gravarComRetentativa(List<RegistroBusca> lote) throws InterruptedException {
+        if (lote.isEmpty()) return;
+
+        // Contagem por termo normalizado para o "mais pesquisados" (RF09.3)
+        Map<String, int[]> contagens = new HashMap<>();
+        for (RegistroBusca registro : lote) {
+            String termo = EstatisticasBuscaServico.normalizarTermo(registro.termo());
+            if (termo.isEmpty()) continue;
+            int[] contagem = contagens.computeIfAbsent(termo, t -> new int[2]);
+            contagem[0]++;
+            if (registro.teveResultados()) contagem[1]++;
+        }
+
+        for (int tentativa = 1; ; tentativa++) {
+            try {
+                gravarLote(lote, contagens);
+                gravados.addAndGet(lote.size());
+                EstatisticasBuscaServico.registrarNoResumo(contagens);
+                return;
+            } catch (Exception e) {
+                falhasGravacao.incrementAndGet();
+                if (tentativa >= MAX_TENTATIVAS) {
+                    descartados.addAndGet(lote.size());
+                    System.err.println("--- FALHA AO REGISTRAR LOTE DE LOG DE BUSCA (RF6.3): " + lote.size() + " registros descartados ---");
+                    e.printStackTrace();
+                    // A falha no log não deve interromper a operação principal do usuário.
+                    return;
+                }
+                System.err.println("Aviso: falha ao gravar lote de log de busca (tentativa " + tentativa + "). " + e.getMessage());
+                lotesRegravados.incrementAndGet();
+                Thread.sleep(ESPERA_ENTRE_TENTATIVAS_MS * tentativa);
             }
+        }
+    }
+
+    /**
+     * INSERT do lote e contagens por termo numa única transação: ou os dois são gravados, ou nenhum.
+     */
+    private static void gravarLote(List<RegistroBusca> lote, Map<String, int[]> contagens) throws SQLException {
+        StringBuilder sql = new StringBuilder(
+            "INSERT INTO log_buscas (termo_buscado, teve_resultados, id_usuario, id_medicamento_encontrado) VALUES ");
+        for (int i = 0; i < lote.size(); i++) {
+            sql.append(i == 0 ? "(?, ?, ?, ?)" : ", (?, ?, ?, ?)");
+        }
 
-            if (idMedicamentoEncontrado != null) {
-                ps.setInt(4, idMedicamentoEncontrado);
-            } else {
-                ps.setNull(4, Types.INTEGER);
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            conn.setAutoCommit(false);
+            try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+                int indice = 1;
+                for (RegistroBusca registro : lote) {
+                    ps.setString(indice++, registro.termo());
+                    ps.setBoolean(indice++, registro.teveResultados());
+
+                    if (registro.idUsuario() != null) {
+                        ps.setInt(indice++, registro.idUsuario());
+                    } else {
+                        ps.setNull(indice++, Types.INTEGER);
+                    }
+
+                    if (registro.idMedicamentoEncontrado() != null) {
+                        ps.setInt(indice++, registro.idMedicamentoEncontrado());
+                    } else {
+                        ps.setNull(indice++, Types.INTEGER);
+                    }
+                }
+                ps.executeUpdate();
+
+                EstatisticasBuscaServico.gravarLote(conn, contagens);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
             }
-            
-            ps.executeUpdate();
-            
-        } catch (Exception e) {
-            System.err.println("--- FALHA AO REGISTRAR LOG DE BUSCA (RF6.3) ---");
-            e.printStackTrace();
-            // A falha no log não deve interromper a operação principal do usuário.
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Para de aceitar novos registros e grava o que ainda está na fila.
+     * @param timeoutMs Tempo máximo de espera pela drenagem.
+     */
+    public static void encerrar(long timeoutMs) {
+        encerrando = true;
+        try {
+            escritor.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Contadores da fila de logs de busca.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("politica", POLITICA.name());
+        estatisticas.put("tamanho_fila", fila.size());
+        estatisticas.put("capacidade_fila", CAPACIDADE_FILA);
+        estatisticas.put("enfileirados", enfileirados.get());
+        estatisticas.put("gravados", gravados.get());
+        estatisticas.put("descartados", descartados.get());
+        estatisticas.put("falhas_gravacao", falhasGravacao.get());
+        estatisticas.put("lotes_regravados", lotesRegravados.get());
+        return estatisticas;
+    }
+}
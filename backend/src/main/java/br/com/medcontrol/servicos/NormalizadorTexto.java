@@ -0,0 +1,29 @@
+package br.com.medcontrol.servicos;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Normalização de texto para buscas e estatísticas:
+ * minúsculas, sem acentos e com espaços colapsados ("Dipirona  Sódica" -> "dipirona sodica").
+ */
+public final class NormalizadorTexto {
+
+    private static final Pattern MARCAS_DIACRITICAS = Pattern.compile("\\p{M}+");
+    private static final Pattern ESPACOS = Pattern.compile("\\s+");
+
+    private NormalizadorTexto() {
+    }
+
+    /**
+     * Normaliza o texto informado.
+     * @param texto Texto original (pode ser nulo).
+     * @return O texto normalizado, ou "" se nulo.
+     */
+    public static String normalizar(String texto) {
+        if (texto == null) return "";
+        String semAcentos = MARCAS_DIACRITICAS.matcher(Normalizer.normalize(texto, Normalizer.Form.NFD)).replaceAll("");
+        return ESPACOS.matcher(semAcentos.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+}
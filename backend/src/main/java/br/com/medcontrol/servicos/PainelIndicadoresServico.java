@@ -0,0 +1,220 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.json.JavalinJackson;
+
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RF09.3 - Indicadores do Dashboard calculados em segundo plano.
+ *
+ * Uma thread recalcula os indicadores a cada intervalo configurado e publica um retrato imutável
+ * (JSON já serializado + ETag). As requisições só leem o retrato; se ele estiver velho, é servido
+ * assim mesmo e um recálculo é disparado em segundo plano (stale-while-revalidate).
+ */
+public class PainelIndicadoresServico {
+
+    private static final long INTERVALO_SEGUNDOS = Long.getLong("medcontrol.dashboard.intervaloSegundos", 60L);
+
+    /**
+     * Indicadores prontos para envio.
+     * @param json Corpo da resposta já serializado.
+     * @param etag ETag forte derivado do conteúdo.
+     * @param geradoEm Momento do cálculo (epoch ms).
+     */
+    public record Retrato(byte[] json, String etag, long geradoEm) {}
+
+    private static final ObjectMapper mapper = JavalinJackson.defaultMapper();
+
+    private static volatile Retrato atual;
+    private static final AtomicBoolean recalculoPendente = new AtomicBoolean(false);
+
+    private static final AtomicLong recalculos = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
+    private static final AtomicLong servidosVelhos = new AtomicLong();
+    private static volatile long duracaoUltimoRecalculoMs;
+
+    private static final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "dashboard-indicadores");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private PainelIndicadoresServico() {
+    }
+
+    /**
+     * Agenda o recálculo periódico (o primeiro roda imediatamente).
+     */
+    public static void iniciar() {
+        agendador.scheduleWithFixedDelay(PainelIndicadoresServico::recalcularComSeguranca, 0, INTERVALO_SEGUNDOS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Retorna o retrato atual. Só calcula na própria requisição se ainda não houver nenhum;
+     * se o retrato estiver velho, devolve-o e pede um recálculo em segundo plano.
+     */
+    public static Retrato obter() throws Exception {
+        Retrato retrato = atual;
+        if (retrato == null) {
+            synchronized (PainelIndicadoresServico.class) {
+                if (atual == null) recalcular();
+                return atual;
+            }
+        }
+
+        long idadeMs = System.currentTimeMillis() - retrato.geradoEm();
+        if (idadeMs > TimeUnit.SECONDS.toMillis(INTERVALO_SEGUNDOS) * 2) {
+            servidosVelhos.incrementAndGet();
+            // Um único recálculo extra por vez, por mais requisições que cheguem
+            if (recalculoPendente.compareAndSet(false, true)) {
+                agendador.execute(() -> {
+                    recalculoPendente.set(false);
+                    recalcularComSeguranca();
+                });
+            }
+        }
+        return retrato;
+    }
+
+    private static void recalcularComSeguranca() {
+        try {
+            recalcular();
+        } catch (Exception e) {
+            // Mantém o retrato anterior; o próximo ciclo tenta de novo.
+            falhas.incrementAndGet();
+            System.err.println("Falha ao recalcular indicadores do dashboard: " + e.getMessage());
+        }
+    }
+
+    private static synchronized void recalcular() throws Exception {
+        long inicio = System.currentTimeMillis();
+        Map<String, Object> dashboard;
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            dashboard = calcularIndicadores(conn);
+        }
+
+        byte[] json = mapper.writeValueAsBytes(dashboard);
+        Retrato anterior = atual;
+        if (anterior != null && MessageDigest.isEqual(anterior.json(), json)) {
+            // Conteúdo igual: mantém o mesmo ETag e só renova o momento do cálculo
+            atual = new Retrato(anterior.json(), anterior.etag(), System.currentTimeMillis());
+        } else {
+            atual = new Retrato(json, calcularEtag(json), System.currentTimeMillis());
+        }
+
+        recalculos.incrementAndGet();
+        duracaoUltimoRecalculoMs = System.currentTimeMillis() - inicio;
+    }
+
+    private static String calcularEtag(byte[] json) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(json);
+        return "\"" + HexFormat.of().formatHex(hash, 0, 16) + "\"";
+    }
+
+    /**
+     * As três consultas do dashboard: estoque crítico, mais pesquisados e projeção de demanda.
+     */
+    private static Map<String, Object> calcularIndicadores(Connection conn) throws SQLException {
+        Map<String, Object> dashboard = new HashMap<>();
+
+        // 1. Estoque Crítico (Top 5)
+        String sqlEstoque = "SELECT m.nome_comercial, e.lote, e.data_validade, e.quantidade, u.nome as nome_ubs " +
+                            "FROM estoque e " +
+                            "JOIN medicamentos m ON e.id_medicamento = m.id_medicamento " +
+                            "JOIN ubs u ON e.id_ubs = u.id_ubs " +
+                            "WHERE e.quantidade < 20 AND m.ativo = TRUE " +
+                            "ORDER BY e.quantidade ASC, e.data_validade ASC LIMIT 5";
+
+        List<Map<String, Object>> estoqueCritico = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sqlEstoque); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                Map<String, Object> item = new HashMap<>();
+                item.put("nome_comercial", rs.getString("nome_comercial"));
+                item.put("nome_ubs", rs.getString("nome_ubs"));
+                item.put("lote", rs.getString("lote"));
+                item.put("quantidade", rs.getInt("quantidade"));
+                item.put("data_validade", rs.getDate("data_validade"));
+                estoqueCritico.add(item);
+            }
+        }
+        dashboard.put("estoqueCritico", estoqueCritico);
+
+        // 2. Mais Pesquisados (Top 5) - Depende da RF6.3
+        // Lido das contagens diárias por termo normalizado (buscas_termos_diarias), não do log bruto
+        String sqlBuscas = "SELECT termo AS termo_buscado, SUM(total_com_resultado) as total FROM buscas_termos_diarias " +
+                           "WHERE dia >= CURDATE() - INTERVAL 30 DAY " +
+                           "GROUP BY termo HAVING total > 0 ORDER BY total DESC LIMIT 5";
+
+        List<Map<String, Object>> maisPesquisados = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sqlBuscas); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                maisPesquisados.add(Map.of(
+                    "termo", rs.getString("termo_buscado"),
+                    "total", rs.getInt("total")
+                ));
+            }
+        } catch (SQLException e) {
+            // Ignora se a tabela buscas_termos_diarias ainda não existir
+            System.err.println("Aviso: Tabela 'buscas_termos_diarias' pode não existir. " + e.getMessage());
+        }
+        dashboard.put("maisPesquisados", maisPesquisados);
+
+        // 3. Projeção de Demanda (Retiradas nos últimos 30 dias) - Depende da RF5.6 (retiradas)
+        // Lida da tabela pré-agregada demanda_diaria (RF09.2)
+        String sqlDemanda = "SELECT dia, SUM(total_retirado) as total_itens " +
+                            "FROM demanda_diaria " +
+                            "WHERE dia >= CURDATE() - INTERVAL 30 DAY " +
+                            "GROUP BY dia ORDER BY dia ASC";
+
+        List<Map<String, Object>> projecaoDemanda = new ArrayList<>();
+        try (PreparedStatement ps = conn.prepareStatement(sqlDemanda); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                projecaoDemanda.add(Map.of(
+                    "dia", rs.getString("dia"),
+                    "total_itens", rs.getInt("total_itens")
+                ));
+            }
+        } catch (SQLException e) {
+            // Ignora se a tabela demanda_diaria ainda não existir
+            System.err.println("Aviso: Tabela 'demanda_diaria' pode não existir. " + e.getMessage());
+            e.printStackTrace();
+        }
+        dashboard.put("projecaoDemanda", projecaoDemanda);
+
+        return dashboard;
+    }
+
+    /**
+     * Contadores do cache de indicadores.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        Retrato retrato = atual;
+        estatisticas.put("intervalo_segundos", INTERVALO_SEGUNDOS);
+        estatisticas.put("etag", retrato != null ? retrato.etag() : null);
+        estatisticas.put("idade_ms", retrato != null ? System.currentTimeMillis() - retrato.geradoEm() : null);
+        estatisticas.put("recalculos", recalculos.get());
+        estatisticas.put("falhas", falhas.get());
+        estatisticas.put("servidos_velhos", servidosVelhos.get());
+        estatisticas.put("duracao_ultimo_recalculo_ms", duracaoUltimoRecalculoMs);
+        return estatisticas;
+    }
+}
@@ -0,0 +1,274 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RF08.4 / RF6.3 - Manutenção das tabelas particionadas por mês (auditoria e log_buscas).
+ *
+ * Uma vez por dia: cria as partições que faltam até os próximos meses (dividindo a partição p_futuro,
+ * a partir do mês seguinte à última partição mensal ou, na primeira vez, do mês da linha mais antiga
+ * em p_futuro, para que linhas de meses sem partição também sejam arquivadas) e, para
+ * cada partição mais antiga que a retenção, grava as linhas num CSV compactado em disco, guarda um
+ * resumo mensal consultável, registra o arquivo em arquivos_particoes e remove a partição.
+ * As partições se chamam pAAAAMM e guardam as linhas daquele mês.
+ */
+public class ParticionamentoServico {
+
+    private static final int MESES_A_FRENTE = Integer.getInteger("medcontrol.particoes.mesesAFrente", 3);
+    private static final Path DIRETORIO_ARQUIVO = Paths.get(System.getProperty("medcontrol.particoes.diretorioArquivo", "arquivo"));
+    private static final DateTimeFormatter FORMATO_PARTICAO = DateTimeFormatter.ofPattern("'p'yyyyMM");
+
+    /**
+     * Configuração de cada tabela particionada.
+     * @param coluna Coluna de data usada no PARTITION BY RANGE COLUMNS.
+     * @param retencaoMeses Meses mantidos no banco (além do mês corrente).
+     * @param sqlResumo INSERT do resumo mensal; recebe o mês (DATE) como parâmetro e "%s" como nome da partição.
+     */
+    private record TabelaParticionada(String tabela, String coluna, int retencaoMeses, String sqlResumo) {}
+
+    private static final List<TabelaParticionada> TABELAS = List.of(
+        new TabelaParticionada("auditoria", "data_log",
+            Integer.getInteger("medcontrol.particoes.retencaoMeses.auditoria", 12),
+            "INSERT INTO resumo_auditoria_mensal (mes, acao, tabela_afetada, total) " +
+            "SELECT * FROM (SELECT ? AS mes, acao, tabela_afetada, COUNT(*) AS total " +
+            "               FROM auditoria PARTITION (%s) GROUP BY acao, tabela_afetada) AS r " +
+            "ON DUPLICATE KEY UPDATE total = r.total"),
+        new TabelaParticionada("log_buscas", "data_busca",
+            Integer.getInteger("medcontrol.particoes.retencaoMeses.logBuscas", 6),
+            "INSERT INTO resumo_log_buscas_mensal (mes, termo_buscado, total_buscas, total_com_resultado) " +
+            "SELECT * FROM (SELECT ? AS mes, COALESCE(termo_buscado, '') AS termo, COUNT(*) AS total, " +
+            "                      SUM(teve_resultados) AS com_resultado " +
+            "               FROM log_buscas PARTITION (%s) GROUP BY COALESCE(termo_buscado, '')) AS r " +
+            "ON DUPLICATE KEY UPDATE total_buscas = r.total, total_com_resultado = r.com_resultado")
+    );
+
+    private static final AtomicLong particoesCriadas = new AtomicLong();
+    private static final AtomicLong particoesArquivadas = new AtomicLong();
+    private static final AtomicLong linhasArquivadas = new AtomicLong();
+    private static final AtomicLong falhas = new AtomicLong();
+    private static volatile String ultimaExecucao;
+
+    private static final ScheduledExecutorService agendador = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "particionamento");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ParticionamentoServico() {
+    }
+
+    /**
+     * Executa a manutenção agora e depois uma vez por dia.
+     */
+    public static void agendar() {
+        agendador.scheduleWithFixedDelay(ParticionamentoServico::executar, 0, 1, TimeUnit.DAYS);
+    }
+
+    /**
+     * Cria as partições futuras e arquiva as antigas de todas as tabelas.
+     */
+    public static void executar() {
+        for (TabelaParticionada tabela : TABELAS) {
+            try {
+                criarParticoesFuturas(tabela);
+                arquivarAntigas(tabela);
+            } catch (Exception e) {
+                falhas.incrementAndGet();
+                System.err.println("Falha na manutenção das partições de " + tabela.tabela() + ": " + e.getMessage());
+            }
+        }
+        ultimaExecucao = LocalDateTime.now().toString();
+    }
+
+    /**
+     * Partições atuais da tabela (nome -> limite superior, null para MAXVALUE), em ordem.
+     * Vazio se a tabela não for particionada (instalações antigas).
+     */
+    private static Map<String, String> listarParticoes(Connection conn, String tabela) throws SQLException {
+        Map<String, String> particoes = new LinkedHashMap<>();
+        String sql = "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+                     "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND PARTITION_NAME IS NOT NULL " +
+                     "ORDER BY PARTITION_ORDINAL_POSITION";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, tabela);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    String limite = rs.getString(2);
+                    particoes.put(rs.getString(1), "MAXVALUE".equals(limite) ? null : limite);
+                }
+            }
+        }
+        return particoes;
+    }
+
+    private static void criarParticoesFuturas(TabelaParticionada configuracao) throws SQLException {
+        String tabela = configuracao.tabela();
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            Map<String, String> particoes = listarParticoes(conn, tabela);
+            if (!particoes.containsKey("p_futuro")) {
+                System.err.println("Aviso: tabela '" + tabela + "' não está particionada; manutenção ignorada.");
+                return;
+            }
+
+            // Só meses posteriores à última partição mensal existente podem sair de p_futuro
+            YearMonth ultimoMesExistente = null;
+            for (String nome : particoes.keySet()) {
+                if (!nome.equals("p_futuro")) {
+                    ultimoMesExistente = YearMonth.parse(nome.substring(1), DateTimeFormatter.ofPattern("yyyyMM"));
+                }
+            }
+
+            // Sem lacunas: se a manutenção ficou parada, os meses desde a última partição também são criados
+            YearMonth primeiro = ultimoMesExistente != null ? ultimoMesExistente.plusMonths(1) : mesMaisAntigo(conn, configuracao);
+            YearMonth ultimo = YearMonth.now().plusMonths(MESES_A_FRENTE);
+
+            List<String> novas = new ArrayList<>();
+            for (YearMonth mes = primeiro; !mes.isAfter(ultimo); mes = mes.plusMonths(1)) {
+                novas.add("PARTITION " + mes.format(FORMATO_PARTICAO) +
+                          " VALUES LESS THAN ('" + mes.plusMonths(1).atDay(1) + "')");
+            }
+            if (novas.isEmpty()) return;
+
+            String sql = "ALTER TABLE " + tabela + " REORGANIZE PARTITION p_futuro INTO (" +
+                         String.join(", ", novas) + ", PARTITION p_futuro VALUES LESS THAN (MAXVALUE))";
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate(sql);
+            }
+            particoesCriadas.addAndGet(novas.size());
+        }
+    }
+
+    /**
+     * Mês da linha mais antiga em p_futuro, ou o mês corrente se a partição estiver vazia.
+     */
+    private static YearMonth mesMaisAntigo(Connection conn, TabelaParticionada configuracao) throws SQLException {
+        String sql = "SELECT MIN(" + configuracao.coluna() + ") FROM " + configuracao.tabela() + " PARTITION (p_futuro)";
+        try (Statement st = conn.createStatement();
+             ResultSet rs = st.executeQuery(sql)) {
+            YearMonth atual = YearMonth.now();
+            if (rs.next() && rs.getTimestamp(1) != null) {
+                YearMonth mes = YearMonth.from(rs.getTimestamp(1).toLocalDateTime());
+                return mes.isBefore(atual) ? mes : atual;
+            }
+            return atual;
+        }
+    }
+
+    private static void arquivarAntigas(TabelaParticionada tabela) throws Exception {
+        YearMonth limite = YearMonth.now().minusMonths(tabela.retencaoMeses());
+
+        List<String> antigas = new ArrayList<>();
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+            for (String nome : listarParticoes(conn, tabela.tabela()).keySet()) {
+                if (nome.equals("p_futuro")) continue;
+                YearMonth mes = YearMonth.parse(nome.substring(1), DateTimeFormatter.ofPattern("yyyyMM"));
+                if (mes.isBefore(limite)) antigas.add(nome);
+            }
+        }
+
+        for (String particao : antigas) {
+            arquivarParticao(tabela, particao);
+        }
+    }
+
+    /**
+     * Arquivo em disco -> resumo + catálogo -> DROP PARTITION. Cada passo pode ser repetido
+     * se uma execução anterior parou no meio.
+     */
+    private static void arquivarParticao(TabelaParticionada tabela, String particao) throws Exception {
+        LocalDate mes = YearMonth.parse(particao.substring(1), DateTimeFormatter.ofPattern("yyyyMM")).atDay(1);
+
+        // 1. Linhas da partição em CSV compactado
+        Files.createDirectories(DIRETORIO_ARQUIVO);
+        Path arquivo = DIRETORIO_ARQUIVO.resolve(tabela.tabela() + "_" + particao.substring(1) + ".csv.gz");
+        Path parcial = DIRETORIO_ARQUIVO.resolve(arquivo.getFileName() + ".parcial");
+        long linhas;
+        try (OutputStream saida = Files.newOutputStream(parcial)) {
+            ExportacaoServico.Consulta consulta = new ExportacaoServico.Consulta(
+                "SELECT * FROM " + tabela.tabela() + " PARTITION (" + particao + ")", List.of());
+            linhas = ExportacaoServico.escreverCsv(consulta, saida, true);
+        } catch (Exception e) {
+            Files.deleteIfExists(parcial);
+            throw e;
+        }
+        Files.move(parcial, arquivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        try (Connection conn = DB.getConnection()) {
+            if (conn == null) throw new SQLException("Não foi possível conectar ao banco de dados.");
+
+            // 2. Resumo mensal e catálogo do arquivo, na mesma transação
+            conn.setAutoCommit(false);
+            try {
+                try (PreparedStatement ps = conn.prepareStatement(String.format(tabela.sqlResumo(), particao))) {
+                    ps.setDate(1, Date.valueOf(mes));
+                    ps.executeUpdate();
+                }
+                String sqlCatalogo = "INSERT INTO arquivos_particoes (tabela, particao, mes, arquivo, linhas) VALUES (?, ?, ?, ?, ?) " +
+                                     "ON DUPLICATE KEY UPDATE arquivo = ?, linhas = ?, arquivado_em = CURRENT_TIMESTAMP";
+                try (PreparedStatement ps = conn.prepareStatement(sqlCatalogo)) {
+                    ps.setString(1, tabela.tabela());
+                    ps.setString(2, particao);
+                    ps.setDate(3, Date.valueOf(mes));
+                    ps.setString(4, arquivo.toAbsolutePath().toString());
+                    ps.setLong(5, linhas);
+                    ps.setString(6, arquivo.toAbsolutePath().toString());
+                    ps.setLong(7, linhas);
+                    ps.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            // 3. Remove a partição (DDL, fora da transação)
+            try (Statement st = conn.createStatement()) {
+                st.executeUpdate("ALTER TABLE " + tabela.tabela() + " DROP PARTITION " + particao);
+            }
+        }
+
+        particoesArquivadas.incrementAndGet();
+        linhasArquivadas.addAndGet(linhas);
+        System.out.println("Partição " + tabela.tabela() + "." + particao + " arquivada em " + arquivo + " (" + linhas + " linhas).");
+    }
+
+    /**
+     * Contadores da manutenção de partições.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("particoes_criadas", particoesCriadas.get());
+        estatisticas.put("particoes_arquivadas", particoesArquivadas.get());
+        estatisticas.put("linhas_arquivadas", linhasArquivadas.get());
+        estatisticas.put("falhas", falhas.get());
+        estatisticas.put("ultima_execucao", ultimaExecucao);
+        return estatisticas;
+    }
+}
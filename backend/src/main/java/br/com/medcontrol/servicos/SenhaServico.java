@@ -0,0 +1,146 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Hash e conferência de senhas (BCrypt).
+ *
+ * O BCrypt é caro de propósito e ocupa a CPU; no início de turno, centenas de logins simultâneos
+ * deixavam as threads do Javalin presas nele e travavam os demais endpoints. O login confere a senha
+ * num pool próprio e limitado (medcontrol.bcrypt.threads, fila medcontrol.bcrypt.fila); com a fila
+ * cheia, a tarefa é recusada (RejectedExecutionException) e o controlador responde 503.
+ *
+ * Quando o custo configurado (medcontrol.bcrypt.custo) muda, o hash do usuário é refeito com o novo
+ * custo no próximo login bem-sucedido, já que é o único momento em que a senha em texto está disponível.
+ */
+public class SenhaServico {
+
+    private static final int CUSTO = Integer.getInteger("medcontrol.bcrypt.custo", 10);
+    private static final int THREADS = Integer.getInteger("medcontrol.bcrypt.threads", Runtime.getRuntime().availableProcessors());
+    // ~100 ms por conferência com custo 10: 32 por thread na fila são ~3 s de espera no pior caso
+    private static final int FILA = Integer.getInteger("medcontrol.bcrypt.fila", THREADS * 32);
+
+    private static final BCryptPasswordEncoder encoder = new BCryptPasswordEncoder(CUSTO);
+
+    private static final AtomicInteger contadorThreads = new AtomicInteger();
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        THREADS, THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(FILA),
+        r -> {
+            Thread t = new Thread(r, "bcrypt-" + contadorThreads.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        },
+        new ThreadPoolExecutor.AbortPolicy());
+
+    private static final AtomicLong conferencias = new AtomicLong();
+    private static final AtomicLong recusadas = new AtomicLong();
+    private static final AtomicLong rehashes = new AtomicLong();
+    private static final AtomicLong esperaTotalNanos = new AtomicLong();
+    private static final AtomicLong esperaMaximaNanos = new AtomicLong();
+    private static final AtomicLong duracaoTotalNanos = new AtomicLong();
+
+    private SenhaServico() {
+    }
+
+    /**
+     * Gera o hash da senha com o custo configurado.
+     */
+    public static String gerarHash(String senha) {
+        return encoder.encode(senha);
+    }
+
+    /**
+     * Confere a senha na thread atual. Para o login, use conferirNoPool.
+     */
+    public static boolean conferir(String senha, String hash) {
+        return senha != null && hash != null && encoder.matches(senha, hash);
+    }
+
+    /**
+     * Confere a senha no pool do BCrypt. Se conferir e o hash tiver sido gerado com outro custo,
+     * grava um novo hash para o usuário (na mesma tarefa, sem voltar para a fila).
+     * @throws java.util.concurrent.RejectedExecutionException Se a fila do pool estiver cheia.
+     */
+    public static CompletableFuture<Boolean> conferirNoPool(int idUsuario, String senha, String hash) {
+        long enfileiradoEm = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                long inicio = System.nanoTime();
+                long espera = inicio - enfileiradoEm;
+                esperaTotalNanos.addAndGet(espera);
+                esperaMaximaNanos.accumulateAndGet(espera, Math::max);
+
+                boolean confere = conferir(senha, hash);
+                conferencias.incrementAndGet();
+                duracaoTotalNanos.addAndGet(System.nanoTime() - inicio);
+
+                if (confere && precisaRefazerHash(hash)) {
+                    refazerHash(idUsuario, senha, hash);
+                }
+                return confere;
+            }, executor);
+        } catch (RuntimeException e) {
+            recusadas.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * true se o hash não foi gerado com o custo configurado (ou não é um hash BCrypt reconhecível).
+     */
+    static boolean precisaRefazerHash(String hash) {
+        // Formato: $2a$10$<salt+hash>; o custo são os dois dígitos após o segundo '$'
+        if (hash.length() < 7 || hash.charAt(0) != '$' || hash.charAt(3) != '$' || hash.charAt(6) != '$') return true;
+        try {
+            return Integer.parseInt(hash.substring(4, 6)) != CUSTO;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static void refazerHash(int idUsuario, String senha, String hashAntigo) {
+        // "AND senha = ?": não sobrescreve uma troca de senha feita enquanto o hash era recalculado
+        String sql = "UPDATE usuarios SET senha = ? WHERE id = ? AND senha = ?";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, encoder.encode(senha));
+            ps.setInt(2, idUsuario);
+            ps.setString(3, hashAntigo);
+            if (ps.executeUpdate() > 0) rehashes.incrementAndGet();
+        } catch (Exception e) {
+            // O login segue válido; tenta de novo no próximo
+            System.err.println("Aviso: não foi possível atualizar o hash da senha do usuário " + idUsuario + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Contadores do pool do BCrypt.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        long total = conferencias.get();
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("custo", CUSTO);
+        estatisticas.put("threads", THREADS);
+        estatisticas.put("em_execucao", executor.getActiveCount());
+        estatisticas.put("na_fila", executor.getQueue().size());
+        estatisticas.put("capacidade_fila", FILA);
+        estatisticas.put("conferencias", total);
+        estatisticas.put("recusadas_fila_cheia", recusadas.get());
+        estatisticas.put("hashes_refeitos", rehashes.get());
+        estatisticas.put("espera_media_ms", total == 0 ? 0.0 : esperaTotalNanos.get() / 1e6 / total);
+        estatisticas.put("espera_maxima_ms", esperaMaximaNanos.get() / 1e6);
+        estatisticas.put("duracao_media_ms", total == 0 ? 0.0 : duracaoTotalNanos.get() / 1e6 / total);
+        return estatisticas;
+    }
+}
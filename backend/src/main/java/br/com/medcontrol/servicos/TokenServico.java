@@ -0,0 +1,213 @@
+package br.com.medcontrol.servicos;
+
+import br.com.medcontrol.db.DB;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Tokens de sessão assinados (HMAC-SHA256), emitidos no login.
+ *
+ * O token carrega id do usuário, perfil e validade; "payload.assinatura" em Base64 URL, com payload
+ * "id|perfil|emitidoEmMs|expiraEmMs". Conferi-lo não acessa o banco. Para derrubar as sessões de um
+ * usuário desativado ou excluído, revogar() marca o momento da revogação e todo token dele emitido
+ * antes disso passa a ser recusado. As revogações ficam na tabela tokens_revogados e são relidas
+ * periodicamente, para valerem em todos os servidores.
+ *
+ * Com mais de um servidor, todos precisam do mesmo segredo (-Dmedcontrol.token.segredo). Sem ele, o
+ * segredo é sorteado na inicialização e as sessões se perdem a cada reinício.
+ */
+public class TokenServico {
+
+    private static final long VALIDADE_MS = TimeUnit.HOURS.toMillis(Long.getLong("medcontrol.token.validadeHoras", 12L));
+    private static final long INTERVALO_SINCRONIZACAO_S = Long.getLong("medcontrol.token.sincronizacaoSegundos", 30L);
+
+    private static final byte[] SEGREDO;
+
+    /**
+     * Dados de um token válido.
+     */
+    public record Sessao(int idUsuario, String perfil, long emitidoEm) {}
+
+    // id_usuario -> momento (epoch ms) da revogação; tokens emitidos até esse momento são recusados
+    private static final Map<Integer, Long> revogados = new ConcurrentHashMap<>();
+
+    private static final AtomicLong emitidos = new AtomicLong();
+    private static final AtomicLong aceitos = new AtomicLong();
+    private static final AtomicLong recusadosAssinatura = new AtomicLong();
+    private static final AtomicLong recusadosExpirados = new AtomicLong();
+    private static final AtomicLong recusadosRevogados = new AtomicLong();
+
+    private static final ScheduledExecutorService sincronizacao = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "tokens-revogados-sincronizacao");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        String configurado = System.getProperty("medcontrol.token.segredo", "");
+        if (configurado.isEmpty()) {
+            SEGREDO = new byte[32];
+            new SecureRandom().nextBytes(SEGREDO);
+            System.out.println("Aviso: medcontrol.token.segredo não definido; segredo dos tokens sorteado (sessões não sobrevivem a reinícios).");
+        } else {
+            SEGREDO = configurado.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private TokenServico() {
+    }
+
+    /**
+     * Carrega as revogações do banco e passa a relê-las periodicamente.
+     */
+    public static void iniciar() {
+        sincronizacao.scheduleWithFixedDelay(TokenServico::sincronizarRevogacoes, 0, INTERVALO_SINCRONIZACAO_S, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Emite um token para o usuário.
+     */
+    public static String emitir(int idUsuario, String perfil) {
+        long agora = System.currentTimeMillis();
+        // Depois de uma revogação no mesmo milissegundo, o token novo precisa ser posterior a ela
+        Long revogadoEm = revogados.get(idUsuario);
+        long emitidoEm = revogadoEm != null && revogadoEm >= agora ? revogadoEm + 1 : agora;
+        String payload = idUsuario + "|" + perfil + "|" + emitidoEm + "|" + (emitidoEm + VALIDADE_MS);
+        emitidos.incrementAndGet();
+        return codificar(payload.getBytes(StandardCharsets.UTF_8)) + "." + codificar(assinar(payload));
+    }
+
+    /**
+     * Confere assinatura, validade e revogação do token.
+     * @return A sessão, ou null se o token não for aceito.
+     */
+    public static Sessao validar(String token) {
+        int ponto = token != null ? token.indexOf('.') : -1;
+        if (ponto <= 0) {
+            recusadosAssinatura.incrementAndGet();
+            return null;
+        }
+        String payload;
+        byte[] assinatura;
+        try {
+            payload = new String(Base64.getUrlDecoder().decode(token.substring(0, ponto)), StandardCharsets.UTF_8);
+            assinatura = Base64.getUrlDecoder().decode(token.substring(ponto + 1));
+        } catch (IllegalArgumentException e) {
+            recusadosAssinatura.incrementAndGet();
+            return null;
+        }
+        if (!MessageDigest.isEqual(assinar(payload), assinatura)) {
+            recusadosAssinatura.incrementAndGet();
+            return null;
+        }
+
+        String[] campos = payload.split("\\|");
+        if (campos.length != 4) {
+            recusadosAssinatura.incrementAndGet();
+            return null;
+        }
+        int idUsuario = Integer.parseInt(campos[0]);
+        long emitidoEm = Long.parseLong(campos[2]);
+        long expiraEm = Long.parseLong(campos[3]);
+
+        if (expiraEm <= System.currentTimeMillis()) {
+            recusadosExpirados.incrementAndGet();
+            return null;
+        }
+        Long revogadoEm = revogados.get(idUsuario);
+        if (revogadoEm != null && emitidoEm <= revogadoEm) {
+            recusadosRevogados.incrementAndGet();
+            return null;
+        }
+        aceitos.incrementAndGet();
+        return new Sessao(idUsuario, campos[1], emitidoEm);
+    }
+
+    /**
+     * Invalida todos os tokens já emitidos para o usuário (ex.: usuário desativado ou excluído).
+     */
+    public static void revogar(int idUsuario) {
+        long agora = System.currentTimeMillis();
+        revogados.merge(idUsuario, agora, Math::max);
+
+        String sql = "INSERT INTO tokens_revogados (id_usuario, revogado_em) VALUES (?, ?) " +
+                     "ON DUPLICATE KEY UPDATE revogado_em = GREATEST(revogado_em, VALUES(revogado_em))";
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setInt(1, idUsuario);
+            ps.setTimestamp(2, new Timestamp(agora));
+            ps.executeUpdate();
+        } catch (Exception e) {
+            // Neste servidor a revogação já vale; os demais só a verão depois que for gravada
+            System.err.println("Aviso: não foi possível gravar a revogação de tokens do usuário " + idUsuario + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Relê as revogações ainda relevantes (dentro da validade de um token) e apaga as antigas.
+     */
+    private static void sincronizarRevogacoes() {
+        Timestamp limite = new Timestamp(System.currentTimeMillis() - VALIDADE_MS);
+        try (Connection conn = DB.getConnection()) {
+            try (PreparedStatement ps = conn.prepareStatement("SELECT id_usuario, revogado_em FROM tokens_revogados WHERE revogado_em > ?")) {
+                ps.setTimestamp(1, limite);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        revogados.merge(rs.getInt("id_usuario"), rs.getTimestamp("revogado_em").getTime(), Math::max);
+                    }
+                }
+            }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM tokens_revogados WHERE revogado_em <= ?")) {
+                ps.setTimestamp(1, limite);
+                ps.executeUpdate();
+            }
+        } catch (Exception e) {
+            System.err.println("Falha ao sincronizar tokens revogados: " + e.getMessage());
+        }
+        // Revogações mais antigas que a validade não barram mais nenhum token
+        revogados.values().removeIf(revogadoEm -> revogadoEm <= limite.getTime());
+    }
+
+    private static byte[] assinar(String payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(SEGREDO, "HmacSHA256"));
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            throw new IllegalStateException("HmacSHA256 indisponível.", e);
+        }
+    }
+
+    private static String codificar(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * Contadores dos tokens de sessão.
+     */
+    public static Map<String, Object> getEstatisticas() {
+        Map<String, Object> estatisticas = new LinkedHashMap<>();
+        estatisticas.put("emitidos", emitidos.get());
+        estatisticas.put("aceitos", aceitos.get());
+        estatisticas.put("recusados_assinatura", recusadosAssinatura.get());
+        estatisticas.put("recusados_expirados", recusadosExpirados.get());
+        estatisticas.put("recusados_revogados", recusadosRevogados.get());
+        estatisticas.put("usuarios_revogados", revogados.size());
+        return estatisticas;
+    }
+}
@@ -0,0 +1,39 @@
+package br.com.medcontrol.servicos;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Meio de entrega dos e-mails da FilaEmailServico (API do Gmail, console, um stub em memória nos testes...).
+ */
+public interface TransporteEmail {
+
+    /**
+     * Mensagem a ser entregue.
+     * @param id Identificador na tabela fila_emails.
+     */
+    record Mensagem(long id, String destinatario, String assunto, String corpo) {}
+
+    /**
+     * Entrega uma mensagem. Qualquer exceção conta como falha e a mensagem é tentada de novo depois.
+     */
+    void enviar(Mensagem mensagem) throws Exception;
+
+    /**
+     * Entrega um lote de mensagens. A implementação padrão envia uma a uma; transportes com
+     * envio em lote (ex.: batch da API do Gmail) podem sobrescrever.
+     * @return Para cada mensagem, na mesma ordem, null se foi entregue ou a exceção da falha.
+     */
+    default List<Exception> enviarLote(List<Mensagem> mensagens) {
+        List<Exception> resultados = new ArrayList<>(mensagens.size());
+        for (Mensagem mensagem : mensagens) {
+            try {
+                enviar(mensagem);
+                resultados.add(null);
+            } catch (Exception e) {
+                resultados.add(e);
+            }
+        }
+        return resultados;
+    }
+}
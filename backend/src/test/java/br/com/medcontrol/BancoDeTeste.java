@@ -0,0 +1,72 @@
+package br.com.medcontrol;
+
+import br.com.medcontrol.db.DB;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Banco dos testes: o H2 em memória configurado no surefire (medcontrol.db.url), acessado pelo
+ * mesmo pool do DB que os controladores usam.
+ */
+public final class BancoDeTeste {
+
+    private static boolean criado = false;
+
+    private BancoDeTeste() {
+    }
+
+    /**
+     * Cria as tabelas de schema-teste.sql (uma vez por JVM) e apaga os dados das tabelas informadas.
+     */
+    public static synchronized void preparar(String... tabelasParaLimpar) throws SQLException, IOException {
+        try (Connection conn = DB.getConnection();
+             Statement st = conn.createStatement()) {
+            if (!criado) {
+                try (InputStream in = BancoDeTeste.class.getResourceAsStream("/schema-teste.sql")) {
+                    String script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                    for (String instrucao : script.replaceAll("(?m)^--.*$", "").split(";")) {
+                        if (!instrucao.isBlank()) st.execute(instrucao);
+                    }
+                }
+                criado = true;
+            }
+            for (String tabela : tabelasParaLimpar) {
+                st.execute("TRUNCATE TABLE " + tabela);
+            }
+        }
+    }
+
+    /**
+     * Executa um INSERT/UPDATE/DELETE com parâmetros.
+     */
+    public static int executar(String sql, Object... parametros) throws SQLException {
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < parametros.length; i++) {
+                ps.setObject(i + 1, parametros[i]);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Primeira coluna da primeira linha de uma consulta numérica (ex.: COUNT, SUM).
+     */
+    public static long numero(String sql, Object... parametros) throws SQLException {
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement(sql)) {
+            for (int i = 0; i < parametros.length; i++) {
+                ps.setObject(i + 1, parametros[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package br.com.medcontrol;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Driver JDBC dos testes: aceita URLs "jdbc:contador:<url real>", repassa tudo ao driver real e
+ * guarda o SQL de cada instrução executada, para os testes contarem as idas ao banco.
+ * Registrado em META-INF/services/java.sql.Driver.
+ */
+public class ContadorConsultas implements Driver {
+
+    private static final String PREFIXO = "jdbc:contador:";
+
+    private static final Queue<String> executadas = new ConcurrentLinkedQueue<>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new ContadorConsultas());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Esquece as instruções registradas até aqui.
+     */
+    public static void zerar() {
+        executadas.clear();
+    }
+
+    /**
+     * Instruções executadas desde o último zerar() cujo SQL começa com o prefixo (sem diferenciar maiúsculas).
+     */
+    public static List<String> executadas(String prefixo) {
+        List<String> resultado = new ArrayList<>();
+        for (String sql : executadas) {
+            if (sql.stripLeading().regionMatches(true, 0, prefixo, 0, prefixo.length())) {
+                resultado.add(sql);
+            }
+        }
+        return resultado;
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) return null;
+        Connection real = DriverManager.getConnection("jdbc:" + url.substring(PREFIXO.length()), info);
+        return envolver(Connection.class, real, null);
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PREFIXO);
+    }
+
+    /**
+     * Proxy que registra as execuções. Conexões devolvem Statements também envolvidos;
+     * PreparedStatements guardam o SQL recebido no prepare.
+     */
+    private static <T> T envolver(Class<T> tipo, Object real, String sqlPreparado) {
+        InvocationHandler handler = (proxy, metodo, args) -> {
+            String nome = metodo.getName();
+            if (nome.startsWith("execute")) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String s ? s : sqlPreparado;
+                if (sql != null) executadas.add(sql);
+            }
+            Object resultado;
+            try {
+                resultado = metodo.invoke(real, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (tipo != Connection.class) return resultado;
+            if (resultado instanceof CallableStatement cs) return envolver(CallableStatement.class, cs, (String) args[0]);
+            if (resultado instanceof PreparedStatement ps) return envolver(PreparedStatement.class, ps, (String) args[0]);
+            if (resultado instanceof Statement st) return envolver(Statement.class, st, null);
+            return resultado;
+        };
+        return tipo.cast(Proxy.newProxyInstance(ContadorConsultas.class.getClassLoader(), new Class<?>[] {tipo}, handler));
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+}
@@ -0,0 +1,146 @@
+package br.com.medcontrol.controlador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import br.com.medcontrol.BancoDeTeste;
+import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.ArmazemCodigosMemoria;
+import br.com.medcontrol.servicos.SenhaServico;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.Javalin;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+
+/**
+ * Login no pico do início do turno: muitos logins simultâneos, BCrypt no pool do SenhaServico
+ * e hash refeito quando o custo configurado muda.
+ */
+class AutenticacaoControllerTest {
+
+    private static final int USUARIOS = 20;
+    private static final int CLIENTES = 16;
+    private static final int LOGINS_POR_CLIENTE = 6;
+    private static final String SENHA = "senha-do-turno";
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final HttpClient cliente = HttpClient.newHttpClient();
+    private static Javalin app;
+
+    @BeforeAll
+    static void iniciar() throws Exception {
+        BancoDeTeste.preparar("usuarios");
+        String hash = SenhaServico.gerarHash(SENHA);
+        for (int i = 1; i <= USUARIOS; i++) {
+            BancoDeTeste.executar("INSERT INTO usuarios (id, nome, email, cpf_cns, senha, perfil) VALUES (?, ?, ?, ?, ?, 'farmaceutico')",
+                    i, "Farmacêutico " + i, "farma" + i + "@ubs.gov.br", String.format("%011d", i), hash);
+        }
+
+        app = Javalin.create().start(0);
+        app.post("/api/login", new AutenticacaoController(null, new ArmazemCodigosMemoria())::login);
+    }
+
+    @AfterAll
+    static void parar() {
+        app.stop();
+    }
+
+    private static HttpResponse<String> login(String emailOuCpf, String senha) throws Exception {
+        String corpo = mapper.writeValueAsString(Map.of("emailOuCpf", emailOuCpf, "senha", senha));
+        HttpRequest requisicao = HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + "/api/login"))
+                .POST(HttpRequest.BodyPublishers.ofString(corpo))
+                .build();
+        return cliente.send(requisicao, HttpResponse.BodyHandlers.ofString());
+    }
+
+    @Test
+    void picoDeLoginsSimultaneos() throws Exception {
+        Map<Integer, AtomicInteger> respostas = new ConcurrentHashMap<>();
+        AtomicInteger erradasAceitas = new AtomicInteger();
+        CountDownLatch largada = new CountDownLatch(1);
+        ExecutorService clientes = Executors.newFixedThreadPool(CLIENTES);
+        List<Future<?>> tarefas = new ArrayList<>();
+        for (int c = 0; c < CLIENTES; c++) {
+            int numeroCliente = c;
+            tarefas.add(clientes.submit(() -> {
+                largada.await();
+                for (int l = 0; l < LOGINS_POR_CLIENTE; l++) {
+                    int id = 1 + (numeroCliente * LOGINS_POR_CLIENTE + l) % USUARIOS;
+                    // Metade entra por e-mail, metade por CPF; um a cada seis erra a senha
+                    String identificador = l % 2 == 0 ? "farma" + id + "@ubs.gov.br" : String.format("%011d", id);
+                    boolean senhaErrada = l % 6 == 5;
+                    HttpResponse<String> resposta = login(identificador, senhaErrada ? "errada" : SENHA);
+                    respostas.computeIfAbsent(resposta.statusCode(), s -> new AtomicInteger()).incrementAndGet();
+                    if (senhaErrada && resposta.statusCode() == 200) erradasAceitas.incrementAndGet();
+                    if (resposta.statusCode() == 200) {
+                        JsonNode json = mapper.readTree(resposta.body());
+                        assertEquals(id, json.get("user").get("id").asInt());
+                        assertFalse(json.get("token").asText().isEmpty());
+                    }
+                }
+                return null;
+            }));
+        }
+
+        long inicio = System.nanoTime();
+        largada.countDown();
+        for (Future<?> tarefa : tarefas) {
+            tarefa.get();
+        }
+        clientes.shutdown();
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        int total = CLIENTES * LOGINS_POR_CLIENTE;
+        System.out.printf("Login: %d logins de %d clientes em %.2f s (%.1f logins/s), respostas %s, pool BCrypt %s%n",
+                total, CLIENTES, segundos, total / segundos, respostas, SenhaServico.getEstatisticas());
+
+        int erradas = CLIENTES * (LOGINS_POR_CLIENTE / 6);
+        assertEquals(0, erradasAceitas.get());
+        assertEquals(total - erradas, respostas.get(200).get());
+        assertEquals(erradas, respostas.get(401).get());
+    }
+
+    @Test
+    void hashComOutroCustoERefeitoNoLogin() throws Exception {
+        String hashAntigo = new BCryptPasswordEncoder(4).encode(SENHA);
+        BancoDeTeste.executar("INSERT INTO usuarios (id, nome, email, cpf_cns, senha) VALUES (1000, 'Paciente', 'paciente@x.com', '99999999999', ?)", hashAntigo);
+
+        assertEquals(200, login("paciente@x.com", SENHA).statusCode());
+
+        // O novo hash é gravado na tarefa do pool, antes da resposta
+        String hashNovo = consultarSenha(1000);
+        assertFalse(hashNovo.equals(hashAntigo));
+        assertTrue(hashNovo.startsWith("$2a$10$"), hashNovo);
+        assertEquals(200, login("99999999999", SENHA).statusCode());
+    }
+
+    private static String consultarSenha(int id) throws Exception {
+        try (Connection conn = DB.getConnection();
+             PreparedStatement ps = conn.prepareStatement("SELECT senha FROM usuarios WHERE id = ?")) {
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+}
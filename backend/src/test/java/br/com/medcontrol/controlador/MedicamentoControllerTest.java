@@ -0,0 +1,97 @@
+package br.com.medcontrol.controlador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import br.com.medcontrol.BancoDeTeste;
+import br.com.medcontrol.ContadorConsultas;
+import br.com.medcontrol.servicos.IndiceBuscaMedicamentos;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.Javalin;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/**
+ * RF6.3 - Busca pública de medicamentos: a disponibilidade de todas as UBS sai de uma única consulta,
+ * qualquer que seja o número de UBS com estoque (antes: 1 + uma soma de reservas por UBS).
+ */
+class MedicamentoControllerTest {
+
+    private static final int TOTAL_UBS = 300;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final HttpClient cliente = HttpClient.newHttpClient();
+    private static Javalin app;
+
+    @BeforeAll
+    static void iniciar() throws Exception {
+        BancoDeTeste.preparar("medicamentos", "ubs", "disponibilidade_estoque");
+
+        BancoDeTeste.executar("INSERT INTO medicamentos (id_medicamento, nome_comercial, principio_ativo) VALUES (1, 'Dipirona Sódica', 'Dipirona')");
+        BancoDeTeste.executar("INSERT INTO medicamentos (id_medicamento, nome_comercial, principio_ativo) VALUES (2, 'Paracetamol', 'Paracetamol')");
+        for (int id = 1; id <= TOTAL_UBS; id++) {
+            BancoDeTeste.executar("INSERT INTO ubs (id_ubs, nome, endereco, latitude, longitude) VALUES (?, ?, ?, ?, ?)",
+                    id, String.format("UBS %03d", id), "Rua " + id, -23.5 + id / 1000.0, -46.6);
+            // Nas UBS múltiplas de 10, todo o estoque físico está reservado
+            int reservado = id % 10 == 0 ? 20 : 5;
+            BancoDeTeste.executar("INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_fisico, total_reservado) VALUES (1, ?, 20, ?)",
+                    id, reservado);
+        }
+        IndiceBuscaMedicamentos.carregar();
+
+        app = Javalin.create().start(0);
+        app.get("/api/medicamentos/search", new MedicamentoController()::buscarMedicamento);
+    }
+
+    @AfterAll
+    static void parar() {
+        app.stop();
+    }
+
+    private static List<Map<String, Object>> buscar(String termo) throws Exception {
+        HttpRequest requisicao = HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + "/api/medicamentos/search?nome=" + termo)).build();
+        HttpResponse<String> resposta = cliente.send(requisicao, HttpResponse.BodyHandlers.ofString());
+        assertEquals(200, resposta.statusCode(), resposta.body());
+        return mapper.readValue(resposta.body(), new TypeReference<>() {});
+    }
+
+    @Test
+    void buscaEmTodasAsUbsFazUmaUnicaConsulta() throws Exception {
+        ContadorConsultas.zerar();
+        List<Map<String, Object>> resultados = buscar("dipirona");
+
+        // As gravações do log de busca e da demanda não atendida são INSERTs assíncronos; aqui só contam as leituras
+        assertEquals(1, ContadorConsultas.executadas("SELECT").size(), () -> "Consultas: " + ContadorConsultas.executadas("SELECT"));
+        assertEquals(TOTAL_UBS - TOTAL_UBS / 10, resultados.size());
+    }
+
+    @Test
+    void respostaMantemOFormatoEADisponibilidadeReal() throws Exception {
+        List<Map<String, Object>> resultados = buscar("dipirona");
+
+        Map<String, Object> primeiro = resultados.get(0);
+        assertEquals(Set.of("id_medicamento", "id_ubs", "quantidade_disponivel", "nome", "endereco", "latitude", "longitude"), primeiro.keySet());
+        // Ordenado pelo nome da UBS; UBS 001: 20 físicos - 5 reservados
+        assertEquals("UBS 001", primeiro.get("nome"));
+        assertEquals(1, ((Number) primeiro.get("id_medicamento")).intValue());
+        assertEquals(15, ((Number) primeiro.get("quantidade_disponivel")).intValue());
+        for (Map<String, Object> resultado : resultados) {
+            assertEquals(15, ((Number) resultado.get("quantidade_disponivel")).intValue());
+        }
+    }
+
+    @Test
+    void medicamentoSemEstoqueNaoConsultaAsUbs() throws Exception {
+        ContadorConsultas.zerar();
+        assertEquals(List.of(), buscar("paracetamol"));
+        assertEquals(1, ContadorConsultas.executadas("SELECT").size());
+    }
+}
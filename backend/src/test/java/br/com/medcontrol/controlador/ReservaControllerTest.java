@@ -0,0 +1,133 @@
+package br.com.medcontrol.controlador;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import br.com.medcontrol.BancoDeTeste;
+import br.com.medcontrol.db.DB;
+import br.com.medcontrol.servicos.DisponibilidadeServico;
+import io.javalin.Javalin;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * RF07.1 - Carga de reservas simultâneas num medicamento escasso: nenhuma reserva além do estoque.
+ */
+class ReservaControllerTest {
+
+    private static final int CLIENTES = 64;
+    private static final int PEDIDOS_POR_CLIENTE = 5;
+    private static final int ESTOQUE = 100;
+
+    private static final HttpClient cliente = HttpClient.newHttpClient();
+    private static Javalin app;
+
+    @BeforeAll
+    static void iniciar() {
+        app = Javalin.create().start(0);
+        app.post("/api/reservas", new ReservaController()::criarReserva);
+    }
+
+    @AfterAll
+    static void parar() {
+        app.stop();
+    }
+
+    @BeforeEach
+    void prepararEstoque() throws Exception {
+        BancoDeTeste.preparar("reservas", "disponibilidade_estoque");
+        BancoDeTeste.executar("INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_fisico, total_reservado) VALUES (1, 1, ?, 0)", ESTOQUE);
+    }
+
+    @Test
+    void clientesSimultaneosNaoReservamAlemDoEstoque() throws Exception {
+        Map<Integer, AtomicInteger> respostas = new ConcurrentHashMap<>();
+        CountDownLatch largada = new CountDownLatch(1);
+        ExecutorService clientes = Executors.newFixedThreadPool(CLIENTES);
+        List<Future<?>> tarefas = new ArrayList<>();
+        for (int c = 0; c < CLIENTES; c++) {
+            int idUsuario = c + 1;
+            tarefas.add(clientes.submit(() -> {
+                largada.await();
+                for (int p = 0; p < PEDIDOS_POR_CLIENTE; p++) {
+                    int quantidade = 1 + p % 2;
+                    String corpo = String.format("{\"id_medicamento\":1,\"id_ubs\":1,\"quantidadeReservada\":%d,\"dataHoraReserva\":\"%s\"}",
+                            quantidade, LocalDateTime.now().plusDays(1).withNano(0));
+                    HttpRequest requisicao = HttpRequest.newBuilder(URI.create("http://localhost:" + app.port() + "/api/reservas"))
+                            .header("X-User-ID", String.valueOf(idUsuario))
+                            .POST(HttpRequest.BodyPublishers.ofString(corpo))
+                            .build();
+                    int status = cliente.send(requisicao, HttpResponse.BodyHandlers.discarding()).statusCode();
+                    respostas.computeIfAbsent(status, s -> new AtomicInteger()).incrementAndGet();
+                }
+                return null;
+            }));
+        }
+
+        long inicio = System.nanoTime();
+        largada.countDown();
+        for (Future<?> tarefa : tarefas) {
+            tarefa.get();
+        }
+        clientes.shutdown();
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        System.out.printf("Reservas: %d clientes, %d pedidos em %.2f s (%.0f pedidos/s), respostas %s%n",
+                CLIENTES, CLIENTES * PEDIDOS_POR_CLIENTE, segundos, CLIENTES * PEDIDOS_POR_CLIENTE / segundos, respostas);
+
+        long reservado = BancoDeTeste.numero("SELECT COALESCE(SUM(quantidade_reservada), 0) FROM reservas WHERE status = 'ATIVA'");
+        assertEquals(ESTOQUE, reservado, "Reservas ativas devem esgotar o estoque sem ultrapassá-lo");
+        assertEquals(ESTOQUE, BancoDeTeste.numero("SELECT total_reservado FROM disponibilidade_estoque WHERE id_medicamento = 1 AND id_ubs = 1"));
+        assertEquals(BancoDeTeste.numero("SELECT COUNT(*) FROM reservas"), respostas.get(201).get());
+        assertEquals(CLIENTES * PEDIDOS_POR_CLIENTE - respostas.get(201).get(), respostas.get(400).get());
+    }
+
+    /**
+     * Sem a trava local do AlocadorReservas, como acontece entre backends diferentes:
+     * o UPDATE condicional sozinho segura o estoque.
+     */
+    @Test
+    void updateCondicionalSeguraOEstoqueEntreTransacoesConcorrentes() throws Exception {
+        AtomicInteger admitidas = new AtomicInteger();
+        CountDownLatch largada = new CountDownLatch(1);
+        ExecutorService backends = Executors.newFixedThreadPool(8);
+        List<Future<?>> tarefas = new ArrayList<>();
+        for (int i = 0; i < ESTOQUE * 2; i++) {
+            tarefas.add(backends.submit(() -> {
+                largada.await();
+                try (Connection conn = DB.getConnection()) {
+                    conn.setAutoCommit(false);
+                    if (DisponibilidadeServico.reservar(conn, 1, 1, 1)) {
+                        admitidas.incrementAndGet();
+                    }
+                    conn.commit();
+                    conn.setAutoCommit(true);
+                }
+                return null;
+            }));
+        }
+        largada.countDown();
+        for (Future<?> tarefa : tarefas) {
+            tarefa.get();
+        }
+        backends.shutdown();
+
+        assertEquals(ESTOQUE, admitidas.get());
+        assertEquals(ESTOQUE, BancoDeTeste.numero("SELECT total_reservado FROM disponibilidade_estoque WHERE id_medicamento = 1 AND id_ubs = 1"));
+    }
+}
@@ -0,0 +1,101 @@
+-- Recorte de database/schema.sql para os testes (H2 em modo MySQL).
+-- Sem FOREIGN KEY nem partições: cada teste monta só os dados de que precisa.
+
+CREATE TABLE usuarios (
+    id INT AUTO_INCREMENT PRIMARY KEY,
+    nome VARCHAR(255) NOT NULL,
+    email VARCHAR(255) NOT NULL UNIQUE,
+    cpf_cns VARCHAR(20) NOT NULL UNIQUE,
+    cep VARCHAR(10),
+    logradouro VARCHAR(255) NULL,
+    bairro VARCHAR(100) NULL,
+    cidade VARCHAR(100) NULL,
+    uf CHAR(2) NULL,
+    data_nascimento DATE,
+    senha VARCHAR(255) NOT NULL,
+    perfil ENUM('usuario', 'farmaceutico', 'admin', 'gestor_ubs', 'gestor_estoque') NOT NULL DEFAULT 'usuario',
+    ativo BOOLEAN DEFAULT TRUE,
+    criado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE ubs (
+    id_ubs INT AUTO_INCREMENT PRIMARY KEY,
+    nome VARCHAR(150) NOT NULL,
+    endereco TEXT NOT NULL,
+    cep VARCHAR(10) NULL,
+    telefone VARCHAR(20),
+    horario_funcionamento VARCHAR(255),
+    latitude DECIMAL(10, 8),
+    longitude DECIMAL(11, 8),
+    ativo BOOLEAN DEFAULT TRUE
+);
+
+CREATE TABLE medicamentos (
+    id_medicamento INT AUTO_INCREMENT PRIMARY KEY,
+    nome_comercial VARCHAR(150) NOT NULL,
+    principio_ativo VARCHAR(150) NOT NULL,
+    concentracao VARCHAR(50),
+    apresentacao VARCHAR(100),
+    via_administracao VARCHAR(50),
+    controlado BOOLEAN DEFAULT FALSE,
+    ativo BOOLEAN DEFAULT TRUE
+);
+
+CREATE TABLE estoque (
+    id_estoque INT AUTO_INCREMENT PRIMARY KEY,
+    id_ubs INT NOT NULL,
+    id_medicamento INT NOT NULL,
+    quantidade INT NOT NULL DEFAULT 0,
+    lote VARCHAR(50),
+    data_validade DATE,
+    ultima_atualizacao TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE KEY uk_medicamento_ubs_lote (id_ubs, id_medicamento, lote)
+);
+
+CREATE TABLE log_buscas (
+    id_busca INT AUTO_INCREMENT,
+    termo_buscado VARCHAR(255),
+    id_medicamento_encontrado INT NULL,
+    data_busca DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    teve_resultados BOOLEAN NOT NULL,
+    id_usuario INT NULL,
+    PRIMARY KEY (id_busca, data_busca)
+);
+
+CREATE TABLE buscas_termos_diarias (
+    dia DATE NOT NULL,
+    termo VARCHAR(255) NOT NULL,
+    total_buscas INT NOT NULL DEFAULT 0,
+    total_com_resultado INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (dia, termo)
+);
+
+CREATE TABLE demanda_nao_atendida (
+    dia DATE NOT NULL,
+    id_ubs INT NOT NULL DEFAULT 0,
+    id_medicamento INT NOT NULL DEFAULT 0,
+    termo VARCHAR(255) NOT NULL,
+    motivo VARCHAR(30) NOT NULL,
+    total INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (dia, id_ubs, id_medicamento, termo, motivo)
+);
+
+CREATE TABLE reservas (
+    id_reserva INT AUTO_INCREMENT PRIMARY KEY,
+    id_usuario INT NOT NULL,
+    id_medicamento INT NOT NULL,
+    id_ubs INT NOT NULL,
+    data_hora_reserva DATETIME NOT NULL,
+    quantidade_reservada INT NOT NULL,
+    status ENUM('ATIVA', 'RETIRADA', 'CANCELADA', 'EXPIRADA') NOT NULL DEFAULT 'ATIVA',
+    criado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE disponibilidade_estoque (
+    id_medicamento INT NOT NULL,
+    id_ubs INT NOT NULL,
+    total_fisico INT NOT NULL DEFAULT 0,
+    total_reservado INT NOT NULL DEFAULT 0,
+    atualizado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (id_medicamento, id_ubs)
+);
@@ -110,6 +110,7 @@ CREATE TABLE retiradas (
     id_ubs INT NOT NULL, -- UBS onde foi retirado
     id_farmaceutico INT NOT NULL, -- Farmacêutico que dispensou (usuário admin logado)
     data_retirada TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    INDEX idx_retiradas_data (data_retirada),
     -- id_receita INT NULL, -- (Opcional, se a retirada estiver vinculada a uma receita)
     -- FOREIGN KEY (id_receita) REFERENCES receitas(id_receita),
     FOREIGN KEY (id_usuario) REFERENCES usuarios(id),
@@ -128,18 +129,70 @@ CREATE TABLE itens_retiradas (
     FOREIGN KEY (id_estoque) REFERENCES estoque(id_estoque)
 );
 
+-- ============================================
+-- RF09.2: Demanda diária pré-agregada (total retirado por dia, medicamento e UBS)
+-- Incrementada na transação da retirada; reconstruível a partir do histórico.
+-- ============================================
+CREATE TABLE demanda_diaria (
+    dia DATE NOT NULL,
+    id_medicamento INT NOT NULL,
+    id_ubs INT NOT NULL,
+    total_retirado INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (dia, id_medicamento, id_ubs),
+    INDEX idx_demanda_medicamento_dia (id_medicamento, dia),
+    FOREIGN KEY (id_medicamento) REFERENCES medicamentos(id_medicamento),
+    FOREIGN KEY (id_ubs) REFERENCES ubs(id_ubs)
+);
+
 -- ============================================
 -- RF6.3: LOG DE BUSCAS 
 -- ============================================
+-- Particionada por mês (RANGE em data_busca): consultas por período só leem as partições
+-- do intervalo, e o ParticionamentoServico cria as partições dos próximos meses e arquiva as antigas.
+-- Tabelas particionadas não aceitam FOREIGN KEY e exigem a coluna de partição na chave primária.
 CREATE TABLE log_buscas (
-    id_busca INT AUTO_INCREMENT PRIMARY KEY,
+    id_busca INT AUTO_INCREMENT,
     termo_buscado VARCHAR(255),
     id_medicamento_encontrado INT NULL, -- (Opcional, para estatísticas)
-    data_busca TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+    data_busca DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
     teve_resultados BOOLEAN NOT NULL,
     id_usuario INT NULL, -- Usuário que buscou (pode ser nulo se não logado)
-    FOREIGN KEY (id_usuario) REFERENCES usuarios(id) ON DELETE SET NULL,
-    FOREIGN KEY (id_medicamento_encontrado) REFERENCES medicamentos(id_medicamento) ON DELETE SET NULL
+    PRIMARY KEY (id_busca, data_busca),
+    INDEX idx_log_buscas_data (data_busca)
+)
+PARTITION BY RANGE COLUMNS (data_busca) (
+    PARTITION p_futuro VALUES LESS THAN (MAXVALUE)
+);
+
+-- Resumo mensal das buscas arquivadas (as linhas saem de log_buscas, o resumo fica)
+CREATE TABLE resumo_log_buscas_mensal (
+    mes DATE NOT NULL,
+    termo_buscado VARCHAR(255) NOT NULL,
+    total_buscas INT NOT NULL,
+    total_com_resultado INT NOT NULL,
+    PRIMARY KEY (mes, termo_buscado)
+);
+
+-- Contagem diária por termo normalizado (minúsculas, sem acentos, espaços colapsados),
+-- alimentada pelo LogBuscaServico; o "mais pesquisados" do dashboard soma esta tabela
+CREATE TABLE buscas_termos_diarias (
+    dia DATE NOT NULL,
+    termo VARCHAR(255) NOT NULL,
+    total_buscas INT NOT NULL DEFAULT 0,
+    total_com_resultado INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (dia, termo)
+);
+
+-- Demanda não atendida nas buscas (RF09): termo sem cadastro, medicamento sem estoque ou
+-- estoque todo reservado numa UBS. id_ubs / id_medicamento = 0 quando não se aplicam.
+CREATE TABLE demanda_nao_atendida (
+    dia DATE NOT NULL,
+    id_ubs INT NOT NULL DEFAULT 0,
+    id_medicamento INT NOT NULL DEFAULT 0,
+    termo VARCHAR(255) NOT NULL,
+    motivo VARCHAR(30) NOT NULL, -- 'SEM_CADASTRO', 'SEM_ESTOQUE', 'ESGOTADO_RESERVAS'
+    total INT NOT NULL DEFAULT 0,
+    PRIMARY KEY (dia, id_ubs, id_medicamento, termo, motivo)
 );
 
 -- ============================================
@@ -156,21 +209,105 @@ CREATE TABLE reservas (
     criado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
     FOREIGN KEY (id_usuario) REFERENCES usuarios(id),
     FOREIGN KEY (id_medicamento) REFERENCES medicamentos(id_medicamento),
-    FOREIGN KEY (id_ubs) REFERENCES ubs(id_ubs)
+    FOREIGN KEY (id_ubs) REFERENCES ubs(id_ubs),
+    -- Cobre a soma de reservas ATIVAS por (medicamento, UBS) usada na busca e na reserva
+    INDEX idx_reservas_med_ubs_status (id_medicamento, id_ubs, status, quantidade_reservada),
+    -- Faixa de reservas ATIVA vencidas, usada pela expiração automática
+    INDEX idx_reservas_status_data (status, data_hora_reserva)
+);
+
+-- ============================================
+-- RF07: Disponibilidade materializada (estoque físico válido e reservas ATIVAS por medicamento/UBS)
+-- Mantida pelo backend nas transações de estoque, retirada e reserva; reconciliada diariamente.
+-- ============================================
+CREATE TABLE disponibilidade_estoque (
+    id_medicamento INT NOT NULL,
+    id_ubs INT NOT NULL,
+    total_fisico INT NOT NULL DEFAULT 0,
+    total_reservado INT NOT NULL DEFAULT 0,
+    atualizado_em TIMESTAMP DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    PRIMARY KEY (id_medicamento, id_ubs),
+    FOREIGN KEY (id_medicamento) REFERENCES medicamentos(id_medicamento) ON DELETE CASCADE,
+    FOREIGN KEY (id_ubs) REFERENCES ubs(id_ubs) ON DELETE CASCADE
 );
 
 -- ============================================
 -- RF08.4: Auditoria de Ações 
 -- ============================================
+-- Particionada por mês (RANGE em data_log), como log_buscas. Sem FOREIGN KEY para usuarios
+-- (não suportado em tabelas particionadas); id_usuario continua nulo para ações do sistema.
 CREATE TABLE auditoria (
-    id_auditoria INT AUTO_INCREMENT PRIMARY KEY,
+    id_auditoria INT AUTO_INCREMENT,
     id_usuario INT NULL, -- ID do admin que fez a ação (pode ser nulo se não implementada autenticação de admin)
     acao VARCHAR(255) NOT NULL, -- Ex: 'CRIAR', 'ATUALIZAR', 'EXCLUIR'
     tabela_afetada VARCHAR(100) NOT NULL, -- Ex: 'usuarios', 'ubs'
     registro_id INT NOT NULL, -- ID do registro afetado (ex: id_usuario, id_ubs)
     detalhes TEXT NULL, -- JSON com os dados alterados
-    data_log DATETIME DEFAULT CURRENT_TIMESTAMP,
-    FOREIGN KEY (id_usuario) REFERENCES usuarios(id) ON DELETE SET NULL
+    data_log DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (id_auditoria, data_log),
+    -- Paginação por chave (data_log, id_auditoria), com e sem filtros
+    INDEX idx_auditoria_data (data_log, id_auditoria),
+    INDEX idx_auditoria_usuario_data (id_usuario, data_log, id_auditoria),
+    INDEX idx_auditoria_acao_data (acao, data_log, id_auditoria),
+    INDEX idx_auditoria_tabela_data (tabela_afetada, data_log, id_auditoria)
+)
+PARTITION BY RANGE COLUMNS (data_log) (
+    PARTITION p_futuro VALUES LESS THAN (MAXVALUE)
+);
+
+-- Resumo mensal da auditoria arquivada
+CREATE TABLE resumo_auditoria_mensal (
+    mes DATE NOT NULL,
+    acao VARCHAR(255) NOT NULL,
+    tabela_afetada VARCHAR(100) NOT NULL,
+    total INT NOT NULL,
+    PRIMARY KEY (mes, acao, tabela_afetada)
+);
+
+-- Catálogo das partições arquivadas em disco (arquivo CSV compactado)
+CREATE TABLE arquivos_particoes (
+    tabela VARCHAR(100) NOT NULL,
+    particao VARCHAR(64) NOT NULL,
+    mes DATE NOT NULL,
+    arquivo VARCHAR(500) NOT NULL,
+    linhas BIGINT NOT NULL,
+    arquivado_em DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (tabela, particao)
+);
+
+-- ============================================
+-- FILA DE E-MAILS DE SAÍDA (FilaEmailServico)
+-- ============================================
+CREATE TABLE fila_emails (
+    id_email BIGINT AUTO_INCREMENT PRIMARY KEY,
+    destinatario VARCHAR(255) NOT NULL,
+    assunto VARCHAR(255) NOT NULL,
+    corpo TEXT NULL, -- Apagado quando a mensagem sai da fila (enviada, falhou ou expirou)
+    status ENUM('PENDENTE', 'ENVIANDO', 'ENVIADO', 'FALHOU', 'EXPIRADO') NOT NULL DEFAULT 'PENDENTE',
+    tentativas INT NOT NULL DEFAULT 0,
+    proxima_tentativa DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    valido_ate DATETIME NULL, -- Depois disso a mensagem não é mais enviada (ex.: código de verificação vencido)
+    ultimo_erro VARCHAR(500) NULL,
+    criado_em DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    atualizado_em DATETIME NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    enviado_em DATETIME NULL,
+    INDEX idx_fila_emails_pendentes (status, proxima_tentativa)
+);
+
+-- Códigos de verificação por e-mail, usados quando -Dmedcontrol.codigos.armazem=jdbc
+-- (vários servidores validando códigos emitidos uns pelos outros)
+CREATE TABLE codigos_verificacao (
+    email VARCHAR(255) PRIMARY KEY,
+    codigo VARCHAR(20) NOT NULL,
+    expira_em DATETIME NOT NULL,
+    tentativas INT NOT NULL DEFAULT 0,
+    INDEX idx_codigos_verificacao_expira (expira_em)
+);
+
+-- Revogação de tokens de sessão (TokenServico): tokens do usuário emitidos até revogado_em são recusados
+CREATE TABLE tokens_revogados (
+    id_usuario INT PRIMARY KEY,
+    revogado_em DATETIME(3) NOT NULL
 );
 
 
@@ -230,4 +367,9 @@ INSERT INTO estoque (id_ubs, id_medicamento, quantidade, lote, data_validade) VA
 
 -- UBS 03 Guará II (ID 3)
 (3, 3, 12, 'SV3-001', '2027-01-15'), -- Sinvastatina
-(3, 7, 130, 'HD3-001', '2027-07-01'); -- Hidroclorotiazida
\ No newline at end of file
+(3, 7, 130, 'HD3-001', '2027-07-01'); -- Hidroclorotiazida
+
+INSERT INTO disponibilidade_estoque (id_medicamento, id_ubs, total_fisico)
+SELECT id_medicamento, id_ubs, SUM(quantidade) FROM estoque
+WHERE quantidade > 0 AND data_validade > CURDATE()
+GROUP BY id_medicamento, id_ubs;
@@ -62,7 +62,7 @@ document.addEventListener('DOMContentLoaded', () => {
             const dados = await resposta.json();
 
             if (dados.success) {
-                sessionStorage.setItem('medControlUser', JSON.stringify(dados.user));
+                sessionStorage.setItem('medControlUser', JSON.stringify({ ...dados.user, token: dados.token }));
 
                 // SENÃO (ex: admin) vai para 'Admin.html'.
                 window.location.href = (dados.user.perfil === 'usuario') ? 'TelaUsuario.html' : 'Admin.html';
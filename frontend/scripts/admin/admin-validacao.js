@@ -26,10 +26,8 @@ let inputCodigoReceita, btnValidarReceita, resultadoValidacaoReceita;
 export async function carregarDadosValidacao() {
     if (!containerValidacao) return; // Guarda
     try {
-        // Busca todos os usuários
-        const todosUsuarios = await api.listarUsuarios();
-        // Filtra apenas pacientes (perfil 'usuario' e ativos)
-        usuariosPacientes = todosUsuarios.filter(u => u.perfil === 'usuario' && u.ativo);
+        // Busca apenas os pacientes ativos (a lista completa de usuários é só do admin)
+        usuariosPacientes = await api.listarPacientes();
         popularSelect(selectUsuario, usuariosPacientes, 'id', 'nome', 'Selecione um paciente...');
 
         // Busca todas as UBS
@@ -21,6 +21,10 @@ async function fetchApi(endpoint, options = {}) {
             // Adiciona o ID do usuário em um header customizado
             // O backend irá ler este header para salvar o log de auditoria
             options.headers['X-User-ID'] = usuarioLogado.id;
+            // Token de sessão emitido no login; o backend confere se é do mesmo usuário do X-User-ID
+            if (usuarioLogado.token) {
+                options.headers['Authorization'] = `Bearer ${usuarioLogado.token}`;
+            }
         }
         const response = await fetch(`${BASE_URL}${endpoint}`, options);
 
@@ -131,6 +135,13 @@ export const api = {
         return fetchApi('/users');
     },
 
+    /**
+     * Busca os pacientes ativos (id, nome, cpf_cns), para a validação e retirada.
+     */
+    listarPacientes: () => {
+        return fetchApi('/users/pacientes');
+    },
+
     /**
      * Altera o status (ativo/inativo) de um usuário.
      * @param {string|number} id
@@ -150,6 +161,7 @@ export const api = {
 
     /**
      * Verifica a senha do usuário logado (Admin ou Usuário).
+     * O backend confere a senha do usuário da sessão.
      * @param {string|number} adminId - ID do usuário logado
      * @param {string} password - Senha do usuário logado
      */
@@ -213,7 +225,9 @@ export const api = {
     registrarRetirada: (dados) => fetchApi('/retiradas', defaultPostOptions(dados)),
 
     // --- ADICIONADO RF06: BUSCAR MEDICAMENTO (PARA LOG) ---
-    buscarMedicamento: (nome) => fetchApi(`/medicamentos/search?nome=${encodeURIComponent(nome)}`),
+    // posicao (opcional): { lat, lng } -> devolve as UBS mais próximas primeiro
+    buscarMedicamento: (nome, posicao) => fetchApi(`/medicamentos/search?nome=${encodeURIComponent(nome)}`
+        + (posicao ? `&lat=${posicao.lat}&lng=${posicao.lng}` : '')),
 
     // --- ADICIONADO RF09: RELATÓRIOS ---
     getRelatorioEstoque: (ubs_id) => fetchApi(`/relatorios/estoque?ubs_id=${ubs_id}`),